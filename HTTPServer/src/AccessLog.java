@@ -0,0 +1,372 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log of the requests served, and of the debug messages of the verbose mode.
+ * The threads serving the clients only put the entries in a ring buffer,
+ * without taking any lock; a background thread formats them and writes them in
+ * batches. Requests are only logged once a file is set, to that file, rotated
+ * once it is too big; the debug messages go to the standard output. When the
+ * ring buffer is full the entries are dropped and counted rather than making
+ * the server wait.
+ *
+ * Requests are logged in the Common Log Format followed by the time taken to
+ * serve them in microseconds:
+ * 127.0.0.1 - - [18/Oct/2026:12:00:00 +0000] "GET /index.html HTTP/1.1" 200 1234 532
+ * where 1234 is the number of bytes sent, headers included.
+ */
+public class AccessLog {
+
+	public static final int DEFAULT_CAPACITY = 8192;
+	public static final long DEFAULT_MAX_FILE_SIZE = 10L * 1024 * 1024;
+	public static final int DEFAULT_MAX_FILES = 5;
+
+	// How long the writer sleeps when there is nothing to write
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	// Maximum number of entries written between two flushes
+	private static final int MAX_BATCH = 1024;
+	private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneOffset.UTC);
+
+	// Entries in order of sequence, null once written or while being put
+	private final AtomicReferenceArray<Object> ring;
+	private final int mask;
+	// Sequence of the next entry put, claimed by the threads logging
+	private final AtomicLong tail;
+	// Sequence of the next entry written, only moved by the writer
+	private volatile long head;
+	private final AtomicLong dropped;
+	private final Thread writer;
+
+	// Where the requests are logged, null to not log them, changed before the server starts
+	private volatile File file;
+	private volatile long maxFileSize;
+	private volatile int maxFiles;
+
+	/**
+	 * Get instance of a Singleton
+	 * @return AccessLog singleton instance
+	 */
+	public static AccessLog getInstance() {
+		return InstanceHolder.instance;
+	}
+
+	/**
+	 * Holder of the singleton instance, created by the class loader on first use so that
+	 * concurrent callers of getInstance always get the same instance
+	 */
+	private static class InstanceHolder {
+		static final AccessLog instance = new AccessLog(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Private constructor, starting the writer
+	 * @param capacity number of entries the ring buffer holds, rounded up to a power of two
+	 */
+	private AccessLog(int capacity) {
+		int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		this.ring = new AtomicReferenceArray<Object>(size);
+		this.mask = size - 1;
+		this.tail = new AtomicLong();
+		this.dropped = new AtomicLong();
+		this.maxFileSize = DEFAULT_MAX_FILE_SIZE;
+		this.maxFiles = DEFAULT_MAX_FILES;
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, "access-log");
+		writer.setDaemon(true);
+		writer.start();
+		// Write what is left when the server stops
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writer.interrupt();
+				try {
+					writer.join(1000);
+				} catch (InterruptedException e) {
+					// Stopping anyway
+				}
+			}
+		}));
+	}
+
+	/**
+	 * Logs the requests to a file, they are not logged otherwise. Once the file is bigger than
+	 * the maximum size, it is renamed file.1, file.1 is renamed file.2, and so on.
+	 * @param file the log file
+	 * @param maxFileSize size in bytes past which the file is rotated
+	 * @param maxFiles number of rotated files kept
+	 */
+	public void setFile(File file, long maxFileSize, int maxFiles) {
+		this.maxFileSize = Math.max(1, maxFileSize);
+		this.maxFiles = Math.max(0, maxFiles);
+		this.file = file;
+	}
+
+	/**
+	 * Logs a request once its response is written, if a file is set
+	 * @param entry the request and its status
+	 * @param bytesSent number of bytes of the response, headers included
+	 * @param remoteAddress address of the client, or null if unknown
+	 */
+	public void log(Entry entry, long bytesSent, SocketAddress remoteAddress) {
+		if (file == null) {
+			return;
+		}
+		entry.bytesSent = bytesSent;
+		entry.remoteAddress = remoteAddress;
+		entry.endNanos = System.nanoTime();
+		entry.endMillis = System.currentTimeMillis();
+		offer(entry);
+	}
+
+	/**
+	 * Logs a debug message of the verbose mode
+	 * @param message the message, written on its own lines
+	 */
+	public void debug(String message) {
+		offer(message);
+	}
+
+	/**
+	 * Number of entries dropped because the ring buffer was full
+	 * @return number of entries since the server started
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Puts an entry in the ring buffer, unless it is full
+	 */
+	private void offer(Object item) {
+		for (; ; ) {
+			long sequence = tail.get();
+			if (sequence - head > mask) {
+				dropped.incrementAndGet();
+				return;
+			}
+			if (tail.compareAndSet(sequence, sequence + 1)) {
+				ring.lazySet((int) sequence & mask, item);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Writes the entries as they come, until the server stops
+	 */
+	private void write() {
+		Sink sink = new Sink();
+		Sink console = new Sink();
+		StringBuilder line = new StringBuilder(256);
+		long droppedReported = 0;
+		boolean stopping = false;
+		for (; ; ) {
+			int count = 0;
+			long sequence = head;
+			Object item;
+			while (count < MAX_BATCH && (item = ring.get((int) sequence & mask)) != null) {
+				// The slot must be empty before a thread logging can see it free
+				ring.lazySet((int) sequence & mask, null);
+				sequence++;
+				count++;
+				line.setLength(0);
+				if (item instanceof Entry) {
+					((Entry) item).format(line);
+					line.append('\n');
+					sink.write(line, file);
+				} else {
+					line.append(item).append('\n');
+					console.write(line, null);
+				}
+			}
+			head = sequence;
+			long droppedNow = dropped.get();
+			if (droppedNow != droppedReported) {
+				line.setLength(0);
+				line.append("[AccessLog: ").append(droppedNow - droppedReported).append(" entries dropped, the log could not keep up]\n");
+				if (file != null) {
+					sink.write(line, file);
+				} else {
+					console.write(line, null);
+				}
+				droppedReported = droppedNow;
+			}
+			if (count == MAX_BATCH) {
+				continue;
+			}
+			sink.flush();
+			console.flush();
+			if (stopping) {
+				sink.close();
+				console.close();
+				return;
+			}
+			LockSupport.parkNanos(IDLE_NANOS);
+			if (Thread.interrupted()) {
+				// Write what is left, then stop
+				stopping = true;
+			}
+		}
+	}
+
+	/**
+	 * Request to log, filled in as it is served
+	 */
+	public static class Entry {
+		private final String method;
+		private final String uri;
+		private final String protocol;
+		private final int status;
+		private final long startNanos;
+		private long endNanos;
+		private long endMillis;
+		private long bytesSent;
+		private SocketAddress remoteAddress;
+
+		/**
+		 * Constructor
+		 * @param method method of the request
+		 * @param uri URI of the request, as sent by the client
+		 * @param protocol protocol of the response
+		 * @param status status code of the response
+		 * @param startNanos System.nanoTime when the request was received
+		 */
+		public Entry(String method, String uri, String protocol, int status, long startNanos) {
+			this.method = method;
+			this.uri = uri;
+			this.protocol = protocol;
+			this.status = status;
+			this.startNanos = startNanos;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		public long getStartNanos() {
+			return startNanos;
+		}
+
+		void format(StringBuilder line) {
+			if (remoteAddress instanceof InetSocketAddress) {
+				line.append(((InetSocketAddress) remoteAddress).getAddress().getHostAddress());
+			} else {
+				line.append('-');
+			}
+			line.append(" - - [");
+			DATE_FORMAT.formatTo(Instant.ofEpochMilli(endMillis), line);
+			line.append("] \"").append(method.isEmpty() ? "-" : method).append(' ').append(uri.isEmpty() ? "-" : uri)
+			.append(' ').append(protocol).append("\" ").append(status).append(' ').append(bytesSent)
+			.append(' ').append(TimeUnit.NANOSECONDS.toMicros(endNanos - startNanos));
+		}
+	}
+
+	/**
+	 * Output of the writer, a rotated file or the standard output
+	 */
+	private class Sink {
+		private Writer out;
+		// File written to, null for the standard output
+		private File current;
+		private long size;
+
+		void write(CharSequence text, File target) {
+			try {
+				if (out == null || target != current) {
+					open(target);
+				}
+				out.append(text);
+				if (current != null) {
+					// Log lines are ASCII, but for the URIs
+					size += text.length();
+					if (size >= maxFileSize) {
+						rotate();
+					}
+				}
+			} catch (IOException e) {
+				// Nothing better to do than to count the lost entries
+				dropped.incrementAndGet();
+				close();
+			}
+		}
+
+		void flush() {
+			if (out == null) {
+				return;
+			}
+			try {
+				out.flush();
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		void close() {
+			if (out == null) {
+				return;
+			}
+			try {
+				if (current != null) {
+					out.close();
+				} else {
+					out.flush();
+				}
+			} catch (IOException e) {
+				// Reopened with the next entry
+			}
+			out = null;
+		}
+
+		private void open(File target) throws IOException {
+			close();
+			current = target;
+			if (target == null) {
+				out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+				return;
+			}
+			File directory = target.getAbsoluteFile().getParentFile();
+			if (directory != null) {
+				directory.mkdirs();
+			}
+			size = target.length();
+			out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(target, true), StandardCharsets.UTF_8), 65536);
+		}
+
+		/**
+		 * Renames the full file and starts a new one, the oldest rotated file being deleted
+		 */
+		private void rotate() throws IOException {
+			File target = current;
+			close();
+			if (maxFiles == 0) {
+				target.delete();
+			} else {
+				new File(target.getPath() + "." + maxFiles).delete();
+				for (int i = maxFiles - 1; i >= 1; i--) {
+					new File(target.getPath() + "." + i).renameTo(new File(target.getPath() + "." + (i + 1)));
+				}
+				target.renameTo(new File(target.getPath() + ".1"));
+			}
+			open(target);
+		}
+	}
+}
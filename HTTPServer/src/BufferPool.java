@@ -0,0 +1,371 @@
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of direct byte buffers shared by the connections of the server. A
+ * connection borrows a buffer only while it has bytes to hold, and gives it
+ * back as soon as it is done with it, so that idle connections do not keep
+ * any buffer allocated.
+ * <p>
+ * Buffers come in a few size classes. Each thread keeps a small list of free
+ * buffers of each class, so that most buffers are borrowed and given back
+ * without touching any shared state, and gives the buffers it has too many of
+ * to a shared list the other threads take from. Requests bigger than the
+ * largest class get a heap buffer that is not pooled.
+ * <p>
+ * With leak detection on, the pool remembers where each buffer was borrowed and
+ * reports the buffers kept for too long, and the buffers given back twice.
+ */
+public class BufferPool {
+
+	// Sizes of the buffers handed out by the pool, smallest first
+	public static final int[] DEFAULT_SIZE_CLASSES = { 4096, 16384, 65536 };
+	// Maximum number of free buffers of each class kept in the shared lists
+	public static final int DEFAULT_MAX_POOLED = 256;
+	// Maximum number of free buffers of each class kept by each thread
+	public static final int DEFAULT_MAX_THREAD_CACHED = 32;
+	// Age after which a borrowed buffer is reported as leaked, with leak detection on
+	public static final long LEAK_REPORT_MILLIS = 60000;
+
+	// Looked up by reflection so that the server still runs on JVMs without virtual threads
+	private static final Method IS_VIRTUAL = findIsVirtual();
+
+	// Singleton instance
+	private static final BufferPool instance = new BufferPool(DEFAULT_SIZE_CLASSES, DEFAULT_MAX_POOLED, DEFAULT_MAX_THREAD_CACHED);
+
+	private final SizeClass[] sizeClasses;
+	private final int maxPooled;
+	private final int maxThreadCached;
+
+	private final LongAdder allocatedBytes;
+	private final LongAdder unpooledAllocations;
+
+	// Buffers borrowed and not given back yet with the time and place they were borrowed, with leak detection on
+	private final Map<ByteBuffer, Allocation> outstanding;
+	private volatile boolean leakDetection;
+	private ScheduledExecutorService leakReporter;
+
+	/**
+	 * Get instance of a Singleton
+	 * @return BufferPool singleton instance
+	 */
+	public static BufferPool getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Constructor
+	 * @param sizes sizes in bytes of the buffers, smallest first
+	 * @param maxPooled maximum number of free buffers of each size to keep in the shared lists
+	 * @param maxThreadCached maximum number of free buffers of each size to keep by each thread
+	 */
+	public BufferPool(int[] sizes, int maxPooled, int maxThreadCached) {
+		this.sizeClasses = new SizeClass[sizes.length];
+		for (int i = 0; i < sizes.length; i++) {
+			this.sizeClasses[i] = new SizeClass(sizes[i]);
+		}
+		this.maxPooled = maxPooled;
+		this.maxThreadCached = maxThreadCached;
+		this.allocatedBytes = new LongAdder();
+		this.unpooledAllocations = new LongAdder();
+		this.outstanding = new IdentityHashMap<ByteBuffer, Allocation>();
+	}
+
+	/**
+	 * Size of the smallest buffers handed out by this pool
+	 * @return size in bytes
+	 */
+	public int getBufferSize() {
+		return sizeClasses[0].size;
+	}
+
+	/**
+	 * Turns leak detection on or off. Meant for debugging, since it records a stack
+	 * trace for every buffer borrowed.
+	 * @param leakDetection
+	 */
+	public synchronized void setLeakDetection(boolean leakDetection) {
+		this.leakDetection = leakDetection;
+		if (leakDetection && leakReporter == null) {
+			leakReporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "buffer-leak-reporter");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			leakReporter.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					reportLeaks(LEAK_REPORT_MILLIS);
+				}
+			}, LEAK_REPORT_MILLIS, LEAK_REPORT_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Borrows a cleared buffer of the smallest size from the pool
+	 * @return buffer ready to be written to
+	 */
+	public ByteBuffer acquire() {
+		return acquire(0);
+	}
+
+	/**
+	 * Borrows a cleared buffer of at least the given size, allocating one if none is free
+	 * @param minCapacity size in bytes the buffer must at least have
+	 * @return buffer ready to be written to
+	 */
+	public ByteBuffer acquire(int minCapacity) {
+		SizeClass sizeClass = sizeClassFor(minCapacity);
+		if (sizeClass == null) {
+			// Too big to pool, and too rare to be worth a direct buffer
+			unpooledAllocations.increment();
+			return ByteBuffer.allocate(minCapacity);
+		}
+		ByteBuffer buffer = null;
+		ArrayDeque<ByteBuffer> threadCache = threadCache(sizeClass);
+		if (threadCache != null) {
+			buffer = threadCache.poll();
+		}
+		if (buffer == null) {
+			buffer = sizeClass.shared.poll();
+			if (buffer != null) {
+				sizeClass.sharedCount.decrementAndGet();
+			}
+		}
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(sizeClass.size);
+			allocatedBytes.add(sizeClass.size);
+		}
+		buffer.clear();
+		sizeClass.inUse.increment();
+		if (leakDetection) {
+			synchronized (outstanding) {
+				outstanding.put(buffer, new Allocation());
+			}
+		}
+		return buffer;
+	}
+
+	/**
+	 * Gives a buffer back to the pool. Buffers that do not come from the pool
+	 * are simply dropped.
+	 * @param buffer buffer to give back
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect()) {
+			return;
+		}
+		SizeClass sizeClass = sizeClassOf(buffer.capacity());
+		if (sizeClass == null) {
+			return;
+		}
+		if (leakDetection) {
+			Allocation allocation;
+			synchronized (outstanding) {
+				allocation = outstanding.remove(buffer);
+			}
+			if (allocation == null) {
+				System.out.println("[BufferPool: buffer of " + buffer.capacity() + " bytes given back twice or not borrowed from the pool]");
+				new Throwable("Given back at").printStackTrace(System.out);
+				return;
+			}
+		}
+		sizeClass.inUse.decrement();
+		ArrayDeque<ByteBuffer> threadCache = threadCache(sizeClass);
+		if (threadCache != null && threadCache.size() < maxThreadCached) {
+			threadCache.push(buffer);
+			return;
+		}
+		if (sizeClass.sharedCount.incrementAndGet() <= maxPooled) {
+			sizeClass.shared.offer(buffer);
+		} else {
+			sizeClass.sharedCount.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Number of buffers currently borrowed from the pool
+	 * @return number of buffers
+	 */
+	public long getBuffersInUse() {
+		long count = 0;
+		for (SizeClass sizeClass : sizeClasses) {
+			count += sizeClass.inUse.sum();
+		}
+		return count;
+	}
+
+	/**
+	 * Size of the buffers currently borrowed from the pool
+	 * @return size in bytes
+	 */
+	public long getBytesInUse() {
+		long bytes = 0;
+		for (SizeClass sizeClass : sizeClasses) {
+			bytes += sizeClass.inUse.sum() * sizeClass.size;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Number of free buffers in the shared lists, not counting the ones kept by the threads
+	 * @return number of buffers
+	 */
+	public long getPooledBuffers() {
+		long count = 0;
+		for (SizeClass sizeClass : sizeClasses) {
+			count += sizeClass.sharedCount.get();
+		}
+		return count;
+	}
+
+	/**
+	 * Total size of the direct buffers allocated since the start
+	 * @return size in bytes
+	 */
+	public long getAllocatedBytes() {
+		return allocatedBytes.sum();
+	}
+
+	/**
+	 * Number of buffers too big for the pool allocated since the start
+	 * @return number of buffers
+	 */
+	public long getUnpooledAllocations() {
+		return unpooledAllocations.sum();
+	}
+
+	/**
+	 * Prints the buffers borrowed for longer than the given time, with where they were borrowed
+	 * @param ageMillis minimum age of the buffers to report
+	 * @return number of buffers reported
+	 */
+	public int reportLeaks(long ageMillis) {
+		long oldest = System.currentTimeMillis() - ageMillis;
+		List<Map.Entry<ByteBuffer, Allocation>> leaks = new ArrayList<Map.Entry<ByteBuffer, Allocation>>();
+		synchronized (outstanding) {
+			for (Map.Entry<ByteBuffer, Allocation> entry : outstanding.entrySet()) {
+				if (entry.getValue().time <= oldest) {
+					leaks.add(entry);
+				}
+			}
+		}
+		for (Map.Entry<ByteBuffer, Allocation> leak : leaks) {
+			System.out.println("[BufferPool: buffer of " + leak.getKey().capacity() + " bytes not given back after "
+					+ (System.currentTimeMillis() - leak.getValue().time) / 1000 + "s]");
+			leak.getValue().printStackTrace(System.out);
+		}
+		return leaks.size();
+	}
+
+	/**
+	 * Smallest size class holding the given size
+	 * @return the size class, or null if the size is too big to pool
+	 */
+	private SizeClass sizeClassFor(int minCapacity) {
+		for (SizeClass sizeClass : sizeClasses) {
+			if (sizeClass.size >= minCapacity) {
+				return sizeClass;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Size class of a buffer of the given capacity
+	 * @return the size class, or null if no size class has this size
+	 */
+	private SizeClass sizeClassOf(int capacity) {
+		for (SizeClass sizeClass : sizeClasses) {
+			if (sizeClass.size == capacity) {
+				return sizeClass;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Free buffers of a size class kept by the current thread. Virtual threads keep
+	 * none, since there can be a very large number of them and they do not live long.
+	 * @return the free buffers, or null if the current thread keeps none
+	 */
+	private ArrayDeque<ByteBuffer> threadCache(SizeClass sizeClass) {
+		if (maxThreadCached == 0) {
+			return null;
+		}
+		return sizeClass.threadCache.get();
+	}
+
+	private static boolean isVirtual(Thread thread) {
+		if (IS_VIRTUAL == null) {
+			return false;
+		}
+		try {
+			return (Boolean) IS_VIRTUAL.invoke(thread);
+		} catch (ReflectiveOperationException e) {
+			return false;
+		}
+	}
+
+	private static Method findIsVirtual() {
+		try {
+			return Thread.class.getMethod("isVirtual");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Buffers of one size
+	 */
+	private static class SizeClass {
+		private final int size;
+		private final ConcurrentLinkedQueue<ByteBuffer> shared;
+		private final AtomicInteger sharedCount;
+		private final ThreadLocal<ArrayDeque<ByteBuffer>> threadCache;
+		private final LongAdder inUse;
+
+		SizeClass(int size) {
+			this.size = size;
+			this.shared = new ConcurrentLinkedQueue<ByteBuffer>();
+			this.sharedCount = new AtomicInteger();
+			// Whether the thread is virtual is only looked up the first time it uses the size class,
+			// a virtual thread then keeps null as its cache
+			this.threadCache = new ThreadLocal<ArrayDeque<ByteBuffer>>() {
+				@Override
+				protected ArrayDeque<ByteBuffer> initialValue() {
+					return isVirtual(Thread.currentThread()) ? null : new ArrayDeque<ByteBuffer>();
+				}
+			};
+			this.inUse = new LongAdder();
+		}
+	}
+
+	/**
+	 * Time and place a buffer was borrowed
+	 */
+	private static class Allocation extends Throwable {
+		private static final long serialVersionUID = 1L;
+		private final long time;
+
+		Allocation() {
+			super("Borrowed at");
+			this.time = System.currentTimeMillis();
+		}
+	}
+}
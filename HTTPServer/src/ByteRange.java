@@ -0,0 +1,101 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Range of bytes of a file asked for by a client in a Range header (RFC 7233).
+ */
+public class ByteRange {
+
+	// Maximum number of ranges served for one request, more are ignored to avoid abuse
+	public static final int MAX_RANGES = 16;
+
+	private final long start;
+	private final long end;
+
+	/**
+	 * Constructor
+	 * @param start position of the first byte
+	 * @param end position of the last byte, included
+	 */
+	public ByteRange(long start, long end) {
+		this.start = start;
+		this.end = end;
+	}
+
+	public long getStart() {
+		return start;
+	}
+
+	public long getEnd() {
+		return end;
+	}
+
+	public long getLength() {
+		return end - start + 1;
+	}
+
+	/**
+	 * Parses the value of a Range header against the size of a file. Ranges past the
+	 * end of the file are left out, and ranges going past it are cut at the end.
+	 * @param header value of the Range header, e.g. bytes=0-99,200-
+	 * @param size size of the file
+	 * @return the satisfiable ranges in the order of the header, an empty list if none is,
+	 * or null if the header is not a valid byte range set and must be ignored
+	 */
+	public static List<ByteRange> parse(String header, long size) {
+		header = header.trim();
+		if (!header.regionMatches(true, 0, "bytes=", 0, 6)) {
+			return null;
+		}
+		String[] specs = header.substring(6).split(",");
+		if (specs.length > MAX_RANGES) {
+			return null;
+		}
+		List<ByteRange> ranges = new ArrayList<ByteRange>();
+		for (String spec : specs) {
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if (dash < 0) {
+				return null;
+			}
+			long first = parsePosition(spec.substring(0, dash).trim());
+			long last = parsePosition(spec.substring(dash + 1).trim());
+			if (first == -1) {
+				// Suffix range: the last bytes of the file
+				if (last < 0) {
+					return null;
+				}
+				if (last > 0 && size > 0) {
+					ranges.add(new ByteRange(Math.max(0, size - last), size - 1));
+				}
+			} else if (first < -1 || last < -1 || (last >= 0 && last < first)) {
+				return null;
+			} else if (first < size) {
+				ranges.add(new ByteRange(first, last == -1 ? size - 1 : Math.min(last, size - 1)));
+			}
+		}
+		return ranges;
+	}
+
+	/**
+	 * Parses a byte position
+	 * @return the position, -1 if it is empty, -2 if it is not a number
+	 */
+	private static long parsePosition(String value) {
+		if (value.isEmpty()) {
+			return -1;
+		}
+		if (value.length() > 18) {
+			return -2;
+		}
+		long position = 0;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9') {
+				return -2;
+			}
+			position = position * 10 + (c - '0');
+		}
+		return position;
+	}
+}
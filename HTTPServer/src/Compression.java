@@ -0,0 +1,169 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Settings and helpers for the compression of the files sent to the clients.
+ * Only text files bigger than a minimum size are compressed, each version of a
+ * file is compressed once and its compressed bytes are kept in a cache.
+ */
+public class Compression {
+
+	public static final String GZIP = "gzip";
+	public static final String DEFLATE = "deflate";
+
+	public static final int DEFAULT_LEVEL = 6;
+	public static final int DEFAULT_MIN_SIZE = 1024;
+	public static final long DEFAULT_CACHE_SIZE = 32L * 1024 * 1024;
+	// Size of the largest file compressed on the fly
+	public static final int DEFAULT_MAX_SIZE = 4 * 1024 * 1024;
+
+	// Extensions of the files worth compressing, the others are usually compressed already
+	private static final String[] COMPRESSIBLE_EXTENSIONS = {
+		".html", ".htm", ".txt", ".css", ".js", ".json", ".xml", ".svg", ".csv", ".md"
+	};
+
+	private final int level;
+	private final int minSize;
+	private final int maxSize;
+	// Compressed files, keyed by path and encoding, null to only serve precompressed files
+	private final FileCache cache;
+
+	/**
+	 * Constructor
+	 * @param level compression level, from 1 (fastest) to 9 (smallest)
+	 * @param minSize size of the smallest file worth compressing
+	 * @param cacheSize total size of the compressed files kept in memory, 0 to only serve precompressed files
+	 */
+	public Compression(int level, int minSize, long cacheSize) {
+		this.level = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, level));
+		this.minSize = minSize;
+		this.maxSize = DEFAULT_MAX_SIZE;
+		this.cache = cacheSize > 0 ? new FileCache(cacheSize, (int) Math.min(cacheSize, maxSize)) : null;
+	}
+
+	/**
+	 * Chooses the encoding of a response from the Accept-Encoding header of the request.
+	 * gzip is preferred over deflate when the client accepts both.
+	 * @param acceptEncoding value of the Accept-Encoding header, or null
+	 * @return GZIP, DEFLATE, or null to send the content as is
+	 */
+	public static String negotiate(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return null;
+		}
+		float gzip = -1;
+		float deflate = -1;
+		float any = -1;
+		for (String coding : acceptEncoding.split(",")) {
+			int semicolon = coding.indexOf(';');
+			String name = (semicolon < 0 ? coding : coding.substring(0, semicolon)).trim().toLowerCase(Locale.ROOT);
+			float quality = semicolon < 0 ? 1 : parseQuality(coding.substring(semicolon + 1));
+			if (name.equals(GZIP) || name.equals("x-gzip")) {
+				gzip = quality;
+			} else if (name.equals(DEFLATE)) {
+				deflate = quality;
+			} else if (name.equals("*")) {
+				any = quality;
+			}
+		}
+		// Codings not listed get the quality of *
+		gzip = gzip < 0 ? any : gzip;
+		deflate = deflate < 0 ? any : deflate;
+		if (gzip > 0 && gzip >= deflate) {
+			return GZIP;
+		}
+		if (deflate > 0) {
+			return DEFLATE;
+		}
+		return null;
+	}
+
+	/**
+	 * Indicates if a file is worth compressing
+	 * @param name name of the file
+	 * @param size size of the file
+	 * @return true for a text file of at least the minimum size
+	 */
+	public boolean isCompressible(String name, long size) {
+		return size >= minSize && isCompressibleType(name);
+	}
+
+	/**
+	 * Indicates if a file of this size can be compressed on the fly and cached
+	 * @param size size of the file
+	 * @return true if the compressed file can be cached
+	 */
+	public boolean canCompress(long size) {
+		return cache != null && size <= maxSize;
+	}
+
+	/**
+	 * Cache of the compressed files
+	 * @return the cache, or null if files are not compressed on the fly
+	 */
+	public FileCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Indicates if the responses for a file depend on the Accept-Encoding header of the request
+	 * @param name name of the file
+	 * @return true for a text file
+	 */
+	public static boolean isCompressibleType(String name) {
+		String lowerCase = name.toLowerCase(Locale.ROOT);
+		for (String extension : COMPRESSIBLE_EXTENSIONS) {
+			if (lowerCase.endsWith(extension)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Compresses the content of a file
+	 * @param content content of the file
+	 * @param encoding GZIP or DEFLATE
+	 * @return the compressed content
+	 * @throws IOException
+	 */
+	public byte[] compress(byte[] content, String encoding) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, content.length / 4));
+		if (encoding.equals(GZIP)) {
+			DeflaterOutputStream out = new GZIPOutputStream(compressed) {
+				{
+					// Use the configured level instead of the default one
+					def.setLevel(level);
+				}
+			};
+			out.write(content);
+			out.close();
+		} else {
+			Deflater deflater = new Deflater(level);
+			try {
+				DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater);
+				out.write(content);
+				out.close();
+			} finally {
+				deflater.end();
+			}
+		}
+		return compressed.toByteArray();
+	}
+
+	private static float parseQuality(String parameter) {
+		parameter = parameter.trim();
+		if (!parameter.startsWith("q=")) {
+			return 1;
+		}
+		try {
+			return Float.parseFloat(parameter.substring(2).trim());
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+}
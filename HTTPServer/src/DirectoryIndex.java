@@ -0,0 +1,432 @@
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory index of the directories listed by the clients. A directory is read
+ * once, the first time it is listed, and its entries are then kept sorted by
+ * name, each with the bytes of its line in the listing. The index follows the
+ * changes made to the directories through a WatchService, and right away for
+ * the files written by the server. Listings are served from the bytes of the
+ * lines, the whole listing being kept rendered until the directory changes.
+ * Once the index holds too many entries, the least recently listed
+ * directories are dropped.
+ */
+public class DirectoryIndex {
+
+	public static final long DEFAULT_MAX_ENTRIES = 1000000;
+
+	// Once over budget, listings are dropped until the index is back to this fraction of it
+	private static final double EVICTION_TARGET = 0.9;
+
+	private final long maxEntries;
+	private final ConcurrentHashMap<Path, Listing> listings;
+	private final AtomicLong totalEntries;
+	// Logical clock used to order the listings by last access
+	private final AtomicLong clock;
+	private final Object evictionLock;
+	private final WatchService watchService;
+
+	/**
+	 * Constructor, starting the thread following the changes made to the directories
+	 * @param maxEntries total number of entries of the indexed directories
+	 * @throws IOException if the directories cannot be watched
+	 */
+	public DirectoryIndex(long maxEntries) throws IOException {
+		this.maxEntries = maxEntries;
+		this.listings = new ConcurrentHashMap<Path, Listing>();
+		this.totalEntries = new AtomicLong();
+		this.clock = new AtomicLong();
+		this.evictionLock = new Object();
+		this.watchService = FileSystems.getDefault().newWatchService();
+		Thread watcher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				watch();
+			}
+		}, "directory-watcher");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	/**
+	 * Gets a page of the listing of a directory, reading the directory if it is not indexed yet
+	 * @param directory absolute path of the directory
+	 * @param offset number of entries to skip, in the order of their names
+	 * @param limit maximum number of entries of the page
+	 * @return the page
+	 * @throws FileNotFoundException if the directory does not exist
+	 * @throws IOException if the directory cannot be read
+	 */
+	public Page getPage(Path directory, int offset, int limit) throws FileNotFoundException, IOException {
+		Listing listing = listings.get(directory);
+		// A listing is in the index while it is read, its entries are only there once it is read
+		if (listing == null || listing.dropped || !listing.loaded) {
+			listing = load(directory);
+		}
+		listing.lastAccess = clock.incrementAndGet();
+		return listing.getPage(offset, limit);
+	}
+
+	/**
+	 * Records a file or directory created by the server, without waiting for the WatchService
+	 * to report it, along with the directories created for it
+	 * @param path absolute path of the new file or directory
+	 */
+	public void added(Path path) {
+		for (Path child = path, parent = path.getParent(); parent != null; child = parent, parent = parent.getParent()) {
+			Listing listing = listings.get(parent);
+			if (listing == null || !listing.add(child.getFileName().toString(), Files.isDirectory(child))) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Number of entries of the indexed directories
+	 * @return number of entries
+	 */
+	public long getTotalEntries() {
+		return totalEntries.get();
+	}
+
+	/**
+	 * Number of indexed directories
+	 * @return number of directories
+	 */
+	public int getDirectoryCount() {
+		return listings.size();
+	}
+
+	/**
+	 * Reads a directory into the index, or waits for another thread reading it
+	 */
+	private Listing load(Path directory) throws FileNotFoundException, IOException {
+		if (!Files.isDirectory(directory)) {
+			throw new FileNotFoundException("The folder " + directory + " does not exist.");
+		}
+		Listing listing = new Listing(directory);
+		for (; ; ) {
+			Listing previous = listings.putIfAbsent(directory, listing);
+			if (previous == null) {
+				break;
+			}
+			if (!previous.dropped) {
+				listing = previous;
+				break;
+			}
+			listings.remove(directory, previous);
+		}
+		try {
+			listing.load();
+		} catch (IOException e) {
+			drop(directory, listing);
+			throw e;
+		}
+		if (listing.key == null) {
+			// Out of watches: the directory is listed this time, but not kept since it would not stay fresh
+			drop(directory, listing);
+		} else if (totalEntries.get() > maxEntries) {
+			evict(listing);
+		}
+		return listing;
+	}
+
+	/**
+	 * Drops a listing, for example when its directory is deleted or cannot be followed anymore.
+	 * It stops being watched before it leaves the index, so that the watch of a new listing of
+	 * the same directory is never the one cancelled.
+	 */
+	private void drop(Path directory, Listing listing) {
+		listing.drop();
+		listings.remove(directory, listing);
+	}
+
+	/**
+	 * Drops the least recently used listings until the index is back under its budget.
+	 * Only one thread evicts at a time, listings are not blocked meanwhile.
+	 * @param keep listing just read, never dropped
+	 */
+	private void evict(Listing keep) {
+		synchronized (evictionLock) {
+			if (totalEntries.get() <= maxEntries) {
+				return;
+			}
+			List<Map.Entry<Path, Listing>> byLastAccess = new ArrayList<Map.Entry<Path, Listing>>(listings.entrySet());
+			Collections.sort(byLastAccess, new Comparator<Map.Entry<Path, Listing>>() {
+				@Override
+				public int compare(Map.Entry<Path, Listing> a, Map.Entry<Path, Listing> b) {
+					return Long.compare(a.getValue().lastAccess, b.getValue().lastAccess);
+				}
+			});
+			long target = (long) (maxEntries * EVICTION_TARGET);
+			for (Map.Entry<Path, Listing> candidate : byLastAccess) {
+				if (totalEntries.get() <= target) {
+					break;
+				}
+				if (candidate.getValue() != keep) {
+					drop(candidate.getKey(), candidate.getValue());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Applies the changes reported by the WatchService to the listings, until the server stops
+	 */
+	private void watch() {
+		for (; ; ) {
+			WatchKey key;
+			try {
+				key = watchService.take();
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+			Path directory = (Path) key.watchable();
+			Listing listing = listings.get(directory);
+			if (listing == null || listing.key != key) {
+				// The directory is being read, and the changes are read with it, or it was dropped
+				key.pollEvents();
+				key.reset();
+				continue;
+			}
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == OVERFLOW) {
+					// Changes were lost, the directory is read again the next time it is listed
+					drop(directory, listing);
+					break;
+				}
+				String name = ((Path) event.context()).toString();
+				if (event.kind() == ENTRY_CREATE) {
+					listing.add(name, Files.isDirectory(directory.resolve(name)));
+				} else if (event.kind() == ENTRY_DELETE) {
+					listing.remove(name);
+				}
+			}
+			if (!key.reset()) {
+				// The directory was deleted
+				drop(directory, listing);
+			}
+		}
+	}
+
+	/**
+	 * Part of the listing of a directory
+	 */
+	public static class Page {
+		private final byte[] body;
+		private final int offset;
+		private final int count;
+		private final int total;
+
+		Page(byte[] body, int offset, int count, int total) {
+			this.body = body;
+			this.offset = offset;
+			this.count = count;
+			this.total = total;
+		}
+
+		/**
+		 * Lines of the entries of the page, a / following the names of the directories
+		 * @return the bytes of the lines, not to be modified
+		 */
+		public byte[] getBody() {
+			return body;
+		}
+
+		public int getOffset() {
+			return offset;
+		}
+
+		public int getCount() {
+			return count;
+		}
+
+		/**
+		 * Number of entries of the whole directory
+		 * @return number of entries
+		 */
+		public int getTotal() {
+			return total;
+		}
+
+		/**
+		 * Indicates if the directory has entries after this page
+		 * @return true if there is a next page
+		 */
+		public boolean hasNext() {
+			return offset + count < total;
+		}
+	}
+
+	/**
+	 * Entries of an indexed directory, sorted by name
+	 */
+	private class Listing {
+		private final Path directory;
+		// Watch of the directory, null until it is read or if it cannot be watched
+		private volatile WatchKey key;
+		private volatile long lastAccess;
+		private volatile boolean dropped;
+		// Set once the directory is read, the entries being read under the lock of the listing
+		private volatile boolean loaded;
+
+		// Guarded by this
+		private final ArrayList<String> names;
+		private final ArrayList<byte[]> lines;
+		// Lines of all the entries, null until the listing is rendered again after a change
+		private byte[] rendered;
+
+		Listing(Path directory) {
+			this.directory = directory;
+			this.names = new ArrayList<String>();
+			this.lines = new ArrayList<byte[]>();
+		}
+
+		/**
+		 * Reads the directory, unless it was read already. The directory is watched before it is
+		 * read, so that no change made while it is read is missed; the changes wait for the
+		 * reading to end.
+		 */
+		synchronized void load() throws IOException {
+			if (loaded) {
+				return;
+			}
+			try {
+				key = directory.register(watchService, ENTRY_CREATE, ENTRY_DELETE);
+			} catch (NoSuchFileException | NotDirectoryException e) {
+				throw new FileNotFoundException("The folder " + directory + " does not exist.");
+			} catch (IOException e) {
+				// No watch left, the listing will be dropped once read
+			}
+			// The entries are sorted once read rather than inserted one at a time in order,
+			// which would shift the lists for each entry of a large directory
+			ArrayList<String> read = new ArrayList<String>();
+			Set<String> directories = new HashSet<String>();
+			try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+				for (Path entry : entries) {
+					String name = entry.getFileName().toString();
+					if (Upload.isTempFile(name)) {
+						continue;
+					}
+					read.add(name);
+					if (Files.isDirectory(entry)) {
+						directories.add(name);
+					}
+				}
+			} catch (NoSuchFileException | NotDirectoryException e) {
+				throw new FileNotFoundException("The folder " + directory + " does not exist.");
+			}
+			if (!dropped) {
+				Collections.sort(read);
+				names.ensureCapacity(read.size());
+				lines.ensureCapacity(read.size());
+				for (String name : read) {
+					names.add(name);
+					lines.add(line(name, directories.contains(name)));
+				}
+				rendered = null;
+				totalEntries.addAndGet(read.size());
+			}
+			loaded = true;
+		}
+
+		private byte[] line(String name, boolean isDirectory) {
+			return (name + (isDirectory ? "/\n" : "\n")).getBytes(StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Adds an entry once the directory is read, unless it is already listed
+		 * @return true if the entry was added
+		 */
+		synchronized boolean add(String name, boolean isDirectory) {
+			// Before, the entry is found by the reading of the directory
+			if (!loaded || dropped || Upload.isTempFile(name)) {
+				return false;
+			}
+			int index = Collections.binarySearch(names, name);
+			if (index >= 0) {
+				return false;
+			}
+			index = -index - 1;
+			names.add(index, name);
+			lines.add(index, line(name, isDirectory));
+			rendered = null;
+			totalEntries.incrementAndGet();
+			return true;
+		}
+
+		synchronized void remove(String name) {
+			int index = Collections.binarySearch(names, name);
+			if (dropped || index < 0) {
+				return;
+			}
+			names.remove(index);
+			lines.remove(index);
+			rendered = null;
+			totalEntries.decrementAndGet();
+		}
+
+		synchronized void drop() {
+			if (dropped) {
+				return;
+			}
+			if (key != null) {
+				key.cancel();
+			}
+			dropped = true;
+			totalEntries.addAndGet(-names.size());
+		}
+
+		synchronized Page getPage(int offset, int limit) {
+			int total = lines.size();
+			int start = Math.min(offset, total);
+			int end = (int) Math.min((long) start + limit, total);
+			if (start == 0 && end == total) {
+				if (rendered == null) {
+					rendered = concat(0, total);
+				}
+				return new Page(rendered, 0, total, total);
+			}
+			return new Page(concat(start, end), start, end - start, total);
+		}
+
+		private byte[] concat(int start, int end) {
+			int length = 0;
+			for (int i = start; i < end; i++) {
+				length += lines.get(i).length;
+			}
+			byte[] body = new byte[length];
+			int position = 0;
+			for (int i = start; i < end; i++) {
+				byte[] line = lines.get(i);
+				System.arraycopy(line, 0, body, position, line.length);
+				position += line.length;
+			}
+			return body;
+		}
+	}
+}
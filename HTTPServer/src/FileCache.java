@@ -0,0 +1,202 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory cache of the content of the most requested files. Lookups never lock;
+ * once the total size of the cached files goes over the budget, the least recently
+ * used entries are evicted. An entry is only valid as long as the modification
+ * date and size of its file did not change.
+ */
+public class FileCache {
+
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+	public static final int DEFAULT_MAX_ENTRY_BYTES = 1024 * 1024;
+
+	// Once over budget, entries are evicted until the cache is back to this fraction of it
+	private static final double EVICTION_TARGET = 0.9;
+
+	private final long maxBytes;
+	private final int maxEntryBytes;
+	private final ConcurrentHashMap<String, Entry> entries;
+	private final AtomicLong totalBytes;
+	// Logical clock used to order the entries by last access
+	private final AtomicLong clock;
+	private final Object evictionLock;
+
+	private final LongAdder hits;
+	private final LongAdder misses;
+
+	/**
+	 * Constructor
+	 * @param maxBytes total size of the cached contents
+	 * @param maxEntryBytes size of the largest file that can be cached
+	 */
+	public FileCache(long maxBytes, int maxEntryBytes) {
+		this.maxBytes = maxBytes;
+		this.maxEntryBytes = maxEntryBytes;
+		this.entries = new ConcurrentHashMap<String, Entry>();
+		this.totalBytes = new AtomicLong();
+		this.clock = new AtomicLong();
+		this.evictionLock = new Object();
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+	}
+
+	/**
+	 * Indicates if a file of the given size can be cached
+	 * @param size size of the file in bytes
+	 * @return true if the file is small enough to be cached
+	 */
+	public boolean accepts(long size) {
+		return size <= maxEntryBytes && size <= maxBytes;
+	}
+
+	/**
+	 * Looks up the content of a file. An entry cached for another version of the
+	 * file is dropped and reported as a miss.
+	 * @param absoluteFilePath absolute path of the file
+	 * @param lastModified current modification time of the file
+	 * @param size current size of the file
+	 * @return the cached entry, or null if there is none for this version of the file
+	 */
+	public Entry get(String absoluteFilePath, long lastModified, long size) {
+		Entry entry = entries.get(absoluteFilePath);
+		if (entry != null && entry.lastModifiedTime == lastModified && entry.sourceLength == size) {
+			entry.lastAccess = clock.incrementAndGet();
+			hits.increment();
+			return entry;
+		}
+		if (entry != null) {
+			remove(absoluteFilePath, entry);
+		}
+		misses.increment();
+		return null;
+	}
+
+	/**
+	 * Caches the content of a file, evicting the least recently used entries if needed
+	 * @param absoluteFilePath absolute path of the file
+	 * @param entry content of the file
+	 */
+	public void put(String absoluteFilePath, Entry entry) {
+		if (!accepts(entry.body.length)) {
+			return;
+		}
+		entry.lastAccess = clock.incrementAndGet();
+		Entry previous = entries.put(absoluteFilePath, entry);
+		totalBytes.addAndGet(entry.body.length - (previous == null ? 0 : previous.body.length));
+		if (totalBytes.get() > maxBytes) {
+			evict();
+		}
+	}
+
+	/**
+	 * Drops the cached content of a file, for example after it was written to
+	 * @param absoluteFilePath absolute path of the file
+	 */
+	public void invalidate(String absoluteFilePath) {
+		Entry entry = entries.remove(absoluteFilePath);
+		if (entry != null) {
+			totalBytes.addAndGet(-entry.body.length);
+		}
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getTotalBytes() {
+		return totalBytes.get();
+	}
+
+	private void remove(String absoluteFilePath, Entry entry) {
+		if (entries.remove(absoluteFilePath, entry)) {
+			totalBytes.addAndGet(-entry.body.length);
+		}
+	}
+
+	/**
+	 * Evicts the least recently used entries until the cache is back under its budget.
+	 * Only one thread evicts at a time, lookups are not blocked meanwhile.
+	 */
+	private void evict() {
+		synchronized (evictionLock) {
+			if (totalBytes.get() <= maxBytes) {
+				return;
+			}
+			List<Map.Entry<String, Entry>> byLastAccess = new ArrayList<Map.Entry<String, Entry>>(entries.entrySet());
+			Collections.sort(byLastAccess, new Comparator<Map.Entry<String, Entry>>() {
+				@Override
+				public int compare(Map.Entry<String, Entry> a, Map.Entry<String, Entry> b) {
+					return Long.compare(a.getValue().lastAccess, b.getValue().lastAccess);
+				}
+			});
+			long target = (long) (maxBytes * EVICTION_TARGET);
+			for (Map.Entry<String, Entry> candidate : byLastAccess) {
+				if (totalBytes.get() <= target) {
+					break;
+				}
+				remove(candidate.getKey(), candidate.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Cached content of a file, as is or compressed, with its Last-Modified and ETag headers
+	 * already encoded
+	 */
+	public static class Entry {
+		private final byte[] body;
+		private final long lastModifiedTime;
+		private final Validators validators;
+		// Size of the file the content comes from
+		private final long sourceLength;
+		private volatile long lastAccess;
+
+		/**
+		 * Constructor
+		 * @param body content of the file
+		 * @param lastModifiedTime modification time of the file the content was read from
+		 */
+		public Entry(byte[] body, long lastModifiedTime) {
+			this(body, lastModifiedTime, body.length, null);
+		}
+
+		/**
+		 * Constructor for content transformed from the file, for example compressed
+		 * @param body transformed content of the file
+		 * @param lastModifiedTime modification time of the file the content was read from
+		 * @param sourceLength size of the file the content was read from
+		 * @param encoding content coding of the content, for example gzip, or null if it is the file as is
+		 */
+		public Entry(byte[] body, long lastModifiedTime, long sourceLength, String encoding) {
+			this.body = body;
+			this.lastModifiedTime = lastModifiedTime;
+			this.sourceLength = sourceLength;
+			this.validators = new Validators(sourceLength, lastModifiedTime, encoding);
+		}
+
+		/**
+		 * Content of the file, shared between all the responses using it
+		 * @return read-only buffer over the content
+		 */
+		public ByteBuffer getBody() {
+			return ByteBuffer.wrap(body).asReadOnlyBuffer();
+		}
+
+		public Validators getValidators() {
+			return validators;
+		}
+	}
+}
@@ -1,215 +1,608 @@
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.TimeZone;
 
-import exception.FileAccessDeniedException;
 import exception.NoContentException;
 import exception.PathNotAllowedException;
 import exception.NotAbsoluteFilePathException;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
 
 public class FileManager {
 	
-	// Mapping files that are being read/written to, to the user that is using the file
-	private HashMap <String,String> currentActiveFiles;
+	// Moves the uploads in place of their files, in order
+	private final WriteCommitter writeCommitter;
 	
-	// Singleton instance
-	private static FileManager instance;
+	// Cache of the content of the most requested files, null if disabled
+	private volatile FileCache fileCache;
+	
+	// Memory mappings of the medium and large files, null if disabled
+	private volatile MappedFileCache mappedFileCache;
+	
+	// Compression of the text files, null if disabled
+	private volatile Compression compression;
+	
+	// Index of the listed directories, null if disabled
+	private volatile DirectoryIndex directoryIndex;
+	
+	// Maximum number of entries per page of a listing, 0 for no limit
+	private volatile int listingPageSize;
+	
+	// Resolution of the request URIs in the data directory
+	private volatile PathResolver pathResolver;
+	
+	// How long the attributes of the files are used before being read again, in milliseconds
+	private volatile long pathCacheTtl;
 	
 	/**
 	 * Get instance of a Singleton
 	 * @return FileManager singleton instance
 	 */
 	public static FileManager getInstance() {
-		if (instance == null)
-			instance = new FileManager();
-		return instance;
+		return InstanceHolder.instance;
+	}
+	
+	/**
+	 * Holder of the singleton instance, created by the class loader on first use so that
+	 * concurrent callers of getInstance always get the same instance
+	 */
+	private static class InstanceHolder {
+		static final FileManager instance = new FileManager();
 	}
 	
 	/**
 	 * Private constructor
 	 */
 	private FileManager() {
-		this.currentActiveFiles = new HashMap<String,String>();
+		this.writeCommitter = new WriteCommitter(new WriteCommitter.Mover() {
+			@Override
+			public void move(Upload upload) throws IOException {
+				moveUpload(upload);
+			}
+		});
+		this.pathCacheTtl = PathResolver.DEFAULT_TTL_MILLIS;
+		// The working directory until the data directory is set
+		this.pathResolver = new PathResolver(Paths.get(System.getProperty("user.dir")), pathCacheTtl, PathResolver.DEFAULT_MAX_ENTRIES);
+	}
+	
+	/**
+	 * Sets the data directory the request URIs are resolved in. The directory is looked up
+	 * in the working directory first, for example /COMP445 for the COMP445 folder of the
+	 * working directory, and otherwise taken as an absolute path.
+	 * @param directory path of the data directory
+	 * @throws FileNotFoundException if the directory does not exist
+	 */
+	public void setRootDirectory(String directory) throws FileNotFoundException {
+		Path root = null;
+		try {
+			root = Paths.get(System.getProperty("user.dir"), directory);
+			if(!Files.isDirectory(root)) {
+				root = Paths.get(directory);
+			}
+		} catch (InvalidPathException e) {
+			root = null;
+		}
+		if(root == null || !Files.isDirectory(root)) {
+			throw new FileNotFoundException("The folder " + directory + " does not exist.");
+		}
+		this.pathResolver = new PathResolver(root, pathCacheTtl, PathResolver.DEFAULT_MAX_ENTRIES);
 	}
 	
 	/**
-	 * Method to get the current files in the current directory
+	 * Sets how long the attributes of the files are used before being read again, applied
+	 * when the data directory is set. The files written by the server are read again right away.
+	 * @param ttlMillis time in milliseconds, 0 to always read the attributes
+	 */
+	public void setPathCacheTtl(long ttlMillis) {
+		this.pathCacheTtl = Math.max(0, ttlMillis);
+	}
+	
+	/**
+	 * Sets the cache used to serve the most requested files from memory
+	 * @param fileCache cache to use, or null to disable caching
+	 */
+	public void setFileCache(FileCache fileCache) {
+		this.fileCache = fileCache;
+	}
+	
+	/**
+	 * Gets the cache used to serve the most requested files from memory
+	 * @return the cache, or null if caching is disabled
+	 */
+	public FileCache getFileCache() {
+		return fileCache;
+	}
+	
+	/**
+	 * Sets the cache used to serve the medium and large files from memory mappings
+	 * @param mappedFileCache cache to use, or null to disable mappings
+	 */
+	public void setMappedFileCache(MappedFileCache mappedFileCache) {
+		this.mappedFileCache = mappedFileCache;
+	}
+	
+	/**
+	 * Gets the cache used to serve the medium and large files from memory mappings
+	 * @return the cache, or null if mappings are disabled
+	 */
+	public MappedFileCache getMappedFileCache() {
+		return mappedFileCache;
+	}
+	
+	/**
+	 * Sets how the text files are compressed
+	 * @param compression settings to use, or null to never compress
+	 */
+	public void setCompression(Compression compression) {
+		this.compression = compression;
+	}
+	
+	/**
+	 * Gets how the text files are compressed
+	 * @return the settings, or null if files are never compressed
+	 */
+	public Compression getCompression() {
+		return compression;
+	}
+	
+	/**
+	 * Sets the index the directory listings are served from
+	 * @param directoryIndex index to use, or null to read the directories each time they are listed
+	 */
+	public void setDirectoryIndex(DirectoryIndex directoryIndex) {
+		this.directoryIndex = directoryIndex;
+	}
+	
+	/**
+	 * Gets the index the directory listings are served from
+	 * @return the index, or null if the directories are read each time they are listed
+	 */
+	public DirectoryIndex getDirectoryIndex() {
+		return directoryIndex;
+	}
+	
+	/**
+	 * Sets the maximum number of entries of a page of a listing served from the index
+	 * @param listingPageSize number of entries, 0 for no limit
+	 */
+	public void setListingPageSize(int listingPageSize) {
+		this.listingPageSize = listingPageSize;
+	}
+	
+	/**
+	 * Gets the maximum number of entries of a page of a listing served from the index
+	 * @return number of entries, 0 for no limit
+	 */
+	public int getListingPageSize() {
+		return listingPageSize;
+	}
+	
+	/**
+	 * Method to get a page of the files in a directory from the index, the files being
+	 * sorted by name. The directory is read the first time it is listed, and then kept
+	 * up to date as files are created and deleted.
 	 * @param dir directory path to be accessed
-	 * @return String representation of the list of files in the directory
+	 * @param offset number of files to skip
+	 * @param limit maximum number of files of the page
+	 * @return the page, or null if the index is disabled
 	 * @throws FileNotFoundException if the folder does not exist
 	 * @throws PathNotAllowedException if the given path is unaccepted
 	 * @throws NoContentException if the directory is empty
+	 * @throws IOException if the directory cannot be read
 	 */
-	public String getCurrentFiles(String dir) throws FileNotFoundException, PathNotAllowedException, NoContentException {		
+	public DirectoryIndex.Page getCurrentFilesPage(String dir, int offset, int limit) throws FileNotFoundException, PathNotAllowedException, NoContentException, IOException {
+		DirectoryIndex index = this.directoryIndex;
+		if(index == null) {
+			return null;
+		}
 		
 		// File object to retrieve the list of files
 		File folder = constructFile(dir);
-		  
-		// List of files in string format to be returned
-		String listOfFilesAndFolders = "";
-				
-		// If the directory exists, get the list of files in it
-		if(folder.exists() && folder.isDirectory()) {
-			File[] directoryFiles = folder.listFiles();
-			for(File file : directoryFiles) {
-				listOfFilesAndFolders += file.getName();
-				if(file.isDirectory()) {
-					listOfFilesAndFolders += "/";
-				}
-				listOfFilesAndFolders += "\n";
-			}
-		} else {
+		DirectoryIndex.Page page;
+		try {
+			page = index.getPage(folder.toPath().toAbsolutePath().normalize(), offset, limit);
+		} catch (FileNotFoundException e) {
+			// The folder does not exist 
+			throw new FileNotFoundException("The folder " + dir + " does not exist.");
+		}
+		if(page.getTotal() == 0) {
+			throw new NoContentException();
+		}
+		return page;
+	}
+	
+	/**
+	 * Method to list the files in a directory while the listing is sent. The directory is
+	 * read one entry at a time, so the listing is never held in memory as a whole.
+	 * @param dir directory path to be accessed
+	 * @return writes the list of files in the directory, one per line, with a / after the folders
+	 * @throws FileNotFoundException if the folder does not exist
+	 * @throws PathNotAllowedException if the given path is unaccepted
+	 * @throws NoContentException if the directory is empty
+	 * @throws IOException if the directory cannot be read
+	 */
+	public StreamedBody.Producer listCurrentFiles(String dir) throws FileNotFoundException, PathNotAllowedException, NoContentException, IOException {
+		
+		// File object to retrieve the list of files
+		File folder = constructFile(dir);
+		BasicFileAttributes attributes = getAttributes(folder);
+		if(attributes == null || !attributes.isDirectory()) {
 			// The folder does not exist 
 			throw new FileNotFoundException("The folder " + dir + " does not exist.");
 		}
-		if(listOfFilesAndFolders.isEmpty()) {
+		
+		final DirectoryStream<Path> entries = Files.newDirectoryStream(folder.toPath());
+		final Iterator<Path> iterator = entries.iterator();
+		if(!iterator.hasNext()) {
+			entries.close();
 			throw new NoContentException();
 		}
-		return listOfFilesAndFolders;
+		return new StreamedBody.Producer() {
+			@Override
+			public boolean writeNext(OutputStream out) throws IOException {
+				// About a chunk of entries at a time
+				int written = 0;
+				while(iterator.hasNext() && written < StreamedBody.CHUNK_BUFFER_SIZE) {
+					Path entry = iterator.next();
+					if(Upload.isTempFile(entry.getFileName().toString())) {
+						continue;
+					}
+					byte[] line = (entry.getFileName() + (Files.isDirectory(entry) ? "/\n" : "\n")).getBytes(StandardCharsets.UTF_8);
+					out.write(line);
+					written += line.length;
+				}
+				return !iterator.hasNext();
+			}
+			
+			@Override
+			public void close() {
+				try {
+					entries.close();
+				} catch (IOException e) {
+					// Nothing left to read from it
+				}
+			}
+		};
 	}
 	
 	/**
-	 * Method to get the content of a file in the data directory
+	 * Gets the content of a file from the cache, reading it into the cache first if it is
+	 * small enough and not cached yet for its current modification date and size
 	 * @param file File object to be accessed
-	 * @return content of the file as a String value
+	 * @return the cached content, or null if the file cannot be cached
 	 * @throws IOException 
-	 * @throws PathNotAllowedException 
 	 * @throws NotAbsoluteFilePathException 
-	 * @throws FileAccessDeniedException 
 	 */
-	public String[] getFile(File file) throws NotAbsoluteFilePathException, IOException, FileAccessDeniedException, FileNotFoundException {
+	public FileCache.Entry getCachedFile(File file) throws NotAbsoluteFilePathException, IOException, FileNotFoundException {
+		FileCache cache = this.fileCache;
+		if(cache == null) {
+			return null;
+		}
+		BasicFileAttributes attributes = getRegularFileAttributes(file);
 		
-		if(file == null || !file.exists() || !file.isFile()) {
-			throw new FileNotFoundException("File " + file.getName() + " is not found, or is not a file.");
+		String absoluteFilePath = file.getAbsolutePath();
+		long lastModified = attributes.lastModifiedTime().toMillis();
+		long size = attributes.size();
+		FileCache.Entry entry = cache.get(absoluteFilePath, lastModified, size);
+		if(entry != null || !cache.accepts(size)) {
+			return entry;
 		}
 		
-		// Check if the file is available
-		// TODO: Replace with actual user identification
-		if(this.attemptToAccessFile(file.getAbsolutePath(), "")) {
-			try {
-				byte[] encodedFileContent = Files.readAllBytes(Paths.get(file.getPath()));
-				String[] fileContent = new String[2];
-				long lastModified = file.lastModified();
-				fileContent[0] = new String (encodedFileContent, StandardCharsets.UTF_8);
-				DateFormat df = new SimpleDateFormat("EEE, dd MMM YYYY HH:mm:ss");
-				df.setTimeZone(TimeZone.getTimeZone("GMT"));
-				fileContent[1] = df.format(lastModified) + " GMT";
-				return fileContent;
-			} catch (IOException e) {
-				throw e;
-			} finally {
-				this.removeFileFromActiveFiles(file.getAbsolutePath());
-			}
-		} else {
-			throw new FileAccessDeniedException("The file is already being consulted by another user");
+		long start = System.nanoTime();
+		byte[] content = Files.readAllBytes(file.toPath());
+		Metrics.getInstance().record(Metrics.FILE_IO, System.nanoTime() - start);
+		entry = new FileCache.Entry(content, lastModified);
+		// Only cache the content if the file did not change while it was read
+		if(content.length == size && file.lastModified() == lastModified) {
+			cache.put(absoluteFilePath, entry);
 		}
+		return entry;
 	}
 	
 	/**
-	 * Writes to a file
-	 * @param file File to be accessed
-	 * @param fileContent the content to be written to the file
-	 * @param append indicates whether the content should be appended to the existing content or overwrite
-	 * @throws FileAccessDeniedException 
+	 * Gets a view of the memory mapping of a file, mapping it first if it is not mapped yet
+	 * for its current modification date and size
+	 * @param file File object to be accessed
+	 * @return a lease on the mapping, to be run once the file is sent, or null if the file is not mapped
 	 * @throws IOException 
 	 * @throws NotAbsoluteFilePathException 
-	 * @throws Exception 
 	 */
-	public void writeFile(File file, String fileContent, boolean append) throws NotAbsoluteFilePathException, FileAccessDeniedException, FileNotFoundException, IOException {
+	public MappedFileCache.Lease getMappedFile(File file) throws NotAbsoluteFilePathException, IOException, FileNotFoundException {
+		MappedFileCache cache = this.mappedFileCache;
+		if(cache == null) {
+			return null;
+		}
+		BasicFileAttributes attributes = getRegularFileAttributes(file);
 		
-		if(file == null) {
-			throw new FileNotFoundException("File is null");
+		String absoluteFilePath = file.getAbsolutePath();
+		long lastModified = attributes.lastModifiedTime().toMillis();
+		long size = attributes.size();
+		if(!cache.accepts(size)) {
+			return null;
+		}
+		MappedFileCache.Lease lease = cache.acquire(absoluteFilePath, lastModified, size);
+		if(lease != null || !cache.reserve(size)) {
+			return lease;
 		}
 		
-		// Check if we have access
-		// TODO: Replace with actual user ID
-		if(this.attemptToAccessFile(file.getAbsolutePath(), "")) {
-			// Create any missing directories
-			file.getParentFile().mkdirs();
-			file.createNewFile();
-			
-			// Write or append to the file
-			try {
-				BufferedWriter outputFileWriter;
-				if(append) {
-					outputFileWriter = new BufferedWriter(new FileWriter(file.getAbsolutePath(), true));
-					outputFileWriter.append(fileContent);
-				} else {
-					outputFileWriter = new BufferedWriter(new FileWriter(file.getAbsolutePath()));
-					outputFileWriter.write(fileContent);
-				}
-				outputFileWriter.close();
-			} catch (IOException e) {
-				throw e;
-			} finally {
-				this.removeFileFromActiveFiles(file.getAbsolutePath());
-			}
-			
-		} else {
-			throw new FileAccessDeniedException("The file is already being consulted by another user");
+		long start = System.nanoTime();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			Metrics.getInstance().record(Metrics.FILE_IO, System.nanoTime() - start);
+			return cache.add(absoluteFilePath, buffer, lastModified);
+		} catch (IOException e) {
+			cache.cancelReservation(size);
+			throw e;
 		}
 	}
 	
 	/**
-	 * File constructor given the file name and directory
-	 * @param filePath Path of the file, including the file name to be constructed
-	 * @return File that is constructed
-	 * @throws PathNotAllowedException
+	 * Opens a file in the data directory so that its content can be streamed to a client
+	 * @param file File object to be accessed
+	 * @return region covering the whole content of the file
+	 * @throws IOException 
+	 * @throws NotAbsoluteFilePathException 
 	 */
-	public File constructFile(String filePath) throws PathNotAllowedException {
-		// Construct the path
-		// For example /COMP445/directory/test.txt
-		if(filePath.contains("..")) {
-			throw new PathNotAllowedException("The directory path cannot contain \"..\"");
-		} else {
-			filePath = filePath.replace('/', '\\');
-			File file = new File(filePath);
-			if(!file.isAbsolute()) {
-				file = new File(System.getProperty("user.dir") + filePath);
-			}
-			return file;
+	public FileRegion openFile(File file) throws NotAbsoluteFilePathException, IOException, FileNotFoundException {
+		
+		getRegularFileAttributes(file);
+		
+		long start = System.nanoTime();
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		Metrics.getInstance().record(Metrics.FILE_IO, System.nanoTime() - start);
+		return new FileRegion(channel, 0, channel.size());
+	}
+	
+	/**
+	 * Gets the compressed content of a file from the cache, compressing it into the cache
+	 * first if it is not cached yet for its current modification date and size
+	 * @param file File object to be accessed
+	 * @param encoding Compression.GZIP or Compression.DEFLATE
+	 * @return the compressed content, or null if the file cannot be compressed on the fly
+	 * @throws IOException 
+	 * @throws NotAbsoluteFilePathException 
+	 */
+	public FileCache.Entry getCompressedFile(File file, String encoding) throws NotAbsoluteFilePathException, IOException, FileNotFoundException {
+		Compression compression = this.compression;
+		if(compression == null) {
+			return null;
+		}
+		BasicFileAttributes attributes = getRegularFileAttributes(file);
+		
+		String absoluteFilePath = file.getAbsolutePath();
+		long lastModified = attributes.lastModifiedTime().toMillis();
+		long size = attributes.size();
+		if(!compression.canCompress(size)) {
+			return null;
+		}
+		FileCache cache = compression.getCache();
+		String key = absoluteFilePath + ";" + encoding;
+		FileCache.Entry entry = cache.get(key, lastModified, size);
+		if(entry != null) {
+			return entry;
+		}
+		
+		long start = System.nanoTime();
+		byte[] content = Files.readAllBytes(file.toPath());
+		Metrics.getInstance().record(Metrics.FILE_IO, System.nanoTime() - start);
+		entry = new FileCache.Entry(compression.compress(content, encoding), lastModified, content.length, encoding);
+		// Only cache the content if the file did not change while it was read
+		if(content.length == size && file.lastModified() == lastModified) {
+			cache.put(key, entry);
+		}
+		return entry;
+	}
+	
+	/**
+	 * Gets the gzip compressed copy of a file kept next to it (file.html.gz for file.html),
+	 * if it is at least as recent as the file
+	 * @param file File object to be accessed
+	 * @return the compressed copy, or null if there is none or it is outdated
+	 * @throws IOException if the attributes of the files cannot be read
+	 */
+	public File getPrecompressedFile(File file) throws IOException {
+		File compressed = new File(file.getPath() + ".gz");
+		BasicFileAttributes attributes = getAttributes(file);
+		BasicFileAttributes compressedAttributes = getAttributes(compressed);
+		if(attributes == null || compressedAttributes == null || !compressedAttributes.isRegularFile()
+				|| compressedAttributes.lastModifiedTime().compareTo(attributes.lastModifiedTime()) < 0) {
+			return null;
+		}
+		return compressed;
+	}
+	
+	/**
+	 * Gets the last modification date of a file, formatted for the Last-Modified header
+	 * @param file File object to be accessed
+	 * @return the date as a String value
+	 */
+	public String getLastModified(File file) {
+		return HTTPDate.format(file.lastModified());
+	}
+
+	/**
+	 * Gets the size and modification time of a file in one access, without reading it.
+	 * The files of the data directory are only accessed if their attributes were not read recently.
+	 * @param file File object to be accessed
+	 * @return the attributes, or null if the file does not exist
+	 * @throws IOException
+	 */
+	public BasicFileAttributes getAttributes(File file) throws IOException {
+		Path path = file.isAbsolute() ? file.toPath() : file.toPath().toAbsolutePath();
+		return pathResolver.getAttributes(path);
+	}
+	
+	/**
+	 * Gets the attributes of a file that must exist and be a regular file
+	 * @param file File object to be accessed
+	 * @return the attributes
+	 * @throws FileNotFoundException if the file does not exist or is not a regular file
+	 * @throws IOException
+	 */
+	private BasicFileAttributes getRegularFileAttributes(File file) throws FileNotFoundException, IOException {
+		BasicFileAttributes attributes = file == null ? null : getAttributes(file);
+		if(attributes == null || !attributes.isRegularFile()) {
+			throw new FileNotFoundException("File " + (file == null ? "" : file.getName()) + " is not found, or is not a file.");
+		}
+		return attributes;
+	}
+
+	/**
+	 * Gets the entity tag of a version of a file, for the ETag header. Two versions of
+	 * a file get the same tag only if they have the same size and modification time.
+	 * @param length size of the file
+	 * @param lastModified modification time of the file in milliseconds
+	 * @return the quoted entity tag
+	 */
+	public static String getETag(long length, long lastModified) {
+		return getETag(length, lastModified, null);
+	}
+
+	/**
+	 * Gets the entity tag of an encoded version of a file, different from the tag of the
+	 * file sent as is and from the tags of the other encodings
+	 * @param length size of the file
+	 * @param lastModified modification time of the file in milliseconds
+	 * @param encoding content coding of the response, or null if the file is sent as is
+	 * @return the quoted entity tag
+	 */
+	public static String getETag(long length, long lastModified, String encoding) {
+		return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified)
+				+ (encoding == null ? "" : "-" + encoding) + "\"";
+	}
+	
+	/**
+	 * Drops everything cached about a file, for example after it was written to
+	 * @param absoluteFilePath absolute path of the file
+	 */
+	private void invalidateCaches(String absoluteFilePath) {
+		pathResolver.invalidate(Paths.get(absoluteFilePath));
+		FileCache cache = this.fileCache;
+		if(cache != null) {
+			cache.invalidate(absoluteFilePath);
+		}
+		MappedFileCache mappedCache = this.mappedFileCache;
+		if(mappedCache != null) {
+			mappedCache.invalidate(absoluteFilePath);
+		}
+		Compression compression = this.compression;
+		if(compression != null && compression.getCache() != null) {
+			compression.getCache().invalidate(absoluteFilePath + ";" + Compression.GZIP);
+			compression.getCache().invalidate(absoluteFilePath + ";" + Compression.DEFLATE);
+		}
+	}
+	
+	/**
+	 * Lists a file written by the server right away, without waiting for the index to see it
+	 * @param file the new or replaced file
+	 */
+	private void fileAdded(File file) {
+		DirectoryIndex index = this.directoryIndex;
+		if(index != null) {
+			index.added(file.toPath().toAbsolutePath().normalize());
 		}
 	}
 	
 	/**
-	 * Attempts to gain permission to consult a file. If the file is currently being consulted by someone,
-	 * permission is denied and false is returned. Otherwise, permission is provided and true is returned.
-	 * @param absoluteFilePath
-	 * @param userId 
-	 * @return boolean true if permission granted, false otherwise
-	 * @throws NotAbsoluteFilePathException
+	 * Creates the temporary file receiving the body of an upload, in the directory of the
+	 * uploaded file so that it can replace it atomically
+	 * @param upload the upload receiving the body
+	 * @param file File to be uploaded
+	 * @throws IOException if the temporary file cannot be created
 	 */
-	public synchronized boolean attemptToAccessFile(String absoluteFilePath, String userId) throws NotAbsoluteFilePathException {
-		File file = new File(absoluteFilePath);
-		if(!file.isAbsolute()) {
-			throw new NotAbsoluteFilePathException("The provided file path is not an absolute path.");
-		} else if(this.currentActiveFiles.containsKey(absoluteFilePath)) {
-			return false;
-		} else {
-			this.currentActiveFiles.put(absoluteFilePath, userId);
-			return true;
+	public void createUpload(Upload upload, File file) throws FileNotFoundException, IOException {
+		if(file == null) {
+			throw new FileNotFoundException("File is null");
+		}
+		
+		// Create any missing directories
+		File directory = file.getAbsoluteFile().getParentFile();
+		directory.mkdirs();
+		// Unlike Files.createTempFile, the file gets the same permissions as any new file
+		Path tempFile = File.createTempFile("." + file.getName() + ".", Upload.TEMP_FILE_SUFFIX, directory).toPath();
+		try {
+			upload.setTempFile(file, tempFile, FileChannel.open(tempFile, StandardOpenOption.WRITE));
+		} catch (IOException e) {
+			Files.deleteIfExists(tempFile);
+			throw e;
 		}
 	}
 	
 	/**
-	 * Removes a file from the list of active files
-	 * @param absoluteFilePath
+	 * Sets whether the uploads are forced to the disk before their requests are answered.
+	 * When they are, the uploads received during an interval are forced together.
+	 * @param durable true to force the uploads to the disk
+	 * @param intervalMillis time in milliseconds the uploads are gathered before being forced together
 	 */
-	public synchronized void removeFileFromActiveFiles(String absoluteFilePath) {
-		this.currentActiveFiles.remove(absoluteFilePath);	
+	public void setDurability(boolean durable, long intervalMillis) {
+		writeCommitter.setDurable(durable, intervalMillis);
 	}
 	
+	/**
+	 * Submits the replacement of a file with the body of an upload, once it is completely
+	 * received. Uploads of the same file replace it in the order they are submitted.
+	 * @param upload the received upload, whose temporary file now belongs to the commit
+	 * @return the commit, ending once the file is replaced, durably if asked
+	 */
+	public WriteCommitter.Commit commitUpload(Upload upload) {
+		return writeCommitter.submit(upload);
+	}
 	
+	/**
+	 * Replaces a file with the body of an upload. The move is atomic, readers that opened
+	 * the previous content keep reading it and new readers see the new content, so it does
+	 * not wait for the readers of the file.
+	 * @param upload the received upload
+	 * @throws IOException if the file cannot be replaced
+	 */
+	private void moveUpload(Upload upload) throws IOException {
+		File file = upload.getFile();
+		try {
+			long start = System.nanoTime();
+			try {
+				Files.move(upload.getTempFile(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(upload.getTempFile(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			Metrics.getInstance().record(Metrics.FILE_IO, System.nanoTime() - start);
+		} finally {
+			invalidateCaches(file.getAbsolutePath());
+		}
+		fileAdded(file);
+	}
+	
+	/**
+	 * File constructor given the path of a request URI, resolved in the data directory
+	 * @param filePath Path of the request URI, for example /directory/test.txt
+	 * @return File that is constructed
+	 * @throws PathNotAllowedException if the path is malformed or leaves the data directory
+	 */
+	public File constructFile(String filePath) throws PathNotAllowedException {
+		return pathResolver.resolve(filePath).getFile();
+	}
+	
+	/**
+	 * Resolves the path of a request URI in the data directory, along with the attributes of its file
+	 * @param filePath Path of the request URI, for example /directory/test.txt
+	 * @return the resolved file
+	 * @throws PathNotAllowedException if the path is malformed or leaves the data directory
+	 */
+	public PathResolver.Entry resolve(String filePath) throws PathNotAllowedException {
+		return pathResolver.resolve(filePath);
+	}
 
 }
@@ -0,0 +1,93 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Range of bytes of an open file waiting to be sent to a client. The bytes are
+ * transferred straight from the file channel to the socket, without ever being
+ * copied into the heap.
+ */
+public class FileRegion {
+
+	// Maximum number of bytes given to a single transfer
+	private static final long MAX_TRANSFER = 8 * 1024 * 1024;
+
+	private final FileChannel channel;
+	// Whether the file is closed with the region, false when other regions still use it
+	private final boolean closeFile;
+	private long position;
+	private long remaining;
+
+	/**
+	 * Constructor
+	 * @param channel open channel of the file, closed once the region is sent
+	 * @param position position of the first byte to send
+	 * @param length number of bytes to send
+	 */
+	public FileRegion(FileChannel channel, long position, long length) {
+		this(channel, position, length, true);
+	}
+
+	private FileRegion(FileChannel channel, long position, long length, boolean closeFile) {
+		this.channel = channel;
+		this.position = position;
+		this.remaining = length;
+		this.closeFile = closeFile;
+	}
+
+	/**
+	 * Creates a region covering part of this one, reading the same open file
+	 * @param offset position of the first byte of the part, from the start of this region
+	 * @param length number of bytes of the part
+	 * @param closeFile true if the file is closed once the part is sent, which must be
+	 * true for exactly one region of the file, sent after all the others
+	 * @return the new region
+	 */
+	public FileRegion slice(long offset, long length, boolean closeFile) {
+		return new FileRegion(channel, position + offset, length, closeFile);
+	}
+
+	/**
+	 * Number of bytes of the region that were not sent yet
+	 * @return number of bytes
+	 */
+	public long getRemaining() {
+		return remaining;
+	}
+
+	/**
+	 * Transfers as many bytes as the target accepts without blocking
+	 * @param target channel to write to
+	 * @return true if the whole region was sent
+	 * @throws IOException if the file cannot be read or the target written
+	 */
+	public boolean transferTo(WritableByteChannel target) throws IOException {
+		while (remaining > 0) {
+			long transferred = channel.transferTo(position, Math.min(remaining, MAX_TRANSFER), target);
+			if (transferred <= 0) {
+				// Either the socket is full, or the file was truncated since it was opened
+				if (position >= channel.size()) {
+					throw new IOException("The file was truncated while being sent");
+				}
+				return false;
+			}
+			position += transferred;
+			remaining -= transferred;
+		}
+		return true;
+	}
+
+	/**
+	 * Closes the file, unless other regions still use it
+	 */
+	public void close() {
+		if (!closeFile) {
+			return;
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Nothing else to do, the region is not used anymore
+		}
+	}
+}
@@ -0,0 +1,685 @@
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import exception.BadRequestException;
+import exception.PayloadTooLargeException;
+
+/**
+ * State kept for each client connection. Bytes read from the socket are
+ * accumulated until a complete request (request line, headers and a body of
+ * Content-Length bytes) is available, so that a request split over several
+ * reads is never handled in pieces. The headers are parsed as the bytes
+ * arrive, without converting them to a String. The body of an upload is not
+ * accumulated: the request is handed out with its headers, and its body is
+ * then written to a file by a worker as it arrives, the socket not being read
+ * while the worker writes the received bytes. Several requests can be
+ * processed at the same time (pipelining), and their responses are queued on
+ * the connection in the order of the requests, then written as fast as the
+ * socket accepts them, without ever blocking the reactor.
+ */
+public class HTTPConnection {
+
+	// Maximum size of a request body kept in memory
+	public static final int MAX_BODY_SIZE = 10 * 1024 * 1024;
+	// Size of the read buffer while a body is written to a file
+	public static final int UPLOAD_BUFFER_SIZE = 64 * 1024;
+	// Maximum number of bytes read at once, so that an upload does not hold the reactor
+	public static final int MAX_READ_BYTES = 1024 * 1024;
+	// Maximum number of buffers given to a single gathering write
+	public static final int MAX_GATHERED_BUFFERS = 16;
+
+	private final SocketChannel channel;
+	// Address of the client for the access log, null if unknown
+	private final SocketAddress remoteAddress;
+	private final BufferPool bufferPool;
+
+	// Bytes received and not yet handed out as a request (null when idle)
+	private ByteBuffer requestBuffer;
+	// Parser of the request at the start of the buffer
+	private final HTTPRequestParser parser;
+	// Maximum size of the request line and headers
+	private final int maxHeaderSize;
+	// Whether the request at the start of the buffer was handed out and must be consumed
+	private boolean requestTaken;
+	// Maximum size of the body of an upload
+	private final long maxUploadSize;
+	// Upload whose body is being received, null if none
+	private Upload upload;
+	// Whether a worker is writing the received bytes of the body, the buffer belonging to it meanwhile
+	private boolean writingBody;
+	// Whether the write of the worker reached the end of the body
+	private boolean bodyComplete;
+	// Error of the framing of the body found by the worker, null if none
+	private Exception bodyError;
+
+	// Data waiting to be written to the socket, in order: ByteBuffers, FileRegions, StreamedBodies, and after
+	// the parts of each response the response itself, released once they are written
+	private final ArrayDeque<Object> outbound;
+	// Array reused to hand the queued buffers to the gathering write
+	private final ByteBuffer[] gatheredBuffers;
+
+	// Key of the connection in the selector of its reactor
+	private SelectionKey key;
+	// Number of requests received on this connection
+	private int requestCount;
+	// Time spent parsing the request being received, over all its reads
+	private long parseNanos;
+	// Time at which the connection is closed if nothing happens on it, Long.MAX_VALUE while a request is processed
+	private long idleDeadline;
+	private boolean inTimeoutWheel;
+	// Responses of the requests taken out of the connection and not queued yet, in the order of the requests
+	private final ArrayDeque<PendingResponse> pendingResponses;
+	// Request taken out of the connection, waiting for the running ones before being processed
+	private PendingResponse heldResponse;
+	// Number of requests of the connection being processed by the workers
+	private int runningCount;
+	// Whether the request being processed must be the only one running, because it modifies a file
+	private boolean exclusiveRunning;
+	// Whether no more requests are taken out of the connection
+	private boolean closing;
+	// Whether the connection is closed once the queued responses are written
+	private boolean closeAfterWrite;
+	private boolean closed;
+
+	/**
+	 * Constructor
+	 * @param channel socket of the client
+	 * @param bufferPool pool to borrow the read buffers from
+	 * @param maxHeaderCount maximum number of headers of a request
+	 * @param maxHeaderSize maximum size of the request line and headers
+	 * @param maxUploadSize maximum size of the body of an upload
+	 */
+	public HTTPConnection(SocketChannel channel, BufferPool bufferPool, int maxHeaderCount, int maxHeaderSize, long maxUploadSize) {
+		this.channel = channel;
+		this.remoteAddress = getRemoteAddress(channel);
+		this.bufferPool = bufferPool;
+		this.parser = new HTTPRequestParser(maxHeaderCount, maxHeaderSize);
+		this.maxHeaderSize = maxHeaderSize;
+		this.maxUploadSize = maxUploadSize;
+		this.outbound = new ArrayDeque<Object>();
+		this.gatheredBuffers = new ByteBuffer[MAX_GATHERED_BUFFERS];
+		this.pendingResponses = new ArrayDeque<PendingResponse>();
+	}
+
+	public SocketChannel getChannel() {
+		return channel;
+	}
+
+	private static SocketAddress getRemoteAddress(SocketChannel channel) {
+		try {
+			return channel.getRemoteAddress();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	public SelectionKey getKey() {
+		return key;
+	}
+
+	public void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	/**
+	 * Number of requests taken out of this connection so far
+	 * @return number of requests
+	 */
+	public int getRequestCount() {
+		return requestCount;
+	}
+
+	public long getIdleDeadline() {
+		return idleDeadline;
+	}
+
+	/**
+	 * Sets the time at which the connection is closed if nothing happens on it
+	 * @param idleDeadline time in milliseconds, Long.MAX_VALUE to never close it
+	 */
+	public void setIdleDeadline(long idleDeadline) {
+		this.idleDeadline = idleDeadline;
+	}
+
+	public boolean isInTimeoutWheel() {
+		return inTimeoutWheel;
+	}
+
+	public void setInTimeoutWheel(boolean inTimeoutWheel) {
+		this.inTimeoutWheel = inTimeoutWheel;
+	}
+
+	public boolean isClosing() {
+		return closing;
+	}
+
+	/**
+	 * Stops taking requests out of the connection. The connection is closed once the
+	 * responses of the requests already taken are written.
+	 * @param closing
+	 */
+	public void setClosing(boolean closing) {
+		this.closing = closing;
+	}
+
+	/**
+	 * Reserves the place of the response of a new request, after the ones of the previous requests
+	 * @param requestHandler handler of the request
+	 * @return place to put the response in once it is ready
+	 */
+	public PendingResponse addPendingResponse(HTTPRequestHandler requestHandler) {
+		PendingResponse pendingResponse = new PendingResponse(requestHandler);
+		pendingResponses.add(pendingResponse);
+		return pendingResponse;
+	}
+
+	public PendingResponse getHeldResponse() {
+		return heldResponse;
+	}
+
+	/**
+	 * Sets the request that waits for the running ones before being processed
+	 * @param heldResponse place of the response of the request, null once it is processed
+	 */
+	public void setHeldResponse(PendingResponse heldResponse) {
+		this.heldResponse = heldResponse;
+	}
+
+	/**
+	 * Indicates if a request can be processed now. Requests reading files run side by side,
+	 * while a request modifying a file waits for the others and runs alone.
+	 * @param exclusive true if the request modifies a file
+	 * @return true if the request can be processed now
+	 */
+	public boolean canRun(boolean exclusive) {
+		return !exclusiveRunning && (!exclusive || runningCount == 0);
+	}
+
+	/**
+	 * Records that a request started being processed
+	 * @param exclusive true if the request modifies a file
+	 */
+	public void requestStarted(boolean exclusive) {
+		runningCount++;
+		exclusiveRunning = exclusive;
+	}
+
+	/**
+	 * Records that a request finished being processed
+	 */
+	public void requestFinished() {
+		runningCount--;
+		exclusiveRunning = false;
+	}
+
+	/**
+	 * Number of requests whose response is not queued yet
+	 * @return number of requests in flight
+	 */
+	public int getPendingResponseCount() {
+		return pendingResponses.size();
+	}
+
+	/**
+	 * Queues the responses that are ready, stopping at the first one that is not, so that
+	 * responses are always written in the order of the requests
+	 * @return true if at least one response was queued
+	 */
+	public boolean queueReadyResponses() {
+		boolean queued = false;
+		while (!pendingResponses.isEmpty() && pendingResponses.peek().response != null) {
+			HTTPResponse response = pendingResponses.poll().response;
+			enqueue(response);
+			if (!response.isKeepAlive()) {
+				closeAfterWrite = true;
+			}
+			queued = true;
+		}
+		// Nothing is left to write after the last response when no more requests are taken
+		if (closing && pendingResponses.isEmpty()) {
+			closeAfterWrite = true;
+		}
+		return queued;
+	}
+
+	public boolean isCloseAfterWrite() {
+		return closeAfterWrite;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Reads every byte currently available on the socket without blocking
+	 * @return number of bytes read, or -1 if the peer closed the connection
+	 * @throws IOException if the read fails
+	 * @throws BadRequestException if the headers are malformed or too large
+	 * @throws PayloadTooLargeException if the announced body is bigger than MAX_BODY_SIZE
+	 */
+	public int read() throws IOException, BadRequestException, PayloadTooLargeException {
+		if (writingBody) {
+			// The buffer belongs to the worker writing the body
+			return 0;
+		}
+		if (requestBuffer == null) {
+			requestBuffer = bufferPool.acquire(upload != null ? UPLOAD_BUFFER_SIZE : 0);
+		} else if (upload != null && requestBuffer.position() == 0 && requestBuffer.capacity() < UPLOAD_BUFFER_SIZE) {
+			// Read the rest of the body in bigger pieces
+			bufferPool.release(requestBuffer);
+			requestBuffer = bufferPool.acquire(UPLOAD_BUFFER_SIZE);
+		}
+		int total = 0;
+		for (; ; ) {
+			// No request is taken anymore, or the socket must leave room for the other clients
+			if ((closing && upload == null) || total >= MAX_READ_BYTES) {
+				break;
+			}
+			if (!requestBuffer.hasRemaining()) {
+				// The received bytes of a body are written before more are read, and the bytes
+				// of the following request are left in the socket until this one is taken
+				if (upload != null || isRequestComplete()) {
+					break;
+				}
+				grow();
+			}
+			int n = channel.read(requestBuffer);
+			if (n == -1) {
+				return -1;
+			}
+			if (n == 0) {
+				break;
+			}
+			total += n;
+			Metrics.getInstance().addBytesIn(n);
+			if (upload == null && !parser.isComplete()) {
+				parseHeaders();
+			}
+		}
+		if (requestBuffer.position() == 0) {
+			releaseBuffer();
+		}
+		return total;
+	}
+
+	/**
+	 * Indicates if the body of the request handed out by nextRequest is received after
+	 * the request is handed out, to be written to a file, instead of with the request
+	 * @return true for an upload or a body sent in chunks
+	 */
+	public boolean isBodyStreamed() {
+		return parser.isChunked() || parser.isMethod("POST");
+	}
+
+	/**
+	 * Writes the body of the request handed out last to an upload as it is received,
+	 * starting with the bytes already received, see writeBody. No other request is
+	 * handed out until the whole body is received.
+	 * @param upload upload of the request, after consumeRequest was called
+	 */
+	public void receiveBody(Upload upload) {
+		if (upload.isComplete()) {
+			return;
+		}
+		this.upload = upload;
+	}
+
+	/**
+	 * Indicates if received bytes of the body are waiting to be written by a worker
+	 * @return true if writeBody should be run by a worker
+	 */
+	public boolean hasBodyToWrite() {
+		return upload != null && !writingBody && requestBuffer != null && requestBuffer.position() > 0;
+	}
+
+	/**
+	 * Hands the received bytes of the body over to a worker, which calls writeBody. The
+	 * buffer belongs to the worker until bodyWritten is called, and the socket is not read.
+	 */
+	public void startBodyWrite() {
+		writingBody = true;
+	}
+
+	/**
+	 * Writes the received bytes of the body to the upload. Called by a worker, since the
+	 * upload writes to the disk.
+	 */
+	public void writeBody() {
+		requestBuffer.flip();
+		try {
+			bodyComplete = upload.write(requestBuffer);
+		} catch (BadRequestException | PayloadTooLargeException e) {
+			bodyError = e;
+		}
+		requestBuffer.compact();
+	}
+
+	/**
+	 * Takes the buffer back from the worker once the received bytes of the body are written,
+	 * and parses the bytes after the body, if any, as the next request. If the body is
+	 * malformed or too big, the upload fails and no more requests are taken, since the next
+	 * one cannot be found anymore.
+	 * @param error error that kept the worker from writing the body, null if it ran
+	 * @throws BadRequestException if the headers of the request after the body are malformed
+	 * @throws PayloadTooLargeException if the body of the request after the body is too big
+	 */
+	public void bodyWritten(Exception error) throws BadRequestException, PayloadTooLargeException {
+		writingBody = false;
+		if (error == null) {
+			error = bodyError;
+		}
+		bodyError = null;
+		if (closed) {
+			// Left by close to the worker
+			upload.discard();
+			upload = null;
+			releaseBuffer();
+			return;
+		}
+		if (error != null) {
+			upload.fail(error);
+			upload = null;
+			closing = true;
+			releaseBuffer();
+			return;
+		}
+		if (!bodyComplete) {
+			return;
+		}
+		bodyComplete = false;
+		upload = null;
+		if (requestBuffer.position() > 0) {
+			parseHeaders();
+		} else {
+			releaseBuffer();
+		}
+	}
+
+	/**
+	 * Indicates if the body of an upload is being received
+	 * @return true until the last byte of the body is received
+	 */
+	public boolean isReceivingBody() {
+		return upload != null;
+	}
+
+	/**
+	 * Indicates if a worker is writing the received bytes of the body
+	 * @return true until bodyWritten is called
+	 */
+	public boolean isWritingBody() {
+		return writingBody;
+	}
+
+	/**
+	 * Hands out the next complete request of the received bytes. The request stays in
+	 * the buffer of the connection and must be read before calling consumeRequest.
+	 * @return the parsed request, or null if it is not fully received yet
+	 * @throws BadRequestException if the headers are malformed
+	 * @throws PayloadTooLargeException if the announced body is too big
+	 */
+	public HTTPRequestParser nextRequest() throws BadRequestException, PayloadTooLargeException {
+		if (requestBuffer == null || requestTaken) {
+			return null;
+		}
+		// Also points the parser to the buffer in case it was replaced by a bigger one
+		parseHeaders();
+		if (!isRequestComplete()) {
+			return null;
+		}
+		requestTaken = true;
+		requestCount++;
+		return parser;
+	}
+
+	/**
+	 * Drops the request handed out by nextRequest from the buffer and keeps whatever
+	 * follows it for the next request
+	 */
+	public void consumeRequest() {
+		if (!requestTaken) {
+			return;
+		}
+		requestTaken = false;
+		// A streamed body is received once the request is consumed
+		int requestLength = (int) (parser.getHeaderLength() + (isBodyStreamed() ? 0 : parser.getContentLength()));
+		requestBuffer.flip();
+		requestBuffer.position(requestLength);
+		requestBuffer.compact();
+		parser.reset();
+		if (requestBuffer.position() == 0) {
+			releaseBuffer();
+		}
+	}
+
+	/**
+	 * Queues bytes to be written to the client after the ones already queued
+	 * @param data bytes to write, ready to be read
+	 */
+	public void enqueue(ByteBuffer data) {
+		outbound.add(data);
+	}
+
+	/**
+	 * Queues a response to be written to the client after the data already queued
+	 * @param response response to write
+	 */
+	public void enqueue(HTTPResponse response) {
+		response.setWriteStartNanos(System.nanoTime());
+		outbound.add(response.getHead());
+		outbound.addAll(response.getBodyParts());
+		// Marks the end of the response, to release it once everything before is written
+		outbound.add(response);
+	}
+
+	/**
+	 * Indicates if some queued bytes were not written to the socket yet
+	 * @return true if bytes are waiting to be written
+	 */
+	public boolean hasPendingWrites() {
+		return !outbound.isEmpty();
+	}
+
+	/**
+	 * Indicates if the queued data cannot be written until the producer of a streamed body
+	 * writes more of it, rather than until the socket accepts more
+	 * @return true while waiting for the producer
+	 */
+	public boolean isWaitingForBody() {
+		Object next = outbound.peek();
+		return next instanceof StreamedBody && ((StreamedBody) next).isWaiting();
+	}
+
+	/**
+	 * Writes as much queued data as the socket accepts without blocking. Consecutive
+	 * buffers are handed to a single gathering write, file regions are transferred
+	 * straight from the file to the socket.
+	 * @return true if all the queued data was written, false if the socket is full
+	 * @throws IOException if the write fails
+	 */
+	public boolean flush() throws IOException {
+		while (!outbound.isEmpty()) {
+			Object next = outbound.peek();
+			if (next instanceof FileRegion) {
+				FileRegion region = (FileRegion) next;
+				long remaining = region.getRemaining();
+				boolean sent = region.transferTo(channel);
+				Metrics.getInstance().addBytesOut(remaining - region.getRemaining());
+				if (!sent) {
+					return false;
+				}
+				region.close();
+				outbound.poll();
+				continue;
+			}
+			if (next instanceof StreamedBody) {
+				StreamedBody streamedBody = (StreamedBody) next;
+				long sentBefore = streamedBody.getBytesSent();
+				boolean sent;
+				try {
+					sent = streamedBody.transferTo(channel);
+				} finally {
+					Metrics.getInstance().addBytesOut(streamedBody.getBytesSent() - sentBefore);
+				}
+				if (!sent) {
+					return false;
+				}
+				outbound.poll();
+				continue;
+			}
+			if (next instanceof HTTPResponse) {
+				outbound.poll();
+				HTTPResponse response = (HTTPResponse) next;
+				AccessLog.Entry entry = response.getAccessLogEntry();
+				if (entry != null) {
+					long now = System.nanoTime();
+					Metrics metrics = Metrics.getInstance();
+					metrics.responseWritten(entry.getStatus());
+					metrics.record(Metrics.WRITE, now - response.getWriteStartNanos());
+					metrics.record(Metrics.REQUEST, now - entry.getStartNanos());
+					AccessLog.getInstance().log(entry, response.getBytesSent(), remoteAddress);
+				}
+				response.release();
+				continue;
+			}
+
+			int count = 0;
+			for (Object data : outbound) {
+				if (count == gatheredBuffers.length || !(data instanceof ByteBuffer)) {
+					break;
+				}
+				gatheredBuffers[count++] = (ByteBuffer) data;
+			}
+			long written = channel.write(gatheredBuffers, 0, count);
+			Metrics.getInstance().addBytesOut(written);
+			Arrays.fill(gatheredBuffers, 0, count, null);
+
+			// Drop the buffers that were completely written
+			while (outbound.peek() instanceof ByteBuffer && !((ByteBuffer) outbound.peek()).hasRemaining()) {
+				outbound.poll();
+			}
+			if (written == 0 && outbound.peek() instanceof ByteBuffer) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Releases the resources held by the connection
+	 */
+	public void close() {
+		closed = true;
+		// While a worker writes the body, the buffer and the upload are left to bodyWritten
+		if (!writingBody) {
+			releaseBuffer();
+			// The bodies received for requests that will never be processed are not kept
+			if (upload != null) {
+				upload.discard();
+				upload = null;
+			}
+			if (heldResponse != null) {
+				heldResponse.getRequestHandler().discardUpload();
+			}
+		}
+		for (Object data : outbound) {
+			if (data instanceof FileRegion) {
+				((FileRegion) data).close();
+			} else if (data instanceof HTTPResponse) {
+				((HTTPResponse) data).release();
+			}
+		}
+		outbound.clear();
+		for (PendingResponse pendingResponse : pendingResponses) {
+			if (pendingResponse.response != null) {
+				pendingResponse.response.release();
+			}
+		}
+		pendingResponses.clear();
+	}
+
+	/**
+	 * Parses the received bytes of the current request, resuming where the previous call stopped
+	 */
+	private void parseHeaders() throws BadRequestException, PayloadTooLargeException {
+		if (parser.isComplete()) {
+			// Only points the parser to the buffer, in case it was replaced by a bigger one
+			parser.parse(requestBuffer);
+			return;
+		}
+		long start = System.nanoTime();
+		boolean complete = parser.parse(requestBuffer);
+		parseNanos += System.nanoTime() - start;
+		if (complete) {
+			Metrics.getInstance().record(Metrics.PARSE, parseNanos);
+			parseNanos = 0;
+			long maxBodySize = isBodyStreamed() ? maxUploadSize : MAX_BODY_SIZE;
+			if (parser.getContentLength() > maxBodySize) {
+				throw new PayloadTooLargeException("The request body is larger than " + maxBodySize + " bytes");
+			}
+		}
+	}
+
+	/**
+	 * Replaces the buffer with a bigger one once it is full. Before the end of the
+	 * headers is known the buffer doubles, afterwards it grows to the size of the
+	 * request. The pool rounds the size up to its next size class.
+	 */
+	private void grow() throws BadRequestException {
+		int capacity;
+		if (!parser.isComplete()) {
+			if (requestBuffer.capacity() >= maxHeaderSize) {
+				throw new BadRequestException("The request headers are too large");
+			}
+			capacity = Math.min(requestBuffer.capacity() * 2, maxHeaderSize);
+		} else {
+			capacity = (int) (parser.getHeaderLength() + parser.getContentLength());
+		}
+		ByteBuffer bigger = bufferPool.acquire(capacity);
+		requestBuffer.flip();
+		bigger.put(requestBuffer);
+		bufferPool.release(requestBuffer);
+		requestBuffer = bigger;
+	}
+
+	private boolean isRequestComplete() {
+		return parser.isComplete() && (isBodyStreamed()
+				|| requestBuffer.position() >= parser.getHeaderLength() + parser.getContentLength());
+	}
+
+	private void releaseBuffer() {
+		if (requestBuffer != null) {
+			bufferPool.release(requestBuffer);
+			requestBuffer = null;
+		}
+	}
+
+	/**
+	 * Place of the response of a request among the responses of the connection
+	 */
+	public static class PendingResponse {
+		private final HTTPRequestHandler requestHandler;
+		private HTTPResponse response;
+
+		PendingResponse(HTTPRequestHandler requestHandler) {
+			this.requestHandler = requestHandler;
+		}
+
+		public HTTPRequestHandler getRequestHandler() {
+			return requestHandler;
+		}
+
+		/**
+		 * Puts the response in its place once it is ready
+		 * @param response
+		 */
+		public void setResponse(HTTPResponse response) {
+			this.response = response;
+		}
+	}
+}
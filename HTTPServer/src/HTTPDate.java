@@ -0,0 +1,88 @@
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dates in the format of the Date and Last-Modified headers (RFC 7231 IMF-fixdate).
+ * The current date is formatted once per second by a background thread, so that
+ * responses only copy its bytes.
+ */
+public class HTTPDate {
+
+	private static final DateTimeFormatter FORMATTER =
+			DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+	// Singleton instance
+	private static final HTTPDate instance = new HTTPDate();
+
+	// Bytes of the current date, replaced every second
+	private volatile byte[] now;
+
+	/**
+	 * Get instance of a Singleton
+	 * @return HTTPDate singleton instance
+	 */
+	public static HTTPDate getInstance() {
+		return instance;
+	}
+
+	private HTTPDate() {
+		refresh();
+		ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "date-ticker");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		ticker.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				refresh();
+			}
+		}, 1000 - System.currentTimeMillis() % 1000, 1000, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Current date, at most one second old
+	 * @return the formatted date as ASCII bytes, not to be modified
+	 */
+	public byte[] getNow() {
+		return now;
+	}
+
+	/**
+	 * Formats a date for a header
+	 * @param millis time in milliseconds since the epoch
+	 * @return the formatted date
+	 */
+	public static String format(long millis) {
+		return FORMATTER.format(Instant.ofEpochMilli(millis));
+	}
+
+	/**
+	 * Parses a date sent by a client, for example in If-Modified-Since
+	 * @param value the date in the format of the Date header
+	 * @return time in milliseconds since the epoch, -1 if the date is not valid
+	 */
+	public static long parse(String value) {
+		try {
+			return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+
+	private void refresh() {
+		now = format(System.currentTimeMillis()).getBytes(StandardCharsets.US_ASCII);
+	}
+}
@@ -1,33 +1,77 @@
-import java.util.HashMap;
-import java.util.TimeZone;
-
 import exception.BadRequestException;
-import exception.FileAccessDeniedException;
 import exception.NoContentException;
 import exception.NotAbsoluteFilePathException;
 import exception.NotImplementedException;
 import exception.PathNotAllowedException;
+import exception.PayloadTooLargeException;
+import exception.ServiceUnavailableException;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class HTTPRequestHandler {
 
 	FileManager fileManager;
 
 	private static final String PROTOCOL = "HTTP/1.0";
+	private static final String PROTOCOL_1_1 = "HTTP/1.1";
 	public static final String DEFAULT_HOST = "localhost:8080";
-	private String statusLine;
+	// Prometheus text format
+	private static final String METRICS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	private int statusCode;
+	// Protocol of the response, the same as the request's when it is supported
+	private String protocol;
+	// Whether the server allows this request to keep the connection open
+	private boolean keepAliveAllowed;
+	// Whether the connection is kept open after the response
+	private boolean keepAlive;
 	private String requestMethod;
-	private HashMap<String,String> requestHeaders;
-	private String requestBody;
 	private String responseBody;
-	String[] errorCode;
+	// Body of the request, received after the request line and headers, null if there is none
+	private Upload upload;
+	// Commit of the upload of a POST request, which the response waits for
+	private WriteCommitter.Commit commit;
+	private FileRegion fileBody;
+	private ByteBuffer cachedBody;
+	private MappedFileCache.Lease mappedFile;
+	// Body written while the response is sent, when its length is not known in advance
+	private StreamedBody streamedBody;
+	// Last-Modified and ETag of the file sent, null to leave them out
+	private Validators validators;
+	// Validators of the version of the file the client already has, null if it sent none
+	private String ifNoneMatch;
+	private String ifModifiedSince;
+	// Ranges of the file asked for by the client, and the validator they depend on, null if it sent none
+	private String range;
+	private String ifRange;
+	// Parts of the body when only ranges of the file are sent, null to send the whole body
+	private List<Object> bodyParts;
+	// Value of the Content-Range header, null to leave it out
+	private String contentRange;
+	// Value of the Content-Type header, null for text/html
+	private String contentType;
+	// Encodings accepted by the client, null if it sent none
+	private String acceptEncoding;
+	// Value of the Content-Encoding header, null if the file is sent as is
+	private String contentEncoding;
+	// Whether the body depends on the encodings accepted by the client
+	private boolean varyEncoding;
+	// Query of the request URI, without the ?, null if there is none
+	private String query;
+	// Value of the Link header pointing to the next page of a listing, null to leave it out
+	private String nextPage;
+
+	// System.nanoTime when the request was received, for the access log
+	private final long startNanos;
 
 	// Server-related
 	Boolean verbose;
@@ -39,224 +83,621 @@ public class HTTPRequestHandler {
 	 * Constructor
 	 * @param verbose
 	 * @param port
-	 * @param dir
 	 */
-	public HTTPRequestHandler(Boolean verbose, int port, String dir) {
-		statusLine = "";
+	public HTTPRequestHandler(Boolean verbose, int port) {
+		statusCode = 200;
+		protocol = PROTOCOL;
+		keepAliveAllowed = false;
+		keepAlive = false;
 		requestMethod = "";
-		requestBody = "";
 		responseBody = "";
-		errorCode = new String[2];
 		this.verbose = verbose;
 		this.port = port;
-		this.requestURI = dir;
+		this.requestURI = "";
+		this.startNanos = System.nanoTime();
 		fileManager = FileManager.getInstance();
-		requestHeaders = new HashMap<String,String>();
 	}
 
 	/**
-	 * Method that will handle a request
-	 * @param request the request in String format
+	 * Allows the connection to be kept open after the response, if the client wants it
+	 * @param keepAliveAllowed
 	 */
-	public String handleRequest(String request) {
-		try {
-			// Split into one string for request line and header, and another for the body
-			String[] strArr = request.split("\r\n\r\n");
-			System.out.println(request);
-			if (strArr.length == 2) {
-				requestBody = strArr[1]; // 2nd part is the request body
-				
-			}
-			String[] requestLineAndHeaders = strArr[0].split("\r\n"); // 1st part is the request line with headers. Split this part into separate lines
+	public void setKeepAliveAllowed(boolean keepAliveAllowed) {
+		this.keepAliveAllowed = keepAliveAllowed;
+	}
 
-			// If there is only one line or less, it is not a valid request
-			if (requestLineAndHeaders.length <= 1) {
-				errorCode = getErrorCode(new BadRequestException());
-				statusLine = PROTOCOL + " "  + errorCode[0] + " " + errorCode[1];
-			}
-			else {
-				// Get all the headers
-				getHeaders(requestLineAndHeaders);
-				// Get the host and remove it from the list of headers
-				this.host = requestHeaders.get("Host");
-				requestHeaders.remove("Host");
-				// Parse the first line (request line)
-				getRequest(requestLineAndHeaders[0]);
-				// Parse request
-				parseRequest();
+	/**
+	 * Indicates if the connection is kept open after the response, known once the request is read
+	 * @return true if the connection is kept open
+	 */
+	public boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	/**
+	 * Indicates if the request only reads files, known once the request is read
+	 * @return true for a GET request
+	 */
+	public boolean isReadOnly() {
+		return requestMethod.equalsIgnoreCase("GET");
+	}
+
+	/**
+	 * Method that will read the request line and the headers of a request, without accessing any file.
+	 * Only the parts of the request used by the server are copied out of the parser.
+	 * If the request is not valid, the status line is set to the corresponding error.
+	 * @param request the parsed request, whose buffer holds the body
+	 * @return true if the request is valid and can be processed, false otherwise
+	 */
+	public boolean readRequest(HTTPRequestParser request) {
+		try {
+			// Parse the first line (request line)
+			getRequest(request);
+			// Get the headers used by the server
+			String clientConnection = getHeaders(request);
+			// Keep the connection open if both the client and the server want to.
+			// HTTP/1.1 clients keep it open unless they ask to close it, HTTP/1.0 clients must ask for it.
+			if (protocol.equals(PROTOCOL_1_1)) {
+				keepAlive = keepAliveAllowed && !"close".equalsIgnoreCase(clientConnection);
+			} else {
+				keepAlive = keepAliveAllowed && "keep-alive".equalsIgnoreCase(clientConnection);
 			}
+			return true;
 		}
 		catch (Exception e) {
-			errorCode = getErrorCode(e);
-			statusLine = PROTOCOL + " "  + errorCode[0] + " " + errorCode[1];
+			statusCode = getErrorCode(e);
+			return false;
 		}
-		// Generate a response and return to the client
-		return createResponse();
 	}
 
 	/**
-	 * Method to get the request line and set the attributes to the corresponding value
-	 * @param request request line as a String value
+	 * Method to prepare the reception of the body of a request read by readRequest, once its
+	 * headers are read. The body of a POST request is written to a temporary file as it is
+	 * received, the body of any other request is dropped. If the temporary file cannot be
+	 * created, the body is dropped too and the error is answered once it is received.
+	 * @param request the parsed request
+	 * @param maxSize maximum size of the body
+	 * @return the upload receiving the body
 	 */
-	public void getRequest(String request) throws BadRequestException, NotImplementedException {
-		String[] strArr = request.split(" ");
+	public Upload openUpload(HTTPRequestParser request, long maxSize) {
+		boolean chunked = request.isChunked();
+		long contentLength = request.getContentLength();
+		if (requestMethod.equals("POST") && Metrics.getInstance().isPath(this.requestURI)) {
+			upload = new Upload(chunked, contentLength, maxSize, new PathNotAllowedException("The path " + this.requestURI + " is reserved"));
+		} else if (requestMethod.equals("POST")) {
+			// Resolving the path and creating the temporary file access the disk, they are done by the worker writing the body
+			final String uri = this.requestURI;
+			upload = new Upload(new Upload.Opener() {
+				@Override
+				public void open(Upload upload) throws Exception {
+					fileManager.createUpload(upload, fileManager.constructFile(uri));
+				}
+			}, chunked, contentLength, maxSize);
+		} else {
+			upload = new Upload(chunked, contentLength, maxSize, null);
+		}
+		return upload;
+	}
 
-		if (strArr.length <= 2) {
-			throw new BadRequestException();
+	/**
+	 * Method to drop the body received for the request, when it is not processed
+	 */
+	public void discardUpload() {
+		if (upload != null) {
+			upload.discard();
 		}
-		else {
-			this.requestMethod = strArr[0]; // GET or POST
-			if (this.requestMethod == "GET" && this.requestMethod != "POST") {
-				throw new NotImplementedException();
+	}
+
+	/**
+	 * Method to get the commit of the upload of a POST request processed by parseRequest.
+	 * Its response is created once the commit ended, and commitEnded was called.
+	 * @return the commit, or null if the response can be created right away
+	 */
+	public WriteCommitter.Commit getCommit() {
+		return commit;
+	}
+
+	/**
+	 * Method to set the status of a POST request once the commit of its upload ended
+	 */
+	public void commitEnded() {
+		Exception e = commit.getError();
+		if (e != null) {
+			statusCode = getErrorCode(e);
+			if (verbose) {
+				AccessLog.getInstance().debug("Server: Exception thrown with code " + statusCode + "\n");
 			}
-			this.requestURI += strArr[1]; // directory should be "/COMP445 + requestURI"
+		} else if (verbose) {
+			AccessLog.getInstance().debug("[DEBUG: " + upload.getSize() + " bytes successfully written to " + this.requestURI + "]\n");
 		}
 	}
 
 	/**
-	 * Method to put headers into the HashMap requestHeaders 
-	 * @param strArr array of header lines as String values
+	 * Method that will create the response for a request that could not be read
+	 * @param e Exception raised while receiving the request
+	 * @return the error response
 	 */
-	public void getHeaders(String[] strArr) {
-		for (int i = 1; i < strArr.length; i++) {
-			String[] keyValues = strArr[i].split(" ");
-			int keyLength = keyValues[0].length();
-			requestHeaders.put(keyValues[0].substring(0, keyLength-1), keyValues[1]); //keyLength - 1 so that you don't take the ':'
+	public HTTPResponse handleError(Exception e) {
+		statusCode = getErrorCode(e);
+		keepAlive = false;
+		discardUpload();
+		return createHTTPResponse();
+	}
 
+	/**
+	 * Method to get the request line and set the attributes to the corresponding value
+	 * @param request the parsed request
+	 */
+	public void getRequest(HTTPRequestParser request) throws NotImplementedException {
+		if (request.isVersion(PROTOCOL_1_1)) {
+			this.protocol = PROTOCOL_1_1;
+		}
+		// Reuse the constants for the supported methods instead of copying the bytes
+		if (request.isMethod("GET")) {
+			this.requestMethod = "GET";
+		} else if (request.isMethod("POST")) {
+			this.requestMethod = "POST";
+		} else {
+			this.requestMethod = request.getMethod();
+			throw new NotImplementedException();
+		}
+		String uri = request.getURI();
+		int queryStart = uri.indexOf('?');
+		if (queryStart >= 0) {
+			this.query = uri.substring(queryStart + 1);
+			uri = uri.substring(0, queryStart);
+		}
+		// Resolved in the data directory by the file manager
+		this.requestURI = uri;
+	}
+
+	/**
+	 * Method to read the headers used by the server
+	 * @param request the parsed request
+	 * @return the value of the Connection header sent by the client, null if there is none
+	 * @throws BadRequestException if an HTTP/1.1 request has no Host header
+	 */
+	public String getHeaders(HTTPRequestParser request) throws BadRequestException {
+		this.host = request.getHeader("Host");
+		if (host == null && protocol.equals(PROTOCOL_1_1)) {
+			throw new BadRequestException("Missing Host header");
 		}
-		requestHeaders.put("Server", "COMP445-Server");
-		// Get current date in GMT
-		Date now = new Date();
-		DateFormat df = new SimpleDateFormat("EEE, dd MMM YYYY HH:mm:ss");
-		df.setTimeZone(TimeZone.getTimeZone("GMT"));
-		requestHeaders.put("Date", df.format(now) + " GMT");
-					
-		// Add content type (default to text/html)
-		requestHeaders.put("Content-Type", "text/html");
-		requestHeaders.put("Connection", "close");
+		this.ifNoneMatch = request.getHeader("If-None-Match");
+		this.ifModifiedSince = request.getHeader("If-Modified-Since");
+		this.range = request.getHeader("Range");
+		this.ifRange = request.getHeader("If-Range");
+		this.acceptEncoding = request.getHeader("Accept-Encoding");
+		String clientConnection = null;
+		if (request.headerEquals("Connection", "close")) {
+			clientConnection = "close";
+		} else if (request.headerEquals("Connection", "keep-alive")) {
+			clientConnection = "keep-alive";
+		}
+		return clientConnection;
 	}
 
 	/**
 	 * Method that will parse the request and set the response body and/or the status line
 	 */
 	public void parseRequest() {
-		statusLine = PROTOCOL + " 200 OK";
+		statusCode = 200;
 		try {
 			if (requestMethod.equalsIgnoreCase("GET")) {
 				if (verbose) {
-					System.out.println("[DEBUG: GET request received.]\n");
+					AccessLog.getInstance().debug("[DEBUG: GET request received.]\n");
+				}
+				if (Metrics.getInstance().isPath(this.requestURI)) {
+					// The metrics of the server, never looked up in the data directory
+					responseBody = Metrics.getInstance().render();
+					contentType = METRICS_CONTENT_TYPE;
 				}
-				if (this.requestURI.charAt(requestURI.length() - 1) == '/') { // ex. for GET / or GET /dir/ 
-					responseBody = fileManager.getCurrentFiles(this.requestURI);
-					String length = "" + responseBody.length();
-					requestHeaders.put("Content-Length", length); // set the Content-Length
+				else if (this.requestURI.charAt(requestURI.length() - 1) == '/') { // ex. for GET / or GET /dir/ 
+					// The listing is served from the index a page at a time, if enabled
+					int pageSize = fileManager.getListingPageSize();
+					int offset = getQueryParameter("offset", 0);
+					int limit = getQueryParameter("limit", pageSize > 0 ? pageSize : Integer.MAX_VALUE);
+					if (limit == 0) {
+						throw new BadRequestException("Invalid limit parameter");
+					}
+					if (pageSize > 0) {
+						limit = Math.min(limit, pageSize);
+					}
+					DirectoryIndex.Page page = fileManager.getCurrentFilesPage(this.requestURI, offset, limit);
+					if (page != null) {
+						cachedBody = ByteBuffer.wrap(page.getBody());
+						if (page.hasNext()) {
+							// Relative to the URI of the listing
+							nextPage = "<?offset=" + (page.getOffset() + page.getCount()) + "&limit=" + limit + ">; rel=\"next\"";
+						}
+					} else {
+						// Otherwise the listing is written while it is sent, in chunks for HTTP/1.1 clients,
+						// and until the connection is closed for HTTP/1.0 clients
+						boolean chunked = protocol.equals(PROTOCOL_1_1);
+						streamedBody = new StreamedBody(chunked, fileManager.listCurrentFiles(this.requestURI));
+						if (!chunked) {
+							keepAlive = false;
+						}
+					}
 					if (verbose) {
-						System.out.println("[DEBUG: Content of " + this.requestURI + " was successfully obtained.]\n");
+						AccessLog.getInstance().debug("[DEBUG: Content of " + this.requestURI + " was successfully obtained.]\n");
 					}
 				}
 				else {
-					String[] fileContent = null;
-					fileContent = fileManager.getFile(fileManager.constructFile(this.requestURI)); // get the response body and last modified date
-					System.out.println(fileContent[1]);// ex. for GET /dir/fileName
-					
-					responseBody = fileContent[0];
-					String lastModified = fileContent[1];
-					String length = "" + responseBody.length();
-					
-					requestHeaders.put("Last-Modified", lastModified);
-					requestHeaders.put("Content-Length", length); // set the Content-Length
-					if (verbose) {
-						System.out.println("[DEBUG: Content of the file " + this.requestURI + " was successfully obtained.]\n");
+					// ex. for GET /dir/fileName
+					// Small files are served from the cache, medium and large ones from a memory mapping
+					// if enabled, others are streamed after the headers
+					// Text files are compressed if the client accepts it, from a precompressed copy if any
+					// Content-Length is set from the body when the response is created
+					// The file and its attributes are found with one lookup once the URI was requested recently
+					PathResolver.Entry resolved = fileManager.resolve(this.requestURI);
+					File file = resolved.getFile();
+					BasicFileAttributes attributes = resolved.getAttributes();
+					File precompressed = null;
+					if (attributes != null && attributes.isRegularFile()) {
+						long modified = attributes.lastModifiedTime().toMillis();
+						precompressed = negotiateEncoding(file, attributes.size());
+						if (precompressed != null) {
+							// The copy is a different representation, with its own tag
+							BasicFileAttributes compressedAttributes = fileManager.getAttributes(precompressed);
+							if (compressedAttributes == null) {
+								throw new FileNotFoundException("File " + precompressed.getName() + " is not found.");
+							}
+							validators = resolved.getValidators(compressedAttributes.size(), compressedAttributes.lastModifiedTime().toMillis(), modified, contentEncoding);
+						} else {
+							validators = resolved.getValidators(attributes.size(), modified, modified, contentEncoding);
+						}
+					}
+					if (validators != null && isNotModified(attributes.lastModifiedTime().toMillis())) {
+						// The client already has this version of the file, no need to read it
+						statusCode = 304;
+						if (verbose) {
+							AccessLog.getInstance().debug("[DEBUG: The file " + this.requestURI + " was not modified.]\n");
+						}
+					} else {
+						FileCache.Entry cachedFile = null;
+						if (precompressed == null && contentEncoding != null) {
+							cachedFile = fileManager.getCompressedFile(file, contentEncoding);
+							if (cachedFile == null) {
+								// The file grew too big to be compressed since its attributes were read
+								contentEncoding = null;
+								long modified = attributes.lastModifiedTime().toMillis();
+								validators = resolved.getValidators(attributes.size(), modified, modified, null);
+							}
+						}
+						if (precompressed == null && contentEncoding == null) {
+							cachedFile = fileManager.getCachedFile(file);
+						}
+						if (precompressed != null) {
+							fileBody = fileManager.openFile(precompressed);
+						} else if (cachedFile != null) {
+							cachedBody = cachedFile.getBody();
+							validators = cachedFile.getValidators();
+						} else if ((mappedFile = fileManager.getMappedFile(file)) != null) {
+							cachedBody = mappedFile.getBody();
+						} else {
+							fileBody = fileManager.openFile(file);
+						}
+						applyRanges();
+						if (verbose) {
+							AccessLog.getInstance().debug("[DEBUG: Content of the file " + this.requestURI + " was successfully obtained.]\n");
+						}
 					}
 				}
 			}
 			else if (requestMethod.equalsIgnoreCase("POST")) {
 				if (verbose) {
-					System.out.println("[DEBUG: POST request received.]\n");
+					AccessLog.getInstance().debug("[DEBUG: POST request received.]\n");
 				}
-				fileManager.writeFile(fileManager.constructFile(this.requestURI), requestBody, false);
-				statusLine = PROTOCOL + " 201 Created";
-				responseBody = requestBody;
-				if (verbose) {
-					System.out.println("[DEBUG: File successfully written to " + this.requestURI + "]\n");
+				// An empty body was never written, its file is created here
+				upload.open();
+				if (!upload.isComplete()) {
+					// The end of the body was not found, the connection cannot be used anymore
+					keepAlive = false;
 				}
+				if (upload.getError() != null) {
+					upload.discard();
+					throw upload.getError();
+				}
+				// The commit moves the temporary file in place or deletes it, the response waits for it
+				commit = fileManager.commitUpload(upload);
+				// The client already has the content, it is not sent back
+				statusCode = 201;
 			}
 		}
 		catch (Exception e) {
-			errorCode = getErrorCode(e);
-			statusLine = PROTOCOL + " "  + errorCode[0] + " " + errorCode[1];
+			statusCode = getErrorCode(e);
+			// The error response does not describe the file
+			validators = null;
+			contentEncoding = null;
+			varyEncoding = false;
 			if (verbose) {
-				System.out.println("Server: Exception thrown with code " + errorCode[0] + "\n");
+				AccessLog.getInstance().debug("Server: Exception thrown with code " + statusCode + "\n");
 			}
 		}
 	}
 
 	/**
-	 * Method to create a response as String format to send to the client
-	 * @return
+	 * Method to choose the encoding of the requested file from the encodings accepted by the client.
+	 * Only text files bigger than the minimum size are compressed, by the server or ahead of time.
+	 * @param file the requested file
+	 * @param size size of the file
+	 * @return the gzip compressed copy of the file to send, or null to send the file as is or compress it
+	 * @throws IOException if the attributes of the compressed copy cannot be read
 	 */
-	public String createResponse() {
-		// first line is the status line
-		String response = statusLine + "\r\n";
-		// next few lines are the header lines (excluding Host which was removed in HandleRequest)
-		if (!requestHeaders.isEmpty()) {
-			for (String key : requestHeaders.keySet()) {
-				response += key + ": " + requestHeaders.get(key) + "\r\n";
+	private File negotiateEncoding(File file, long size) throws IOException {
+		Compression compression = fileManager.getCompression();
+		if (compression == null || !compression.isCompressible(file.getName(), size)) {
+			return null;
+		}
+		varyEncoding = true;
+		String encoding = Compression.negotiate(acceptEncoding);
+		if (encoding == null) {
+			return null;
+		}
+		File precompressed = Compression.GZIP.equals(encoding) ? fileManager.getPrecompressedFile(file) : null;
+		if (precompressed != null || compression.canCompress(size)) {
+			contentEncoding = encoding;
+		}
+		return precompressed;
+	}
+
+	/**
+	 * Method to check the validators sent by the client against the requested file.
+	 * If-None-Match takes precedence over If-Modified-Since.
+	 * @param modified modification time of the file in milliseconds
+	 * @return true if the client already has the current version of the file
+	 */
+	private boolean isNotModified(long modified) {
+		if (ifNoneMatch != null) {
+			for (String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				// Weak comparison: a weak tag matches the strong tag with the same value
+				if (tag.startsWith("W/")) {
+					tag = tag.substring(2);
+				}
+				if (tag.equals("*") || tag.equals(validators.getETag())) {
+					return true;
+				}
 			}
+			return false;
+		}
+		if (ifModifiedSince != null) {
+			long since = HTTPDate.parse(ifModifiedSince);
+			// Dates in headers are precise to the second, and a date in the future is ignored
+			return since >= 0 && since <= System.currentTimeMillis() && modified / 1000 <= since / 1000;
+		}
+		return false;
+	}
+
+	/**
+	 * Method to keep only the ranges of the file asked for by the client, if it asked for
+	 * some and, when it sent If-Range, still has the current version of the file. A single
+	 * range is sent as is, several ranges as a multipart/byteranges body. The ranges are
+	 * views of the cached or mapped content, or regions of the open file.
+	 */
+	private void applyRanges() {
+		if (range == null || (ifRange != null && !isIfRangeMatching())) {
+			return;
+		}
+		long size = cachedBody != null ? cachedBody.remaining() : fileBody.getRemaining();
+		List<ByteRange> ranges = ByteRange.parse(range, size);
+		if (ranges == null) {
+			// Not a valid Range header, send the whole file
+			return;
+		}
+		if (ranges.isEmpty()) {
+			statusCode = 416;
+			contentRange = "bytes */" + size;
+			releaseBody();
+			return;
+		}
+		statusCode = 206;
+		bodyParts = new ArrayList<Object>();
+		if (ranges.size() == 1) {
+			ByteRange only = ranges.get(0);
+			contentRange = "bytes " + only.getStart() + "-" + only.getEnd() + "/" + size;
+			bodyParts.add(slice(only, true));
+		} else {
+			String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+			contentType = "multipart/byteranges; boundary=" + boundary;
+			for (int i = 0; i < ranges.size(); i++) {
+				ByteRange part = ranges.get(i);
+				String partHeaders = (i == 0 ? "" : "\r\n") + "--" + boundary + "\r\n"
+						+ "Content-Type: text/html\r\n"
+						+ "Content-Range: bytes " + part.getStart() + "-" + part.getEnd() + "/" + size + "\r\n\r\n";
+				bodyParts.add(ByteBuffer.wrap(partHeaders.getBytes(StandardCharsets.US_ASCII)));
+				bodyParts.add(slice(part, i == ranges.size() - 1));
+			}
+			bodyParts.add(ByteBuffer.wrap(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII)));
+		}
+		// The open file now belongs to the ranges
+		fileBody = null;
+	}
+
+	/**
+	 * Method to check If-Range against the requested file. An entity tag must match the
+	 * current one exactly, a date must be the current Last-Modified date.
+	 * @return true if the client has the current version of the file
+	 */
+	private boolean isIfRangeMatching() {
+		String validator = ifRange.trim();
+		if (validator.startsWith("\"")) {
+			return validator.equals(validators.getETag());
 		}
-		// request body
-		if (!responseBody.isEmpty()) {
-			response += "\r\n" + responseBody + "\r\n\r\n";
+		if (validator.startsWith("W/")) {
+			// Weak tags cannot be used for ranges
+			return false;
 		}
-		else
-			response += "\r\n";
+		return validator.equals(validators.getLastModified());
+	}
+
+	/**
+	 * Method to get a range of the body of the requested file
+	 * @param range range of the body
+	 * @param last true for the last range sent, which closes the file once it is sent
+	 * @return a ByteBuffer or FileRegion with the bytes of the range
+	 */
+	private Object slice(ByteRange range, boolean last) {
+		if (cachedBody != null) {
+			ByteBuffer part = cachedBody.duplicate();
+			part.position(cachedBody.position() + (int) range.getStart());
+			part.limit(part.position() + (int) range.getLength());
+			return part;
+		}
+		return fileBody.slice(range.getStart(), range.getLength(), last);
+	}
+
+	/**
+	 * Method to read a parameter of the query of the request URI, as a non-negative number
+	 * @param name name of the parameter
+	 * @param defaultValue value if the parameter is not in the query
+	 * @return the value of the parameter
+	 * @throws BadRequestException if the value is not a non-negative number
+	 */
+	private int getQueryParameter(String name, int defaultValue) throws BadRequestException {
+		if (query == null) {
+			return defaultValue;
+		}
+		for (String parameter : query.split("&")) {
+			int equals = parameter.indexOf('=');
+			if (equals < 0 || !parameter.substring(0, equals).equals(name)) {
+				continue;
+			}
+			try {
+				int value = Integer.parseInt(parameter.substring(equals + 1));
+				if (value >= 0) {
+					return value;
+				}
+			} catch (NumberFormatException e) {
+				// Answered below
+			}
+			throw new BadRequestException("Invalid " + name + " parameter");
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * Method to give back the file or mapping opened for the body, when no body is sent
+	 */
+	private void releaseBody() {
+		if (fileBody != null) {
+			fileBody.close();
+			fileBody = null;
+		}
+		if (mappedFile != null) {
+			mappedFile.run();
+			mappedFile = null;
+		}
+		cachedBody = null;
+	}
+
+	/**
+	 * Method to create the response to send to the client, with the body of the requested file if any.
+	 * The status line and headers are written straight into a pooled buffer.
+	 * @return the response
+	 */
+	public HTTPResponse createHTTPResponse() {
+		ByteBuffer body = cachedBody;
+		long contentLength = 0;
+		if (streamedBody != null) {
+			bodyParts = new ArrayList<Object>(1);
+			bodyParts.add(streamedBody);
+		} else if (bodyParts != null) {
+			for (Object part : bodyParts) {
+				contentLength += part instanceof ByteBuffer ? ((ByteBuffer) part).remaining() : ((FileRegion) part).getRemaining();
+			}
+		} else if (cachedBody != null) {
+			contentLength = cachedBody.remaining();
+		} else if (fileBody != null) {
+			contentLength = fileBody.getRemaining();
+		} else {
+			// The length of a body built in memory is its size once encoded, whatever the request said
+			body = responseBody.isEmpty() ? null : ByteBuffer.wrap(responseBody.getBytes(StandardCharsets.UTF_8));
+			contentLength = body == null ? 0 : body.remaining();
+		}
+
+		HTTPResponseWriter writer = new HTTPResponseWriter(BufferPool.getInstance());
+		writer.statusLine(protocol.equals(PROTOCOL_1_1), statusCode)
+		.header(HTTPResponseWriter.SERVER, HTTPResponseWriter.SERVER_NAME)
+		.header(HTTPResponseWriter.DATE, HTTPDate.getInstance().getNow());
+		// A 304 response has no body, and describes the version the client has
+		if (statusCode != 304) {
+			if (contentType != null) {
+				writer.header(HTTPResponseWriter.CONTENT_TYPE, contentType);
+			} else {
+				writer.header(HTTPResponseWriter.CONTENT_TYPE, HTTPResponseWriter.TEXT_HTML);
+			}
+			if (streamedBody == null) {
+				writer.header(HTTPResponseWriter.CONTENT_LENGTH, contentLength);
+			} else if (protocol.equals(PROTOCOL_1_1)) {
+				writer.header(HTTPResponseWriter.TRANSFER_ENCODING, HTTPResponseWriter.CHUNKED);
+			}
+		}
+		if (contentRange != null) {
+			writer.header(HTTPResponseWriter.CONTENT_RANGE, contentRange);
+		}
+		if (contentEncoding != null && statusCode != 304) {
+			writer.header(HTTPResponseWriter.CONTENT_ENCODING, contentEncoding);
+		}
+		if (varyEncoding) {
+			// Caches must not give the compressed file to clients that do not accept it
+			writer.header(HTTPResponseWriter.VARY, HTTPResponseWriter.ACCEPT_ENCODING);
+		}
+		if (nextPage != null) {
+			writer.header(HTTPResponseWriter.LINK, nextPage);
+		}
+		if (validators != null) {
+			// Last-Modified and ETag, then Accept-Ranges since files can be asked for in ranges
+			writer.headers(validators.getHeaders());
+		}
+		writer.header(HTTPResponseWriter.CONNECTION, keepAlive ? HTTPResponseWriter.KEEP_ALIVE : HTTPResponseWriter.CLOSE);
+		ByteBuffer head = writer.finish();
 		if (verbose) {
-			System.out.println("[DEBUG: Response successfully created.]\n" + response);
-			
+			AccessLog.getInstance().debug("[DEBUG: Response successfully created.]\n" + StandardCharsets.US_ASCII.decode(head.duplicate()));
 		}
+
+		HTTPResponse response;
+		if (bodyParts != null) {
+			response = new HTTPResponse(head, bodyParts, mappedFile);
+		} else {
+			response = new HTTPResponse(head, body, fileBody, mappedFile);
+		}
+		response.setKeepAlive(keepAlive);
+		response.setAccessLogEntry(new AccessLog.Entry(requestMethod, query == null ? requestURI : requestURI + "?" + query, protocol, statusCode, startNanos));
 		return response;
 	}
 
 	/**
-	 * Obtain the error status code and reason phrase associated with an Exception
+	 * Obtain the error status code associated with an Exception
 	 * @param e Exception
-	 * @return String array containing the status code at index 0 and reason phrase at index 1
+	 * @return the status code, whose reason phrase is given by HTTPResponseWriter.getReasonPhrase
 	 */
-	public String[] getErrorCode(Exception e) {
-		// Index 0 contains the status code
-		// Index 1 contains the reason phrase
-		String [] statusCodeReasonPhrase = new String[2];
-
-		if(e instanceof FileAccessDeniedException) {
-			// Do not allow concurrent access to the same file
-			statusCodeReasonPhrase[0] = "503";
-			statusCodeReasonPhrase[1] = "Service Unavailable";
+	public int getErrorCode(Exception e) {
+		if (e instanceof ServiceUnavailableException) {
+			// The server has too many requests waiting to be processed
+			return 503;
 		} else if (e instanceof BadRequestException) {
 			// If client sends a bad request
-			statusCodeReasonPhrase[0] = "400";
-			statusCodeReasonPhrase[1] = "Bad Request"; 
+			return 400;
+		} else if (e instanceof PayloadTooLargeException) {
+			// If the request body is bigger than what the server accepts
+			return 413;
 		} else if (e instanceof PathNotAllowedException) {
 			// Client put illegal path such as ".."
-			statusCodeReasonPhrase[0] = "401";
-			statusCodeReasonPhrase[1] = "Unauthorized"; 
+			return 401;
 		} else if (e instanceof FileNotFoundException) {
 			// Trying to read a file that does not exist
-			statusCodeReasonPhrase[0] = "404";
-			statusCodeReasonPhrase[1] = "Not Found"; 
+			return 404;
 		} else if (e instanceof NoContentException) {
 			// The requested folder to display is empty
-			statusCodeReasonPhrase[0] = "204";
-			statusCodeReasonPhrase[1] = "No Content"; 
+			return 204;
 		} else if (e instanceof NotImplementedException) {
 			// If the request is not implemented
-			statusCodeReasonPhrase[0] = "501";
-			statusCodeReasonPhrase[1] = "Not Implemented";
+			return 501;
 		} else {
 			// IOException or NotAbsoluteFilePathException
-			statusCodeReasonPhrase[0] = "500";
-			statusCodeReasonPhrase[1] = "Internal Server Error";
+			return 500;
 		}
-		return statusCodeReasonPhrase;    	
 	}
 
 }
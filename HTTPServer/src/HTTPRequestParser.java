@@ -0,0 +1,432 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import exception.BadRequestException;
+
+/**
+ * Parser of the request line and headers of a request, working directly on the
+ * bytes received by a connection. Parsing can stop at any byte and resume when
+ * more bytes arrive. The method, URI, version and headers are only recorded as
+ * offsets in the buffer; Strings are created only for the parts the handler asks
+ * for, and no regular expression is ever used.
+ */
+public class HTTPRequestParser {
+
+	public static final int DEFAULT_MAX_HEADER_COUNT = 100;
+	public static final int DEFAULT_MAX_HEADER_SIZE = 8192;
+
+	// States of the parser
+	private static final int METHOD = 0;
+	private static final int URI = 1;
+	private static final int VERSION = 2;
+	private static final int REQUEST_LINE_LF = 3;
+	private static final int HEADER_START = 4;
+	private static final int HEADER_NAME = 5;
+	private static final int HEADER_VALUE_START = 6;
+	private static final int HEADER_VALUE = 7;
+	private static final int HEADER_LF = 8;
+	private static final int END_LF = 9;
+	private static final int DONE = 10;
+
+	private static final byte CR = '\r';
+	private static final byte LF = '\n';
+	private static final byte SP = ' ';
+	private static final byte HT = '\t';
+	private static final byte COLON = ':';
+
+	private static final byte[] CONTENT_LENGTH = "content-length".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] TRANSFER_ENCODING = "transfer-encoding".getBytes(StandardCharsets.US_ASCII);
+
+	private final int maxHeaderCount;
+	private final int maxHeaderSize;
+
+	// Buffer holding the request, starting at index 0
+	private ByteBuffer buffer;
+	private int state;
+	// Index of the next byte to parse
+	private int position;
+	// Index of the first byte of the part being parsed
+	private int tokenStart;
+	// Index after the last non blank byte of the header value being parsed
+	private int valueEnd;
+
+	private int methodStart;
+	private int methodEnd;
+	private int uriStart;
+	private int uriEnd;
+	private int versionStart;
+	private int versionEnd;
+	// Name start, name end, value start and value end of each header
+	private int[] headerOffsets;
+	private int headerCount;
+	private int headerLength;
+	private long contentLength;
+	private boolean contentLengthSent;
+	// Whether the body is sent with Transfer-Encoding: chunked
+	private boolean chunked;
+
+	/**
+	 * Constructor
+	 * @param maxHeaderCount maximum number of headers of a request
+	 * @param maxHeaderSize maximum size of the request line and headers
+	 */
+	public HTTPRequestParser(int maxHeaderCount, int maxHeaderSize) {
+		this.maxHeaderCount = maxHeaderCount;
+		this.maxHeaderSize = maxHeaderSize;
+		this.headerOffsets = new int[4 * Math.min(16, Math.max(1, maxHeaderCount))];
+		reset();
+	}
+
+	/**
+	 * Forgets the parsed request, to parse the next one
+	 */
+	public void reset() {
+		state = METHOD;
+		position = 0;
+		tokenStart = 0;
+		methodStart = 0;
+		headerCount = 0;
+		headerLength = -1;
+		contentLength = 0;
+		contentLengthSent = false;
+		chunked = false;
+	}
+
+	/**
+	 * Parses the bytes received since the last call
+	 * @param buffer buffer holding the request from index 0 to its position
+	 * @return true once the request line and all the headers are parsed
+	 * @throws BadRequestException if the request is malformed or its headers are too large
+	 */
+	@SuppressWarnings("fallthrough")
+	public boolean parse(ByteBuffer buffer) throws BadRequestException {
+		this.buffer = buffer;
+		int end = buffer.position();
+		while (state != DONE && position < end) {
+			if (position >= maxHeaderSize) {
+				throw new BadRequestException("The request headers are too large");
+			}
+			byte b = buffer.get(position);
+			switch (state) {
+			case METHOD:
+				if (b == SP) {
+					if (position == tokenStart) {
+						throw new BadRequestException("Missing method");
+					}
+					methodStart = tokenStart;
+					methodEnd = position;
+					uriStart = position + 1;
+					state = URI;
+				} else if ((b == CR || b == LF) && position == tokenStart) {
+					// Empty lines before the request line are ignored
+					tokenStart = position + 1;
+				} else if (!isTokenByte(b)) {
+					throw new BadRequestException("Invalid method");
+				}
+				break;
+			case URI:
+				if (b == SP) {
+					if (position == uriStart) {
+						throw new BadRequestException("Missing URI");
+					}
+					uriEnd = position;
+					versionStart = position + 1;
+					state = VERSION;
+				} else if (b == CR || b == LF) {
+					throw new BadRequestException("Missing version");
+				}
+				break;
+			case VERSION:
+				if (b == CR || b == LF) {
+					versionEnd = position;
+					if (versionEnd == versionStart) {
+						throw new BadRequestException("Missing version");
+					}
+					state = b == CR ? REQUEST_LINE_LF : HEADER_START;
+				} else if (b == SP) {
+					throw new BadRequestException("Invalid request line");
+				}
+				break;
+			case REQUEST_LINE_LF:
+			case HEADER_LF:
+				if (b != LF) {
+					throw new BadRequestException("Expected LF after CR");
+				}
+				if (state == HEADER_LF) {
+					endHeader();
+				}
+				state = HEADER_START;
+				break;
+			case HEADER_START:
+				if (b == CR) {
+					state = END_LF;
+				} else if (b == LF) {
+					finish();
+				} else if (b == SP || b == HT) {
+					throw new BadRequestException("Folded headers are not supported");
+				} else {
+					if (headerCount == maxHeaderCount) {
+						throw new BadRequestException("Too many headers");
+					}
+					tokenStart = position;
+					state = HEADER_NAME;
+				}
+				break;
+			case HEADER_NAME:
+				if (b == COLON) {
+					if (position == tokenStart) {
+						throw new BadRequestException("Missing header name");
+					}
+					startHeader(tokenStart, position);
+					state = HEADER_VALUE_START;
+				} else if (!isTokenByte(b)) {
+					throw new BadRequestException("Invalid header name");
+				}
+				break;
+			case HEADER_VALUE_START:
+				if (b == SP || b == HT) {
+					break;
+				}
+				tokenStart = position;
+				valueEnd = position;
+				state = HEADER_VALUE;
+				// Fall through to read the first byte of the value
+			case HEADER_VALUE:
+				if (b == CR) {
+					state = HEADER_LF;
+				} else if (b == LF) {
+					endHeader();
+					state = HEADER_START;
+				} else if (b != SP && b != HT) {
+					valueEnd = position + 1;
+				}
+				break;
+			case END_LF:
+				if (b != LF) {
+					throw new BadRequestException("Expected LF after CR");
+				}
+				finish();
+				break;
+			default:
+				break;
+			}
+			position++;
+		}
+		return state == DONE;
+	}
+
+	/**
+	 * Indicates if the request line and headers are completely parsed
+	 * @return true if the request line and headers are parsed
+	 */
+	public boolean isComplete() {
+		return state == DONE;
+	}
+
+	/**
+	 * Length of the request line and headers, including the blank line ending them
+	 * @return the length in bytes, -1 if they are not completely parsed yet
+	 */
+	public int getHeaderLength() {
+		return headerLength;
+	}
+
+	/**
+	 * Length of the body announced by Content-Length
+	 * @return the length in bytes, 0 if there is none
+	 */
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	/**
+	 * Indicates if the body is sent in chunks, its length being unknown until the last one
+	 * @return true if the request has Transfer-Encoding: chunked
+	 */
+	public boolean isChunked() {
+		return chunked;
+	}
+
+	/**
+	 * Compares the method of the request with a method name
+	 * @param method method name in upper case, e.g. GET
+	 * @return true if the request has this method
+	 */
+	public boolean isMethod(String method) {
+		return regionEquals(methodStart, methodEnd, method, false);
+	}
+
+	public String getMethod() {
+		return ascii(methodStart, methodEnd);
+	}
+
+	public String getURI() {
+		return ascii(uriStart, uriEnd);
+	}
+
+	/**
+	 * Compares the version of the request with a version
+	 * @param version version, e.g. HTTP/1.1
+	 * @return true if the request has this version
+	 */
+	public boolean isVersion(String version) {
+		return regionEquals(versionStart, versionEnd, version, false);
+	}
+
+	public int getHeaderCount() {
+		return headerCount;
+	}
+
+	/**
+	 * Gets the value of the first header with the given name
+	 * @param name header name, compared without case
+	 * @return the value, or null if the request has no such header
+	 */
+	public String getHeader(String name) {
+		int index = findHeader(name);
+		return index < 0 ? null : ascii(headerOffsets[4 * index + 2], headerOffsets[4 * index + 3]);
+	}
+
+	/**
+	 * Compares the value of the first header with the given name with a value, without case
+	 * @param name header name
+	 * @param value value to compare with
+	 * @return true if the request has such a header with this value
+	 */
+	public boolean headerEquals(String name, String value) {
+		int index = findHeader(name);
+		return index >= 0 && regionEquals(headerOffsets[4 * index + 2], headerOffsets[4 * index + 3], value, true);
+	}
+
+	/**
+	 * Request line and headers, for debugging
+	 */
+	@Override
+	public String toString() {
+		int end = headerLength >= 0 ? headerLength : position;
+		return buffer == null ? "" : ascii(0, end);
+	}
+
+	private void startHeader(int nameStart, int nameEnd) {
+		int offset = 4 * headerCount;
+		if (offset + 4 > headerOffsets.length) {
+			int[] bigger = new int[Math.min(headerOffsets.length * 2, 4 * maxHeaderCount)];
+			System.arraycopy(headerOffsets, 0, bigger, 0, headerOffsets.length);
+			headerOffsets = bigger;
+		}
+		headerOffsets[offset] = nameStart;
+		headerOffsets[offset + 1] = nameEnd;
+		// Empty value unless one is found
+		tokenStart = position + 1;
+		valueEnd = position + 1;
+	}
+
+	private void endHeader() throws BadRequestException {
+		int offset = 4 * headerCount;
+		headerOffsets[offset + 2] = tokenStart;
+		headerOffsets[offset + 3] = valueEnd;
+		headerCount++;
+		if (regionEquals(headerOffsets[offset], headerOffsets[offset + 1], CONTENT_LENGTH)) {
+			long length = parseContentLength(headerOffsets[offset + 2], headerOffsets[offset + 3]);
+			// A Content-Length of 0 counts as set too, or a later header could reframe the request
+			if (contentLengthSent && length != contentLength) {
+				throw new BadRequestException("Conflicting Content-Length headers");
+			}
+			contentLength = length;
+			contentLengthSent = true;
+		} else if (regionEquals(headerOffsets[offset], headerOffsets[offset + 1], TRANSFER_ENCODING)) {
+			// Only the chunked coding is supported, any other coding would hide the end of the body
+			if (chunked || !regionEquals(headerOffsets[offset + 2], headerOffsets[offset + 3], "chunked", true)) {
+				throw new BadRequestException("Unsupported Transfer-Encoding");
+			}
+			chunked = true;
+		}
+	}
+
+	private void finish() throws BadRequestException {
+		// A body framed in two ways could be read differently by a proxy in front of the server
+		if (chunked && contentLengthSent) {
+			throw new BadRequestException("Both Content-Length and Transfer-Encoding are set");
+		}
+		headerLength = position + 1;
+		state = DONE;
+	}
+
+	private long parseContentLength(int start, int end) throws BadRequestException {
+		if (start == end || end - start > 18) {
+			throw new BadRequestException("Invalid Content-Length");
+		}
+		long length = 0;
+		for (int i = start; i < end; i++) {
+			byte b = buffer.get(i);
+			if (b < '0' || b > '9') {
+				throw new BadRequestException("Invalid Content-Length");
+			}
+			length = length * 10 + (b - '0');
+		}
+		return length;
+	}
+
+	private int findHeader(String name) {
+		for (int i = 0; i < headerCount; i++) {
+			if (regionEquals(headerOffsets[4 * i], headerOffsets[4 * i + 1], name, true)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private boolean regionEquals(int start, int end, byte[] lowerCase) {
+		if (end - start != lowerCase.length) {
+			return false;
+		}
+		for (int i = 0; i < lowerCase.length; i++) {
+			if (toLowerCase(buffer.get(start + i)) != lowerCase[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean regionEquals(int start, int end, String value, boolean ignoreCase) {
+		if (end - start != value.length()) {
+			return false;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			byte b = buffer.get(start + i);
+			char c = value.charAt(i);
+			if (ignoreCase ? toLowerCase(b) != toLowerCase((byte) c) : b != c) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private String ascii(int start, int end) {
+		byte[] bytes = new byte[end - start];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = buffer.get(start + i);
+		}
+		return new String(bytes, StandardCharsets.ISO_8859_1);
+	}
+
+	private static byte toLowerCase(byte b) {
+		return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+	}
+
+	/**
+	 * Characters allowed in a method or a header name (RFC 7230 token)
+	 */
+	private static boolean isTokenByte(byte b) {
+		if (b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z' || b >= '0' && b <= '9') {
+			return true;
+		}
+		switch (b) {
+		case '!': case '#': case '$': case '%': case '&': case '\'': case '*':
+		case '+': case '-': case '.': case '^': case '_': case '`': case '|': case '~':
+			return true;
+		default:
+			return false;
+		}
+	}
+}
@@ -0,0 +1,161 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Response ready to be written to a client: the status line and headers as
+ * bytes, optionally followed by a body made of parts already held as bytes or
+ * streamed from a file.
+ */
+public class HTTPResponse {
+
+	private final ByteBuffer head;
+	// Parts of the body in order: ByteBuffers ready to be read, FileRegions, or a StreamedBody
+	private final List<Object> bodyParts;
+	private final Runnable onWritten;
+	// Bytes of the head and of the body known in advance
+	private final long length;
+	// Request to log once the response is written, null if it is not logged
+	private AccessLog.Entry accessLogEntry;
+	// System.nanoTime when the response started to be written
+	private long writeStartNanos;
+	private boolean keepAlive;
+	private boolean released;
+
+	/**
+	 * Constructor
+	 * @param head status line and headers, borrowed from the buffer pool and ready to be read
+	 * @param body body of the response in memory, ready to be read, or null
+	 * @param fileBody body of the response streamed from a file, or null
+	 * @param onWritten run once the response is written, or dropped with the connection, or null
+	 */
+	public HTTPResponse(ByteBuffer head, ByteBuffer body, FileRegion fileBody, Runnable onWritten) {
+		this.head = head;
+		this.bodyParts = new ArrayList<Object>(1);
+		if (body != null) {
+			bodyParts.add(body);
+		}
+		if (fileBody != null) {
+			bodyParts.add(fileBody);
+		}
+		this.onWritten = onWritten;
+		this.length = computeLength();
+	}
+
+	/**
+	 * Constructor for a response whose body is made of several parts
+	 * @param head status line and headers, borrowed from the buffer pool and ready to be read
+	 * @param bodyParts parts of the body in order, ByteBuffers ready to be read, FileRegions or a StreamedBody
+	 * @param onWritten run once the response is written, or dropped with the connection, or null
+	 */
+	public HTTPResponse(ByteBuffer head, List<Object> bodyParts, Runnable onWritten) {
+		this.head = head;
+		this.bodyParts = bodyParts;
+		this.onWritten = onWritten;
+		this.length = computeLength();
+	}
+
+	/**
+	 * Bytes of the status line and headers
+	 * @return buffer ready to be read
+	 */
+	public ByteBuffer getHead() {
+		return head;
+	}
+
+	/**
+	 * Parts of the body sent after the head
+	 * @return ByteBuffers ready to be read, FileRegions and StreamedBodies, in order
+	 */
+	public List<Object> getBodyParts() {
+		return bodyParts;
+	}
+
+	/**
+	 * Part of the body written while the response is sent
+	 * @return the streamed body, or null if the whole body is known already
+	 */
+	public StreamedBody getStreamedBody() {
+		for (Object part : bodyParts) {
+			if (part instanceof StreamedBody) {
+				return (StreamedBody) part;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Number of bytes of the response, once it is written
+	 * @return bytes of the head and of the body, chunk framing included
+	 */
+	public long getBytesSent() {
+		StreamedBody streamedBody = getStreamedBody();
+		return streamedBody == null ? length : length + streamedBody.getBytesSent();
+	}
+
+	/**
+	 * Request to log once the response is written
+	 * @return the entry, or null if the response is not logged
+	 */
+	public AccessLog.Entry getAccessLogEntry() {
+		return accessLogEntry;
+	}
+
+	public void setAccessLogEntry(AccessLog.Entry accessLogEntry) {
+		this.accessLogEntry = accessLogEntry;
+	}
+
+	public long getWriteStartNanos() {
+		return writeStartNanos;
+	}
+
+	public void setWriteStartNanos(long writeStartNanos) {
+		this.writeStartNanos = writeStartNanos;
+	}
+
+	/**
+	 * Indicates if the connection stays open for another request once the response is written
+	 * @return true to keep the connection open, false to close it
+	 */
+	public boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	public void setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	/**
+	 * Gives back the resources of the response once it is written, or once the
+	 * connection is closed before it is. Only the first call has an effect.
+	 */
+	public void release() {
+		if (released) {
+			return;
+		}
+		released = true;
+		for (Object part : bodyParts) {
+			if (part instanceof FileRegion) {
+				((FileRegion) part).close();
+			} else if (part instanceof StreamedBody) {
+				((StreamedBody) part).abort();
+			}
+		}
+		if (onWritten != null) {
+			onWritten.run();
+		}
+		BufferPool.getInstance().release(head);
+	}
+
+	private long computeLength() {
+		long total = head.remaining();
+		for (Object part : bodyParts) {
+			if (part instanceof ByteBuffer) {
+				total += ((ByteBuffer) part).remaining();
+			} else if (part instanceof FileRegion) {
+				total += ((FileRegion) part).getRemaining();
+			}
+		}
+		return total;
+	}
+}
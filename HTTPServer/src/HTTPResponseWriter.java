@@ -0,0 +1,189 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the status line and headers of a response straight into a buffer of
+ * the buffer pool. Status lines and header names are encoded once, so that
+ * writing a response only copies bytes and never builds a String.
+ */
+public class HTTPResponseWriter {
+
+	public static final byte[] SERVER = ascii("Server: ");
+	public static final byte[] DATE = ascii("Date: ");
+	public static final byte[] CONTENT_TYPE = ascii("Content-Type: ");
+	public static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+	public static final byte[] CONTENT_RANGE = ascii("Content-Range: ");
+	public static final byte[] CONNECTION = ascii("Connection: ");
+	public static final byte[] CONTENT_ENCODING = ascii("Content-Encoding: ");
+	public static final byte[] VARY = ascii("Vary: ");
+	public static final byte[] TRANSFER_ENCODING = ascii("Transfer-Encoding: ");
+	public static final byte[] LINK = ascii("Link: ");
+
+	public static final byte[] SERVER_NAME = ascii("COMP445-Server");
+	public static final byte[] TEXT_HTML = ascii("text/html");
+	public static final byte[] KEEP_ALIVE = ascii("keep-alive");
+	public static final byte[] CLOSE = ascii("close");
+	public static final byte[] ACCEPT_ENCODING = ascii("Accept-Encoding");
+	public static final byte[] CHUNKED = ascii("chunked");
+
+	// Interim response asking a client that sent Expect: 100-continue for the body
+	public static final byte[] CONTINUE = ascii("HTTP/1.1 100 Continue\r\n\r\n");
+
+	private static final byte[] CRLF = ascii("\r\n");
+	private static final int MAX_STATUS_CODE = 600;
+
+	// Status lines including the CRLF, indexed by status code
+	private static final byte[][] STATUS_LINES_1_0 = new byte[MAX_STATUS_CODE][];
+	private static final byte[][] STATUS_LINES_1_1 = new byte[MAX_STATUS_CODE][];
+
+	static {
+		int[] codes = { 200, 201, 204, 206, 304, 400, 401, 404, 413, 416, 500, 501, 503 };
+		for (int code : codes) {
+			STATUS_LINES_1_0[code] = ascii("HTTP/1.0 " + code + " " + getReasonPhrase(code) + "\r\n");
+			STATUS_LINES_1_1[code] = ascii("HTTP/1.1 " + code + " " + getReasonPhrase(code) + "\r\n");
+		}
+	}
+
+	private final BufferPool bufferPool;
+	private ByteBuffer buffer;
+
+	/**
+	 * Constructor
+	 * @param bufferPool pool to borrow the buffer of the head from
+	 */
+	public HTTPResponseWriter(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+		this.buffer = bufferPool.acquire();
+	}
+
+	/**
+	 * Reason phrase of a status code
+	 * @param statusCode
+	 * @return the reason phrase
+	 */
+	public static String getReasonPhrase(int statusCode) {
+		switch (statusCode) {
+		case 200: return "OK";
+		case 201: return "Created";
+		case 204: return "No Content";
+		case 206: return "Partial Content";
+		case 304: return "Not Modified";
+		case 400: return "Bad Request";
+		case 401: return "Unauthorized";
+		case 404: return "Not Found";
+		case 413: return "Payload Too Large";
+		case 416: return "Range Not Satisfiable";
+		case 500: return "Internal Server Error";
+		case 501: return "Not Implemented";
+		case 503: return "Service Unavailable";
+		default: return "Unknown";
+		}
+	}
+
+	/**
+	 * Writes the status line
+	 * @param http11 true for an HTTP/1.1 response, false for HTTP/1.0
+	 * @param statusCode
+	 * @return this writer
+	 */
+	public HTTPResponseWriter statusLine(boolean http11, int statusCode) {
+		byte[] line = statusCode >= 0 && statusCode < MAX_STATUS_CODE
+				? (http11 ? STATUS_LINES_1_1 : STATUS_LINES_1_0)[statusCode] : null;
+		if (line == null) {
+			// Not a status code of this server, encode it on the spot
+			line = ascii((http11 ? "HTTP/1.1 " : "HTTP/1.0 ") + statusCode + " " + getReasonPhrase(statusCode) + "\r\n");
+		}
+		return put(line);
+	}
+
+	/**
+	 * Writes a header
+	 * @param name encoded name of the header, followed by ": "
+	 * @param value encoded value
+	 * @return this writer
+	 */
+	public HTTPResponseWriter header(byte[] name, byte[] value) {
+		return put(name).put(value).put(CRLF);
+	}
+
+	/**
+	 * Writes a header whose value is a String of ASCII characters
+	 * @param name encoded name of the header, followed by ": "
+	 * @param value
+	 * @return this writer
+	 */
+	public HTTPResponseWriter header(byte[] name, String value) {
+		put(name);
+		ensureRemaining(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			buffer.put((byte) value.charAt(i));
+		}
+		return put(CRLF);
+	}
+
+	/**
+	 * Writes a header whose value is a number
+	 * @param name encoded name of the header, followed by ": "
+	 * @param value non negative number
+	 * @return this writer
+	 */
+	public HTTPResponseWriter header(byte[] name, long value) {
+		put(name);
+		ensureRemaining(20);
+		// Write the digits from the last one, then move them in place
+		int start = buffer.position();
+		do {
+			buffer.put((byte) ('0' + value % 10));
+			value /= 10;
+		} while (value > 0);
+		for (int i = start, j = buffer.position() - 1; i < j; i++, j--) {
+			byte digit = buffer.get(i);
+			buffer.put(i, buffer.get(j));
+			buffer.put(j, digit);
+		}
+		return put(CRLF);
+	}
+
+	/**
+	 * Writes headers encoded ahead of time
+	 * @param headers encoded headers, each ending with CRLF
+	 * @return this writer
+	 */
+	public HTTPResponseWriter headers(byte[] headers) {
+		return put(headers);
+	}
+
+	/**
+	 * Ends the headers
+	 * @return the head of the response, ready to be read
+	 */
+	public ByteBuffer finish() {
+		put(CRLF);
+		buffer.flip();
+		return buffer;
+	}
+
+	private HTTPResponseWriter put(byte[] bytes) {
+		ensureRemaining(bytes.length);
+		buffer.put(bytes);
+		return this;
+	}
+
+	/**
+	 * Replaces the buffer with a bigger one if the given number of bytes does not fit
+	 */
+	private void ensureRemaining(int length) {
+		if (buffer.remaining() >= length) {
+			return;
+		}
+		ByteBuffer bigger = bufferPool.acquire(Math.max(buffer.capacity() * 2, buffer.position() + length));
+		buffer.flip();
+		bigger.put(buffer);
+		bufferPool.release(buffer);
+		buffer = bigger;
+	}
+
+	private static byte[] ascii(String value) {
+		return value.getBytes(StandardCharsets.US_ASCII);
+	}
+}
@@ -1,20 +1,15 @@
 import static java.nio.channels.SelectionKey.OP_ACCEPT;
-import static java.nio.channels.SelectionKey.OP_READ;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
 
-import exception.FileAccessDeniedException;
 import exception.NotAbsoluteFilePathException;
 import exception.PathNotAllowedException;
 import joptsimple.OptionParser;
@@ -32,31 +27,84 @@ public class HTTPServer {
 	public static final int DEFAULT_PORT = 8080;
 	public static final String DEFAULT_HOST = "localhost:8080";
 	public static final String DEFAULT_DIRECTORY = "/COMP445";
+	public static final long DEFAULT_KEEP_ALIVE_TIMEOUT = 15000;
+	public static final int DEFAULT_MAX_REQUESTS_PER_CONNECTION = 100;
+	public static final int DEFAULT_MAX_PIPELINED_REQUESTS = 16;
 	// Attributes of HTTPServer
 	public int port;
 	public boolean verbose;
 	public String directory;
+	public int selectorThreads;
+	public int workerThreads;
+	public int workerQueueSize;
+	public boolean virtualThreads;
+	public long keepAliveTimeout;
+	public int maxRequestsPerConnection;
+	public int maxPipelinedRequests;
+	public int maxHeaderCount;
+	public int maxHeaderSize;
+	public long maxUploadSize;
+
+	// Reactors serving the accepted clients, and the one to start from when picking the next
+	private Reactor[] reactors;
+	private int nextReactorIndex;
 
 	// Various arguments accepted by the parser
 	public static final String ARG_VERBOSE = "v";
 	public static final String ARG_PORT = "p";
 	public static final String ARG_DIRECTORY = "d";
+	public static final String ARG_SELECTOR_THREADS = "t";
+	public static final String ARG_WORKER_THREADS = "w";
+	public static final String ARG_WORKER_QUEUE = "q";
+	public static final String ARG_VIRTUAL_THREADS = "virtual-threads";
+	public static final String ARG_CACHE_SIZE = "cache-size";
+	public static final String ARG_CACHE_MAX_ENTRY = "cache-max-entry";
+	public static final String ARG_MMAP_SIZE = "mmap-size";
+	public static final String ARG_MMAP_MIN_FILE = "mmap-min-file";
+	public static final String ARG_FSYNC = "fsync";
+	public static final String ARG_COMMIT_INTERVAL = "commit-interval";
+	public static final String ARG_KEEP_ALIVE_TIMEOUT = "keep-alive-timeout";
+	public static final String ARG_MAX_REQUESTS = "max-requests";
+	public static final String ARG_MAX_PIPELINED = "max-pipelined";
+	public static final String ARG_MAX_HEADERS = "max-headers";
+	public static final String ARG_MAX_HEADER_SIZE = "max-header-size";
+	public static final String ARG_BUFFER_LEAK_DETECTION = "buffer-leak-detection";
+	public static final String ARG_MAX_UPLOAD_SIZE = "max-upload-size";
+	public static final String ARG_COMPRESSION_LEVEL = "compression-level";
+	public static final String ARG_COMPRESSION_MIN_SIZE = "compression-min-size";
+	public static final String ARG_COMPRESSION_CACHE_SIZE = "compression-cache-size";
+	public static final String ARG_LISTING_CACHE_ENTRIES = "listing-cache-entries";
+	public static final String ARG_LISTING_PAGE_SIZE = "listing-page-size";
+	public static final String ARG_PATH_CACHE_TTL = "path-cache-ttl";
+	public static final String ARG_ACCESS_LOG = "access-log";
+	public static final String ARG_ACCESS_LOG_SIZE = "access-log-size";
+	public static final String ARG_ACCESS_LOG_FILES = "access-log-files";
+	public static final String ARG_METRICS_PATH = "metrics-path";
+	public static final int DEFAULT_LISTING_PAGE_SIZE = 1000;
+
+	/**
+	 * Constructor using one selector thread per available processor
+	 * @param verbose
+	 * @param port
+	 * @param directory
+	 */
+	public HTTPServer(boolean verbose, int port, String directory) {
+		this(verbose, port, directory, Runtime.getRuntime().availableProcessors());
+	}
 
 	/**
 	 * Constructor
 	 * @param verbose
 	 * @param port
 	 * @param directory
+	 * @param selectorThreads number of reactor threads serving the clients
 	 * @throws PathNotAllowedException 
 	 * @throws FileNotFoundException 
 	 */
-	public HTTPServer(boolean verbose, int port, String directory) {
-		// Check if the given working directory exists 
+	public HTTPServer(boolean verbose, int port, String directory, int selectorThreads) {
+		// Check if the given working directory exists, and resolve the requests in it
 		try {
-			File dir = FileManager.getInstance().constructFile(directory);
-			if(!dir.exists() || !dir.isDirectory()) {
-				throw new FileNotFoundException();
-			}
+			FileManager.getInstance().setRootDirectory(directory);
 		} catch (Exception e) {
 			System.out.println("The given working directory does not exist or the path is invalid.");
 			System.exit(1);
@@ -65,116 +113,84 @@ public class HTTPServer {
 		this.verbose = verbose;
 		this.port = port;
 		this.directory = directory;
+		this.selectorThreads = Math.max(1, selectorThreads);
+		this.workerThreads = WorkerPool.DEFAULT_THREADS;
+		this.workerQueueSize = WorkerPool.DEFAULT_QUEUE_SIZE;
+		this.virtualThreads = false;
+		this.keepAliveTimeout = DEFAULT_KEEP_ALIVE_TIMEOUT;
+		this.maxRequestsPerConnection = DEFAULT_MAX_REQUESTS_PER_CONNECTION;
+		this.maxPipelinedRequests = DEFAULT_MAX_PIPELINED_REQUESTS;
+		this.maxHeaderCount = HTTPRequestParser.DEFAULT_MAX_HEADER_COUNT;
+		this.maxHeaderSize = HTTPRequestParser.DEFAULT_MAX_HEADER_SIZE;
+		this.maxUploadSize = Upload.DEFAULT_MAX_SIZE;
 	}
 
-	// Uses a single buffer to demonstrate that all clients are running in a single thread
-	private final ByteBuffer buffer = ByteBuffer.allocate(1024);
-
 	/**
-	 * Method to read the buffer and get the request as a String
-	 * @param s
+	 * Accepts a new client and hands it over to the least loaded reactor
+	 * @param server
 	 */
-	private void readAndGetRequest(SelectionKey s) throws FileAccessDeniedException, NotAbsoluteFilePathException, PathNotAllowedException  {
-		SocketChannel client = (SocketChannel) s.channel();
-		try {
-			for (; ; ) {
-				int n = client.read(buffer);
-				// If the number of bytes read is -1, the peer is closed
-				if (n == -1) {
-					unregisterClient(s);
-					return;
-				}
-				if (n == 0) {
-					return;
-				}
-				// ByteBuffer is tricky, you have to flip when switch from read to write, or vice-versa
-				buffer.flip();
-
-				// Convert buffer into a string
-				Charset utf8 = StandardCharsets.UTF_8;
-				String request = utf8.decode(buffer).toString();
-				buffer.clear();
-				if(verbose) {
-					System.out.println("\n[DEBUG: Request received]\n" + request);
-				}
-
-				// Handle request
-				HTTPRequestHandler requestHandler = new HTTPRequestHandler(verbose, port, directory);
-				String response = requestHandler.handleRequest(request);
-
-				// Write response to the socket using a buffer
-				byte[] byteArrayResponse = utf8.encode(response).array();
-				int byteArrayResponseIndex = 0;
-				
-				// Prevent the byte buffer from overflowing while writing:
-				// While we are not done writing
-				while(byteArrayResponseIndex < byteArrayResponse.length) {
-					// While there is remaining space in the byte buffer and that we're not done writing
-					while(buffer.hasRemaining() && byteArrayResponseIndex < byteArrayResponse.length) {
-						buffer.put(byteArrayResponse[byteArrayResponseIndex++]);
-					}
-					// Write
-					buffer.flip();
-					client.write(buffer); // write buffer to the socket
-					buffer.clear();
-				}
-				
-//				buffer.put(utf8.encode(response)); // encode string response into utf8 and add to buffer
-//				buffer.flip();
-//				client.write(buffer); // write buffer to the socket
-//				buffer.clear();
-				
-				if(verbose) {
-					System.out.println("[DEBUG: Response sent to client]\n" + response);
-				}
-				client.close();
-			}
-		} catch (IOException e) {
-			unregisterClient(s);
-		}
-	}
-
-	private void newClient(ServerSocketChannel server, Selector selector) {
+	private void newClient(ServerSocketChannel server) {
 		try {
 			SocketChannel client = server.accept();
+			if (client == null) {
+				return;
+			}
 			client.configureBlocking(false);
-			System.out.println("New client from {" +  client.getRemoteAddress() + "}");
-			client.register(selector, OP_READ, client);
+			if (verbose) {
+				AccessLog.getInstance().debug("New client from {" +  client.getRemoteAddress() + "}");
+			}
+			nextReactor().register(client);
 		} catch (IOException e) {
 			System.out.println("Failed to accept client");
 		}
 	}
 
-	private void unregisterClient(SelectionKey s) {
-		try {
-			s.cancel();
-			s.channel().close();
-		} catch (IOException e) {
-			System.out.println("Failed to clean up");
+	/**
+	 * Picks the reactor serving the fewest clients, starting the search after the
+	 * last one picked so that ties are spread round-robin
+	 * @return reactor that should serve the next client
+	 */
+	private Reactor nextReactor() {
+		int start = nextReactorIndex;
+		Reactor leastLoaded = reactors[start];
+		for (int i = 1; i < reactors.length; i++) {
+			Reactor reactor = reactors[(start + i) % reactors.length];
+			if (reactor.getConnectionCount() < leastLoaded.getConnectionCount()) {
+				leastLoaded = reactor;
+			}
 		}
+		nextReactorIndex = (start + 1) % reactors.length;
+		return leastLoaded;
 	}
 
-	private void runLoop(ServerSocketChannel server, Selector selector) throws IOException, FileAccessDeniedException, NotAbsoluteFilePathException, PathNotAllowedException  {
-		// Check if there is any event (eg. new client or new data) happened
+	private void runLoop(ServerSocketChannel server, Selector selector) throws IOException {
+		// Check if there is any new client
 		selector.select();
 
 		for (SelectionKey s : selector.selectedKeys()) {
 			// Acceptable means there is a new incoming
 			if (s.isAcceptable()) {
-				newClient(server, selector);
-
-				// Readable means this client has sent data or closed
-			} else if (s.isReadable()) {
-				readAndGetRequest(s);
+				newClient(server);
 			}
 		}
 		// We must clear this set, otherwise the select will return the same value again
 		selector.selectedKeys().clear();
 	}
 
-	private void listenAndServe() throws IOException, FileAccessDeniedException, FileNotFoundException, NotAbsoluteFilePathException, PathNotAllowedException {
+	private void listenAndServe() throws IOException, FileNotFoundException, NotAbsoluteFilePathException, PathNotAllowedException {
+		// Start the reactors that will serve the accepted clients, sharing one pool for the file accesses
+		WorkerPool workerPool = new WorkerPool(workerThreads, workerQueueSize, virtualThreads);
+		reactors = new Reactor[selectorThreads];
+		for (int i = 0; i < selectorThreads; i++) {
+			reactors[i] = new Reactor(i, this, workerPool);
+			reactors[i].start();
+		}
+
 		try (ServerSocketChannel server = ServerSocketChannel.open()) {
 			server.bind(new InetSocketAddress(port));
+			// The port is picked by the system when 0 is given
+			port = server.socket().getLocalPort();
+			System.out.println("Listening on port " + port);
 			server.configureBlocking(false);
 			Selector selector = Selector.open();
 
@@ -190,14 +206,14 @@ public class HTTPServer {
 	 * Runs the server
 	 * @param args set of arguments to define the settings of the server
 	 */
-	public static void main(String[] args) throws IOException, FileAccessDeniedException, NotAbsoluteFilePathException, PathNotAllowedException  {
+	public static void main(String[] args) throws IOException, NotAbsoluteFilePathException, PathNotAllowedException  {
 
 		// Define the options that the parser can take
 		OptionParser parser = new OptionParser();
 
 		parser.accepts(ARG_VERBOSE, "Prints debugging messages.");
 
-		parser.accepts(ARG_PORT, "Port number that the server will listen and serve at.")
+		parser.accepts(ARG_PORT, "Port number that the server will listen and serve at, 0 for any free port.")
 		.withRequiredArg()
 		.ofType(Integer.class)
 		.defaultsTo(DEFAULT_PORT);
@@ -206,16 +222,202 @@ public class HTTPServer {
 		.withRequiredArg()
 		.defaultsTo(DEFAULT_DIRECTORY);
 
+		parser.accepts(ARG_SELECTOR_THREADS, "Number of selector threads serving the clients.")
+		.withRequiredArg()
+		.ofType(Integer.class)
+		.defaultsTo(Runtime.getRuntime().availableProcessors());
+
+		parser.accepts(ARG_WORKER_THREADS, "Number of worker threads accessing the files.")
+		.withRequiredArg()
+		.ofType(Integer.class)
+		.defaultsTo(WorkerPool.DEFAULT_THREADS);
+
+		parser.accepts(ARG_WORKER_QUEUE, "Number of requests allowed to wait for a worker before answering 503.")
+		.withRequiredArg()
+		.ofType(Integer.class)
+		.defaultsTo(WorkerPool.DEFAULT_QUEUE_SIZE);
+
+		parser.accepts(ARG_VIRTUAL_THREADS, "Runs each file access on a virtual thread (Java 21 or later).");
+
+		parser.accepts(ARG_CACHE_SIZE, "Total size in bytes of the files kept in memory, 0 to disable the cache.")
+		.withRequiredArg()
+		.ofType(Long.class)
+		.defaultsTo(FileCache.DEFAULT_MAX_BYTES);
+
+		parser.accepts(ARG_CACHE_MAX_ENTRY, "Size in bytes of the largest file kept in memory.")
+		.withRequiredArg()
+		.ofType(Integer.class)
+		.defaultsTo(FileCache.DEFAULT_MAX_ENTRY_BYTES);
+
+		parser.accepts(ARG_MMAP_SIZE, "Total size in bytes of the files served from memory mappings, 0 (default) to disable mappings.")
+		.withRequiredArg()
+		.ofType(Long.class)
+		.defaultsTo(0L);
+
+		parser.accepts(ARG_MMAP_MIN_FILE, "Size in bytes of the smallest file served from a memory mapping.")
+		.withRequiredArg()
+		.ofType(Long.class)
+		.defaultsTo(MappedFileCache.DEFAULT_MIN_FILE_SIZE);
+
+		parser.accepts(ARG_KEEP_ALIVE_TIMEOUT, "Milliseconds after which an idle connection is closed.")
+		.withRequiredArg()
+		.ofType(Long.class)
+		.defaultsTo(DEFAULT_KEEP_ALIVE_TIMEOUT);
+
+		parser.accepts(ARG_MAX_REQUESTS, "Maximum number of requests served on one connection, 1 to disable keep-alive.")
+		.withRequiredArg()
+		.ofType(Integer.class)
+		.defaultsTo(DEFAULT_MAX_REQUESTS_PER_CONNECTION);
+
+		parser.accepts(ARG_MAX_PIPELINED, "Maximum number of pipelined requests of one connection processed at the same time.")
+		.withRequiredArg()
+		.ofType(Integer.class)
+		.defaultsTo(DEFAULT_MAX_PIPELINED_REQUESTS);
+
+		parser.accepts(ARG_MAX_HEADERS, "Maximum number of headers of a request.")
+		.withRequiredArg()
+		.ofType(Integer.class)
+		.defaultsTo(HTTPRequestParser.DEFAULT_MAX_HEADER_COUNT);
+
+		parser.accepts(ARG_MAX_HEADER_SIZE, "Maximum size in bytes of the request line and headers of a request.")
+		.withRequiredArg()
+		.ofType(Integer.class)
+		.defaultsTo(HTTPRequestParser.DEFAULT_MAX_HEADER_SIZE);
+
+		parser.accepts(ARG_MAX_UPLOAD_SIZE, "Maximum size in bytes of the body of a POST request.")
+		.withRequiredArg()
+		.ofType(Long.class)
+		.defaultsTo(Upload.DEFAULT_MAX_SIZE);
+
+		parser.accepts(ARG_BUFFER_LEAK_DETECTION, "Reports the pooled buffers not given back, for debugging.");
+
+		parser.accepts(ARG_COMPRESSION_LEVEL, "Level of the gzip and deflate compression of text files, from 1 to 9, 0 to disable compression.")
+		.withRequiredArg()
+		.ofType(Integer.class)
+		.defaultsTo(Compression.DEFAULT_LEVEL);
+
+		parser.accepts(ARG_COMPRESSION_MIN_SIZE, "Size in bytes of the smallest text file compressed.")
+		.withRequiredArg()
+		.ofType(Integer.class)
+		.defaultsTo(Compression.DEFAULT_MIN_SIZE);
+
+		parser.accepts(ARG_COMPRESSION_CACHE_SIZE, "Total size in bytes of the compressed files kept in memory, 0 to only send precompressed .gz files.")
+		.withRequiredArg()
+		.ofType(Long.class)
+		.defaultsTo(Compression.DEFAULT_CACHE_SIZE);
+
+		parser.accepts(ARG_LISTING_CACHE_ENTRIES, "Total number of entries of the listed directories kept in memory, 0 to read the directories each time they are listed.")
+		.withRequiredArg()
+		.ofType(Long.class)
+		.defaultsTo(DirectoryIndex.DEFAULT_MAX_ENTRIES);
+
+		parser.accepts(ARG_LISTING_PAGE_SIZE, "Maximum number of entries of a page of a directory listing, 0 for no limit.")
+		.withRequiredArg()
+		.ofType(Integer.class)
+		.defaultsTo(DEFAULT_LISTING_PAGE_SIZE);
+
+		parser.accepts(ARG_PATH_CACHE_TTL, "Milliseconds the attributes of a file are reused before being read again, 0 to read them for each request.")
+		.withRequiredArg()
+		.ofType(Long.class)
+		.defaultsTo(PathResolver.DEFAULT_TTL_MILLIS);
+
+		parser.accepts(ARG_ACCESS_LOG, "File the requests served are logged to, not logged if not given.")
+		.withRequiredArg();
+
+		parser.accepts(ARG_ACCESS_LOG_SIZE, "Size in bytes past which the access log file is rotated.")
+		.withRequiredArg()
+		.ofType(Long.class)
+		.defaultsTo(AccessLog.DEFAULT_MAX_FILE_SIZE);
+
+		parser.accepts(ARG_ACCESS_LOG_FILES, "Number of rotated access log files kept.")
+		.withRequiredArg()
+		.ofType(Integer.class)
+		.defaultsTo(AccessLog.DEFAULT_MAX_FILES);
+
+		parser.accepts(ARG_METRICS_PATH, "Path the metrics of the server are served on in the Prometheus text format, empty to not serve them.")
+		.withRequiredArg()
+		.defaultsTo(Metrics.DEFAULT_PATH);
+
+		parser.accepts(ARG_FSYNC, "Forces the uploads to the disk before answering them, in groups.");
+
+		parser.accepts(ARG_COMMIT_INTERVAL, "Milliseconds the uploads are gathered before being forced to the disk together, with --" + ARG_FSYNC + ".")
+		.withRequiredArg()
+		.ofType(Long.class)
+		.defaultsTo(WriteCommitter.DEFAULT_INTERVAL_MILLIS);
+
 		// Parse the given arguments
 		OptionSet opts = parser.parse(args);
 		boolean verbose = opts.has(ARG_VERBOSE);
 		int port = (int) opts.valueOf(ARG_PORT);
 		String directory = (String) opts.valueOf(ARG_DIRECTORY);
+		int selectorThreads = (int) opts.valueOf(ARG_SELECTOR_THREADS);
+		int workerThreads = (int) opts.valueOf(ARG_WORKER_THREADS);
+		int workerQueueSize = (int) opts.valueOf(ARG_WORKER_QUEUE);
+		boolean virtualThreads = opts.has(ARG_VIRTUAL_THREADS);
+		long cacheSize = (long) opts.valueOf(ARG_CACHE_SIZE);
+		int cacheMaxEntry = (int) opts.valueOf(ARG_CACHE_MAX_ENTRY);
+		long mmapSize = (long) opts.valueOf(ARG_MMAP_SIZE);
+		long mmapMinFile = (long) opts.valueOf(ARG_MMAP_MIN_FILE);
+		boolean fsync = opts.has(ARG_FSYNC);
+		long commitInterval = (long) opts.valueOf(ARG_COMMIT_INTERVAL);
+		long keepAliveTimeout = (long) opts.valueOf(ARG_KEEP_ALIVE_TIMEOUT);
+		int maxRequests = (int) opts.valueOf(ARG_MAX_REQUESTS);
+		int maxPipelined = (int) opts.valueOf(ARG_MAX_PIPELINED);
+		int maxHeaders = (int) opts.valueOf(ARG_MAX_HEADERS);
+		int maxHeaderSize = (int) opts.valueOf(ARG_MAX_HEADER_SIZE);
+		long maxUploadSize = (long) opts.valueOf(ARG_MAX_UPLOAD_SIZE);
+		int compressionLevel = (int) opts.valueOf(ARG_COMPRESSION_LEVEL);
+		int compressionMinSize = (int) opts.valueOf(ARG_COMPRESSION_MIN_SIZE);
+		long compressionCacheSize = (long) opts.valueOf(ARG_COMPRESSION_CACHE_SIZE);
+		long listingCacheEntries = (long) opts.valueOf(ARG_LISTING_CACHE_ENTRIES);
+		int listingPageSize = (int) opts.valueOf(ARG_LISTING_PAGE_SIZE);
+		long pathCacheTtl = (long) opts.valueOf(ARG_PATH_CACHE_TTL);
+		String accessLogFile = (String) opts.valueOf(ARG_ACCESS_LOG);
+		long accessLogSize = (long) opts.valueOf(ARG_ACCESS_LOG_SIZE);
+		int accessLogFiles = (int) opts.valueOf(ARG_ACCESS_LOG_FILES);
+		String metricsPath = (String) opts.valueOf(ARG_METRICS_PATH);
+
+		FileManager.getInstance().setDurability(fsync, commitInterval);
+		FileManager.getInstance().setPathCacheTtl(pathCacheTtl);
+		Metrics.getInstance().setPath(metricsPath);
+		if (accessLogFile != null) {
+			AccessLog.getInstance().setFile(new File(accessLogFile), accessLogSize, accessLogFiles);
+		}
+		BufferPool.getInstance().setLeakDetection(opts.has(ARG_BUFFER_LEAK_DETECTION));
+
+		// Keep the most requested files in memory
+		if (cacheSize > 0) {
+			FileManager.getInstance().setFileCache(new FileCache(cacheSize, cacheMaxEntry));
+		}
+		// Serve the medium and large files from memory mappings
+		if (mmapSize > 0) {
+			FileManager.getInstance().setMappedFileCache(new MappedFileCache(mmapSize, mmapMinFile));
+		}
+		// Compress the text files for the clients that accept it
+		if (compressionLevel > 0) {
+			FileManager.getInstance().setCompression(new Compression(compressionLevel, compressionMinSize, compressionCacheSize));
+		}
+		// Serve the directory listings from memory, kept up to date as the directories change
+		if (listingCacheEntries > 0) {
+			FileManager.getInstance().setDirectoryIndex(new DirectoryIndex(listingCacheEntries));
+		}
+		FileManager.getInstance().setListingPageSize(Math.max(0, listingPageSize));
 
-		System.out.println("verbose:" + verbose + "|port:" + port + "|directory:" + directory);
+		System.out.println("verbose:" + verbose + "|port:" + port + "|directory:" + directory + "|threads:" + selectorThreads);
 
 		// Start the server        
-		new HTTPServer(verbose, port, directory).listenAndServe();
+		HTTPServer httpServer = new HTTPServer(verbose, port, directory, selectorThreads);
+		httpServer.workerThreads = workerThreads;
+		httpServer.workerQueueSize = workerQueueSize;
+		httpServer.virtualThreads = virtualThreads;
+		httpServer.keepAliveTimeout = keepAliveTimeout;
+		httpServer.maxRequestsPerConnection = maxRequests;
+		httpServer.maxPipelinedRequests = Math.max(1, maxPipelined);
+		httpServer.maxHeaderCount = Math.max(1, maxHeaders);
+		// The request line alone may need more than a small limit
+		httpServer.maxHeaderSize = Math.max(256, maxHeaderSize);
+		httpServer.maxUploadSize = maxUploadSize;
+		httpServer.listenAndServe();
 	}
 
 }
@@ -0,0 +1,93 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashed timing wheel closing the connections of a reactor that stayed idle for
+ * too long. Each connection sits in the slot of the tick its deadline falls in,
+ * so that every tick only looks at the connections of one slot instead of all
+ * the connections of the reactor. Deadlines pushed back by some activity are
+ * only noticed when the slot comes up, and the connection is then moved to the
+ * slot of its new deadline.
+ */
+public class IdleTimeoutWheel {
+
+	private final long tickMillis;
+	private final List<List<HTTPConnection>> slots;
+	// Last tick whose slot was processed
+	private long currentTick;
+
+	/**
+	 * Constructor
+	 * @param timeoutMillis idle time after which a connection is closed
+	 * @param tickMillis precision of the timeouts
+	 * @param now current time in milliseconds
+	 */
+	public IdleTimeoutWheel(long timeoutMillis, long tickMillis, long now) {
+		this.tickMillis = Math.max(1, tickMillis);
+		int slotCount = (int) (timeoutMillis / this.tickMillis) + 2;
+		this.slots = new ArrayList<List<HTTPConnection>>(slotCount);
+		for (int i = 0; i < slotCount; i++) {
+			slots.add(new ArrayList<HTTPConnection>());
+		}
+		this.currentTick = now / this.tickMillis;
+	}
+
+	/**
+	 * Time between two ticks, the longest a reactor should wait before calling expire
+	 * @return time in milliseconds
+	 */
+	public long getTickMillis() {
+		return tickMillis;
+	}
+
+	/**
+	 * Starts watching a connection. Its deadline can be changed afterwards
+	 * without scheduling it again.
+	 * @param connection
+	 */
+	public void schedule(HTTPConnection connection) {
+		if (connection.isInTimeoutWheel()) {
+			return;
+		}
+		connection.setInTimeoutWheel(true);
+		place(connection);
+	}
+
+	/**
+	 * Processes the slots of all the ticks elapsed since the last call
+	 * @param now current time in milliseconds
+	 * @return connections whose deadline passed, no longer watched
+	 */
+	public List<HTTPConnection> expire(long now) {
+		List<HTTPConnection> expired = new ArrayList<HTTPConnection>();
+		long targetTick = now / tickMillis;
+		while (currentTick < targetTick) {
+			currentTick++;
+			int index = (int) (currentTick % slots.size());
+			List<HTTPConnection> slot = slots.get(index);
+			slots.set(index, new ArrayList<HTTPConnection>());
+			for (HTTPConnection connection : slot) {
+				if (connection.isClosed()) {
+					connection.setInTimeoutWheel(false);
+				} else if (connection.getIdleDeadline() <= now) {
+					connection.setInTimeoutWheel(false);
+					expired.add(connection);
+				} else {
+					place(connection);
+				}
+			}
+		}
+		return expired;
+	}
+
+	/**
+	 * Puts a connection in the slot of its deadline, or in the farthest slot if its
+	 * deadline is beyond the span of the wheel
+	 */
+	private void place(HTTPConnection connection) {
+		long deadline = connection.getIdleDeadline();
+		long tick = deadline == Long.MAX_VALUE ? Long.MAX_VALUE : (deadline + tickMillis - 1) / tickMillis;
+		tick = Math.max(currentTick + 1, Math.min(tick, currentTick + slots.size() - 1));
+		slots.get((int) (tick % slots.size())).add(connection);
+	}
+}
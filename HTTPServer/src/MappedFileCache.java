@@ -0,0 +1,233 @@
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-only memory mappings of the medium and large files, shared by all the
+ * connections sending them. Each connection gets its own view of a mapping and
+ * holds a reference on it until its response is written. A mapping is dropped
+ * from the cache when its file changes or to stay under the mapped bytes ceiling,
+ * and its bytes stop counting against the ceiling once the last connection using
+ * it is done. The memory itself is unmapped by the garbage collector.
+ */
+public class MappedFileCache {
+
+	public static final long DEFAULT_MIN_FILE_SIZE = 1024 * 1024;
+
+	private final long maxMappedBytes;
+	private final long minFileSize;
+	private final ConcurrentHashMap<String, Mapping> mappings;
+	// Bytes of all the live mappings, including the ones dropped but still being sent
+	private final AtomicLong mappedBytes;
+	// Logical clock used to order the mappings by last access
+	private final AtomicLong clock;
+	private final Object evictionLock;
+
+	/**
+	 * Constructor
+	 * @param maxMappedBytes total size of the files that can be mapped at once
+	 * @param minFileSize size of the smallest file worth mapping
+	 */
+	public MappedFileCache(long maxMappedBytes, long minFileSize) {
+		this.maxMappedBytes = maxMappedBytes;
+		this.minFileSize = minFileSize;
+		this.mappings = new ConcurrentHashMap<String, Mapping>();
+		this.mappedBytes = new AtomicLong();
+		this.clock = new AtomicLong();
+		this.evictionLock = new Object();
+	}
+
+	/**
+	 * Indicates if a file of the given size should be served from a mapping
+	 * @param size size of the file in bytes
+	 * @return true if the file can be mapped
+	 */
+	public boolean accepts(long size) {
+		return size >= minFileSize && size <= maxMappedBytes && size <= Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Gets a view of the mapping of a file. A mapping of another version of the
+	 * file is dropped.
+	 * @param absoluteFilePath absolute path of the file
+	 * @param lastModified current modification time of the file
+	 * @param size current size of the file
+	 * @return a lease on the mapping, or null if the file is not mapped
+	 */
+	public Lease acquire(String absoluteFilePath, long lastModified, long size) {
+		Mapping mapping = mappings.get(absoluteFilePath);
+		if (mapping == null) {
+			return null;
+		}
+		if (mapping.lastModifiedTime != lastModified || mapping.buffer.capacity() != size) {
+			if (mappings.remove(absoluteFilePath, mapping)) {
+				mapping.release();
+			}
+			return null;
+		}
+		if (!mapping.retain()) {
+			return null;
+		}
+		mapping.lastAccess = clock.incrementAndGet();
+		return new Lease(mapping);
+	}
+
+	/**
+	 * Reserves room for a new mapping, dropping the least recently used mappings if needed
+	 * @param size size of the file to map
+	 * @return true if the file can be mapped, false if the ceiling would be exceeded
+	 */
+	public boolean reserve(long size) {
+		if (mappedBytes.addAndGet(size) <= maxMappedBytes) {
+			return true;
+		}
+		evict(size);
+		if (mappedBytes.get() <= maxMappedBytes) {
+			return true;
+		}
+		mappedBytes.addAndGet(-size);
+		return false;
+	}
+
+	/**
+	 * Gives back the room reserved for a mapping that could not be created
+	 * @param size size reserved with reserve
+	 */
+	public void cancelReservation(long size) {
+		mappedBytes.addAndGet(-size);
+	}
+
+	/**
+	 * Adds the mapping of a file, whose room was reserved with reserve
+	 * @param absoluteFilePath absolute path of the file
+	 * @param buffer read-only mapping of the whole file
+	 * @param lastModified modification time of the file when it was mapped
+	 * @return a lease on the new mapping
+	 */
+	public Lease add(String absoluteFilePath, MappedByteBuffer buffer, long lastModified) {
+		Mapping mapping = new Mapping(buffer, lastModified);
+		mapping.retain();
+		mapping.lastAccess = clock.incrementAndGet();
+		Mapping previous = mappings.put(absoluteFilePath, mapping);
+		if (previous != null) {
+			previous.release();
+		}
+		return new Lease(mapping);
+	}
+
+	/**
+	 * Drops the mapping of a file, for example before it is written to
+	 * @param absoluteFilePath absolute path of the file
+	 */
+	public void invalidate(String absoluteFilePath) {
+		Mapping mapping = mappings.remove(absoluteFilePath);
+		if (mapping != null) {
+			mapping.release();
+		}
+	}
+
+	public long getMappedBytes() {
+		return mappedBytes.get();
+	}
+
+	/**
+	 * Drops the least recently used mappings until there is room for the given size
+	 * @param size size of the mapping to make room for
+	 */
+	private void evict(long size) {
+		synchronized (evictionLock) {
+			List<Map.Entry<String, Mapping>> byLastAccess = new ArrayList<Map.Entry<String, Mapping>>(mappings.entrySet());
+			Collections.sort(byLastAccess, new Comparator<Map.Entry<String, Mapping>>() {
+				@Override
+				public int compare(Map.Entry<String, Mapping> a, Map.Entry<String, Mapping> b) {
+					return Long.compare(a.getValue().lastAccess, b.getValue().lastAccess);
+				}
+			});
+			for (Map.Entry<String, Mapping> candidate : byLastAccess) {
+				if (mappedBytes.get() <= maxMappedBytes) {
+					break;
+				}
+				if (mappings.remove(candidate.getKey(), candidate.getValue())) {
+					candidate.getValue().release();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Mapping of a file, with one reference held by the cache and one per connection sending it
+	 */
+	private class Mapping {
+		private final MappedByteBuffer buffer;
+		private final long lastModifiedTime;
+		private final AtomicInteger references;
+		private volatile long lastAccess;
+
+		Mapping(MappedByteBuffer buffer, long lastModifiedTime) {
+			this.buffer = buffer;
+			this.lastModifiedTime = lastModifiedTime;
+			this.references = new AtomicInteger(1);
+		}
+
+		/**
+		 * Adds a reference, unless the mapping was already fully released
+		 * @return true if the reference was added
+		 */
+		boolean retain() {
+			for (; ; ) {
+				int count = references.get();
+				if (count == 0) {
+					return false;
+				}
+				if (references.compareAndSet(count, count + 1)) {
+					return true;
+				}
+			}
+		}
+
+		void release() {
+			if (references.decrementAndGet() == 0) {
+				mappedBytes.addAndGet(-buffer.capacity());
+			}
+		}
+	}
+
+	/**
+	 * Reference on a mapping held by a connection while it sends the file.
+	 * Runs once the response is written, to release the reference.
+	 */
+	public static class Lease implements Runnable {
+		private final Mapping mapping;
+		private final ByteBuffer body;
+		private final AtomicBoolean released;
+
+		private Lease(Mapping mapping) {
+			this.mapping = mapping;
+			this.body = mapping.buffer.duplicate();
+			this.released = new AtomicBoolean();
+		}
+
+		/**
+		 * View of the whole file, private to the connection holding the lease
+		 * @return buffer ready to be read
+		 */
+		public ByteBuffer getBody() {
+			return body;
+		}
+
+		@Override
+		public void run() {
+			if (released.compareAndSet(false, true)) {
+				mapping.release();
+			}
+		}
+	}
+}
@@ -0,0 +1,281 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the server, served on a reserved path in
+ * the Prometheus text format. Recording a value only increments atomic
+ * counters, without locking or allocating, so that it can be done on every
+ * request. The histograms have power of two buckets, from about a microsecond
+ * to about half a minute.
+ */
+public class Metrics {
+
+	public static final String DEFAULT_PATH = "/_metrics";
+
+	// Stages timed by the histograms
+	// Parsing of the request line and headers, over all the reads of the request
+	public static final int PARSE = 0;
+	// Wait of a request for a worker
+	public static final int QUEUE = 1;
+	// Processing of a request by a worker, file accesses included
+	public static final int PROCESS = 2;
+	// Reading, mapping or opening a file, or moving an upload in place, when not served from memory
+	public static final int FILE_IO = 3;
+	// Writing a response, from the time it is ready to the time its last byte is sent
+	public static final int WRITE = 4;
+	// Whole request, from the time it is received to the time its last byte is sent
+	public static final int REQUEST = 5;
+	// One turn of the loop of a reactor, not counting the wait for events
+	public static final int SELECTOR_LOOP = 6;
+	// Commit of an upload, from the time it is received to the time it replaced its file, durably if asked
+	public static final int COMMIT = 7;
+
+	private static final String[] STAGE_NAMES = { "parse", "queue", "process", "file_io", "write", "request", "selector_loop", "commit" };
+	private static final int MAX_STATUS_CODE = 600;
+
+	private final Histogram[] histograms;
+	private final AtomicLongArray responsesByStatus;
+	private final AtomicLong bytesIn;
+	private final AtomicLong bytesOut;
+	private final AtomicLong connectionsOpened;
+	private final AtomicLong connectionsClosed;
+	private final AtomicLong commitGroups;
+	private final AtomicLong uploadsCommitted;
+	private final AtomicLong uploadsOverwritten;
+	// Path the metrics are served on, null if they are not served
+	private volatile String path;
+
+	/**
+	 * Get instance of a Singleton
+	 * @return Metrics singleton instance
+	 */
+	public static Metrics getInstance() {
+		return InstanceHolder.instance;
+	}
+
+	/**
+	 * Holder of the singleton instance, created by the class loader on first use so that
+	 * concurrent callers of getInstance always get the same instance
+	 */
+	private static class InstanceHolder {
+		static final Metrics instance = new Metrics();
+	}
+
+	/**
+	 * Private constructor
+	 */
+	private Metrics() {
+		this.histograms = new Histogram[STAGE_NAMES.length];
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new Histogram();
+		}
+		this.responsesByStatus = new AtomicLongArray(MAX_STATUS_CODE);
+		this.bytesIn = new AtomicLong();
+		this.bytesOut = new AtomicLong();
+		this.connectionsOpened = new AtomicLong();
+		this.connectionsClosed = new AtomicLong();
+		this.commitGroups = new AtomicLong();
+		this.uploadsCommitted = new AtomicLong();
+		this.uploadsOverwritten = new AtomicLong();
+		this.path = DEFAULT_PATH;
+	}
+
+	/**
+	 * Sets the path the metrics are served on, which is never looked up in the data directory
+	 * @param path path starting with /, or null or empty to not serve the metrics
+	 */
+	public void setPath(String path) {
+		this.path = path == null || path.isEmpty() ? null : path;
+	}
+
+	/**
+	 * Indicates if a request URI is the path of the metrics
+	 * @param uri path of the request URI, without its query
+	 * @return true if the metrics are served on this path
+	 */
+	public boolean isPath(String uri) {
+		String path = this.path;
+		return path != null && path.equals(uri);
+	}
+
+	/**
+	 * Records the time taken by a stage
+	 * @param stage one of the stage constants, PARSE for example
+	 * @param nanos time taken in nanoseconds
+	 */
+	public void record(int stage, long nanos) {
+		histograms[stage].record(nanos);
+	}
+
+	/**
+	 * Records a response once it is written
+	 * @param statusCode status code of the response
+	 */
+	public void responseWritten(int statusCode) {
+		if (statusCode >= 0 && statusCode < MAX_STATUS_CODE) {
+			responsesByStatus.incrementAndGet(statusCode);
+		}
+	}
+
+	public void addBytesIn(long bytes) {
+		bytesIn.addAndGet(bytes);
+	}
+
+	public void addBytesOut(long bytes) {
+		bytesOut.addAndGet(bytes);
+	}
+
+	public void connectionOpened() {
+		connectionsOpened.incrementAndGet();
+	}
+
+	public void connectionClosed() {
+		connectionsClosed.incrementAndGet();
+	}
+
+	/**
+	 * Records a group of uploads committed together
+	 * @param committed number of uploads moved in place
+	 * @param overwritten number of uploads dropped for a later upload of the same file in the group
+	 */
+	public void groupCommitted(int committed, int overwritten) {
+		commitGroups.incrementAndGet();
+		uploadsCommitted.addAndGet(committed);
+		uploadsOverwritten.addAndGet(overwritten);
+	}
+
+	/**
+	 * Writes all the metrics in the Prometheus text format
+	 * @return the text of the metrics
+	 */
+	public String render() {
+		StringBuilder out = new StringBuilder(8192);
+		out.append("# HELP http_server_responses_total Responses written, by status code.\n");
+		out.append("# TYPE http_server_responses_total counter\n");
+		for (int status = 0; status < MAX_STATUS_CODE; status++) {
+			long count = responsesByStatus.get(status);
+			if (count > 0) {
+				out.append("http_server_responses_total{code=\"").append(status).append("\"} ").append(count).append('\n');
+			}
+		}
+		long opened = connectionsOpened.get();
+		long closed = connectionsClosed.get();
+		counter(out, "http_server_connections_total", "Connections accepted.", opened);
+		gauge(out, "http_server_connections_active", "Connections open.", Math.max(0, opened - closed));
+		counter(out, "http_server_received_bytes_total", "Bytes read from the clients.", bytesIn.get());
+		counter(out, "http_server_sent_bytes_total", "Bytes written to the clients, headers included.", bytesOut.get());
+		counter(out, "http_server_access_log_dropped_total", "Access log entries dropped because the log could not keep up.", AccessLog.getInstance().getDropped());
+		counter(out, "http_server_commit_groups_total", "Groups of uploads committed together.", commitGroups.get());
+		counter(out, "http_server_uploads_committed_total", "Uploads moved in place of their files.", uploadsCommitted.get());
+		counter(out, "http_server_uploads_overwritten_total", "Uploads dropped for a later upload of the same file committed with them.", uploadsOverwritten.get());
+		renderCaches(out);
+		BufferPool bufferPool = BufferPool.getInstance();
+		gauge(out, "http_server_buffers_in_use", "Buffers borrowed from the pool.", bufferPool.getBuffersInUse());
+		gauge(out, "http_server_buffers_in_use_bytes", "Size of the buffers borrowed from the pool.", bufferPool.getBytesInUse());
+		out.append("# HELP http_server_stage_seconds Time taken by each stage of the requests.\n");
+		out.append("# TYPE http_server_stage_seconds histogram\n");
+		for (int stage = 0; stage < histograms.length; stage++) {
+			histograms[stage].render(out, STAGE_NAMES[stage]);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Writes the metrics of the caches of the FileManager, leaving out the disabled ones
+	 */
+	private static void renderCaches(StringBuilder out) {
+		FileManager fileManager = FileManager.getInstance();
+		Compression compression = fileManager.getCompression();
+		FileCache[] caches = { fileManager.getFileCache(), compression == null ? null : compression.getCache() };
+		String[] cacheNames = { "content", "compressed" };
+		long[] hits = new long[caches.length];
+		long[] misses = new long[caches.length];
+		long[] bytes = new long[caches.length];
+		for (int i = 0; i < caches.length; i++) {
+			if (caches[i] != null) {
+				hits[i] = caches[i].getHits();
+				misses[i] = caches[i].getMisses();
+				bytes[i] = caches[i].getTotalBytes();
+			}
+		}
+		cacheFamily(out, "http_server_file_cache_hits_total", "Lookups of a file found in a cache, by cache.", "counter", caches, cacheNames, hits);
+		cacheFamily(out, "http_server_file_cache_misses_total", "Lookups of a file missing from a cache, by cache.", "counter", caches, cacheNames, misses);
+		cacheFamily(out, "http_server_file_cache_bytes", "Size of the content held by a cache, by cache.", "gauge", caches, cacheNames, bytes);
+		MappedFileCache mappedFileCache = fileManager.getMappedFileCache();
+		if (mappedFileCache != null) {
+			gauge(out, "http_server_mapped_bytes", "Size of the files mapped in memory.", mappedFileCache.getMappedBytes());
+		}
+		DirectoryIndex directoryIndex = fileManager.getDirectoryIndex();
+		if (directoryIndex != null) {
+			gauge(out, "http_server_listing_directories", "Directories held by the listing index.", directoryIndex.getDirectoryCount());
+			gauge(out, "http_server_listing_entries", "Entries of the directories held by the listing index.", directoryIndex.getTotalEntries());
+		}
+	}
+
+	private static void cacheFamily(StringBuilder out, String name, String help, String type, FileCache[] caches, String[] cacheNames, long[] values) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		for (int i = 0; i < caches.length; i++) {
+			if (caches[i] != null) {
+				out.append(name).append("{cache=\"").append(cacheNames[i]).append("\"} ").append(values[i]).append('\n');
+			}
+		}
+	}
+
+	private static void counter(StringBuilder out, String name, String help, long value) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" counter\n");
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void gauge(StringBuilder out, String name, String help, long value) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" gauge\n");
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * Latency histogram with power of two buckets, the first one ending at 2^10 nanoseconds
+	 */
+	private static class Histogram {
+		// Power of two of the bound of the first bucket, in nanoseconds
+		private static final int FIRST_BOUND_SHIFT = 10;
+		// Buckets up to 2^35 nanoseconds, about 34 seconds, and one for the longer times
+		private static final int BUCKETS = 27;
+
+		private final AtomicLongArray buckets;
+		private final AtomicLong sumNanos;
+
+		Histogram() {
+			this.buckets = new AtomicLongArray(BUCKETS);
+			this.sumNanos = new AtomicLong();
+		}
+
+		void record(long nanos) {
+			if (nanos < 0) {
+				nanos = 0;
+			}
+			// Smallest power of two at least equal to the time, relative to the first bound
+			int bucket = 64 - Long.numberOfLeadingZeros(Math.max(0, nanos - 1)) - FIRST_BOUND_SHIFT;
+			buckets.incrementAndGet(Math.min(Math.max(0, bucket), BUCKETS - 1));
+			sumNanos.addAndGet(nanos);
+		}
+
+		void render(StringBuilder out, String stage) {
+			// Buckets are cumulative in the Prometheus format
+			long count = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				count += buckets.get(i);
+				out.append("http_server_stage_seconds_bucket{stage=\"").append(stage).append("\",le=\"");
+				if (i == BUCKETS - 1) {
+					out.append("+Inf");
+				} else {
+					out.append((double) (1L << (i + FIRST_BOUND_SHIFT)) / 1e9);
+				}
+				out.append("\"} ").append(count).append('\n');
+			}
+			out.append("http_server_stage_seconds_sum{stage=\"").append(stage).append("\"} ").append(sumNanos.get() / 1e9).append('\n');
+			out.append("http_server_stage_seconds_count{stage=\"").append(stage).append("\"} ").append(count).append('\n');
+		}
+	}
+}
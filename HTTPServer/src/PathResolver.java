@@ -0,0 +1,307 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import exception.PathNotAllowedException;
+
+/**
+ * Resolves the URIs of the requests to the files of the data directory. A URI
+ * is percent-decoded and its segments are walked from the root, so that the
+ * resolved path can never leave the root. Each URI is resolved once and then
+ * found with a single lookup, along with a snapshot of the attributes of its
+ * file, which is read again once it is older than the time to live, or as soon
+ * as the server writes the file. Files changed by other programs are thus seen
+ * within the time to live.
+ */
+public class PathResolver {
+
+	public static final long DEFAULT_TTL_MILLIS = 1000;
+	public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+	private final Path root;
+	private final long ttlNanos;
+	private final int maxEntries;
+	// Files by URI, and the same files by path so that the server can drop their attributes
+	private final ConcurrentHashMap<String, Entry> byURI;
+	private final ConcurrentHashMap<Path, Entry> byPath;
+
+	/**
+	 * Constructor
+	 * @param root absolute path of the data directory
+	 * @param ttlMillis how long the attributes of a file are used before being read again, 0 to always read them
+	 * @param maxEntries number of URIs kept resolved, past which they are all resolved again
+	 */
+	public PathResolver(Path root, long ttlMillis, int maxEntries) {
+		this.root = root.toAbsolutePath().normalize();
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, ttlMillis));
+		this.maxEntries = Math.max(1, maxEntries);
+		this.byURI = new ConcurrentHashMap<String, Entry>();
+		this.byPath = new ConcurrentHashMap<Path, Entry>();
+	}
+
+	/**
+	 * Gets the data directory
+	 * @return absolute path of the root
+	 */
+	public Path getRoot() {
+		return root;
+	}
+
+	/**
+	 * Resolves the path of a request URI, without accessing the file
+	 * @param uri path of the request URI, without its query, for example /dir/some%20file.txt
+	 * @return the file, under the root
+	 * @throws PathNotAllowedException if the URI is malformed or leaves the root
+	 */
+	public Entry resolve(String uri) throws PathNotAllowedException {
+		Entry entry = byURI.get(uri);
+		if (entry != null) {
+			return entry;
+		}
+		Path path = toPath(decode(uri));
+		entry = getEntry(path);
+		if (byURI.size() >= maxEntries) {
+			// Resolving again is cheap, no need to keep track of which URIs are used the most
+			byURI.clear();
+			byPath.clear();
+		}
+		byURI.put(uri, entry);
+		return entry;
+	}
+
+	/**
+	 * Gets the attributes of a file, from the snapshot taken less than the time to live ago if any
+	 * @param path absolute path of the file
+	 * @return the attributes, or null if the file does not exist
+	 * @throws IOException if the attributes cannot be read
+	 */
+	public BasicFileAttributes getAttributes(Path path) throws IOException {
+		Entry entry = byPath.get(path);
+		if (entry == null) {
+			if (!path.startsWith(root)) {
+				// Not a file of the data directory, never cached
+				return readAttributes(path);
+			}
+			entry = getEntry(path);
+		}
+		return entry.getAttributes();
+	}
+
+	/**
+	 * Drops the attributes of a file written by the server, and of the directories above it
+	 * which may have been created or changed along with it
+	 * @param path absolute path of the file
+	 */
+	public void invalidate(Path path) {
+		for (Path current = path; current != null && current.startsWith(root); current = current.getParent()) {
+			Entry entry = byPath.get(current);
+			if (entry != null) {
+				entry.snapshot.set(new Snapshot());
+			}
+		}
+	}
+
+	private Entry getEntry(Path path) {
+		Entry entry = byPath.get(path);
+		if (entry == null) {
+			Entry created = new Entry(path);
+			entry = byPath.putIfAbsent(path, created);
+			if (entry == null) {
+				entry = created;
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Walks the segments of a decoded URI from the root
+	 */
+	private Path toPath(String decoded) throws PathNotAllowedException {
+		Path path = root;
+		try {
+			for (String segment : decoded.split("/")) {
+				if (segment.isEmpty() || segment.equals(".")) {
+					continue;
+				}
+				if (segment.equals("..")) {
+					if (path.equals(root)) {
+						throw new PathNotAllowedException("The path cannot go above the data directory");
+					}
+					path = path.getParent();
+					continue;
+				}
+				path = path.resolve(segment);
+			}
+		} catch (InvalidPathException e) {
+			throw new PathNotAllowedException("Invalid path");
+		}
+		// A segment could still be absolute on some systems, for example C: on Windows
+		if (!path.normalize().startsWith(root)) {
+			throw new PathNotAllowedException("The path cannot go above the data directory");
+		}
+		return path;
+	}
+
+	/**
+	 * Decodes the %XX sequences of a URI, the bytes being UTF-8
+	 * @param uri the URI as sent by the client, one char per byte
+	 * @return the decoded URI
+	 * @throws PathNotAllowedException if a sequence is malformed or decodes to a separator or a null character
+	 */
+	static String decode(String uri) throws PathNotAllowedException {
+		if (uri.indexOf('\\') >= 0) {
+			throw new PathNotAllowedException("The path cannot contain \\");
+		}
+		if (isPlainASCII(uri)) {
+			return uri;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(uri.length());
+		for (int i = 0; i < uri.length(); i++) {
+			char c = uri.charAt(i);
+			if (c != '%') {
+				bytes.write(c);
+				continue;
+			}
+			int high = i + 2 < uri.length() ? Character.digit(uri.charAt(i + 1), 16) : -1;
+			int low = high >= 0 ? Character.digit(uri.charAt(i + 2), 16) : -1;
+			if (low < 0) {
+				throw new PathNotAllowedException("Invalid percent-encoding in the path");
+			}
+			int b = high * 16 + low;
+			// An encoded separator would be taken for a separator once decoded
+			if (b == 0 || b == '/' || b == '\\') {
+				throw new PathNotAllowedException("The path cannot contain an encoded separator or null character");
+			}
+			bytes.write(b);
+			i += 2;
+		}
+		try {
+			return StandardCharsets.UTF_8.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPORT)
+					.onUnmappableCharacter(CodingErrorAction.REPORT)
+					.decode(ByteBuffer.wrap(bytes.toByteArray()))
+					.toString();
+		} catch (CharacterCodingException e) {
+			throw new PathNotAllowedException("The path is not valid UTF-8");
+		}
+	}
+
+	private static boolean isPlainASCII(String uri) {
+		for (int i = 0; i < uri.length(); i++) {
+			char c = uri.charAt(i);
+			if (c == '%' || c >= 0x80) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static BasicFileAttributes readAttributes(Path path) throws IOException {
+		try {
+			return Files.readAttributes(path, BasicFileAttributes.class);
+		} catch (NoSuchFileException | NotDirectoryException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * File of the data directory, with the last snapshot of its attributes
+	 */
+	public class Entry {
+		private final Path path;
+		private final File file;
+		private final AtomicReference<Snapshot> snapshot;
+		// Validators of the last version of the file sent, by encoding: as is, gzip, and deflate
+		private final Validators[] validators;
+
+		Entry(Path path) {
+			this.path = path;
+			this.file = path.toFile();
+			this.snapshot = new AtomicReference<Snapshot>(new Snapshot());
+			this.validators = new Validators[3];
+		}
+
+		public Path getPath() {
+			return path;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * Gets the attributes of the file, read again if the snapshot is too old
+		 * @return the attributes, or null if the file does not exist
+		 * @throws IOException if the attributes cannot be read
+		 */
+		public BasicFileAttributes getAttributes() throws IOException {
+			Snapshot current = snapshot.get();
+			long now = System.nanoTime();
+			if (current.valid && now - current.readAt < ttlNanos) {
+				return current.attributes;
+			}
+			BasicFileAttributes attributes = readAttributes(path);
+			if (ttlNanos > 0) {
+				// Unless the file was written meanwhile, the attributes read may be those of before
+				snapshot.compareAndSet(current, new Snapshot(attributes, now));
+			}
+			return attributes;
+		}
+
+		/**
+		 * Gets the validators of a version of the file, encoded again only once the version changed
+		 * @param length size of the file, or of the copy sent instead
+		 * @param tagTime modification time the tag is made of, in milliseconds
+		 * @param lastModifiedTime modification time of the file in milliseconds
+		 * @param encoding content coding of the response, or null if the file is sent as is
+		 * @return the validators
+		 */
+		public Validators getValidators(long length, long tagTime, long lastModifiedTime, String encoding) {
+			int slot = encoding == null ? 0 : Compression.GZIP.equals(encoding) ? 1 : 2;
+			Validators current = validators[slot];
+			if (current == null || !current.matches(length, tagTime, lastModifiedTime, encoding)) {
+				current = new Validators(length, tagTime, lastModifiedTime, encoding);
+				// Racing threads may each encode them, the validators being immutable any of them can be kept
+				validators[slot] = current;
+			}
+			return current;
+		}
+	}
+
+	private static class Snapshot {
+		// Null if the file does not exist
+		final BasicFileAttributes attributes;
+		final long readAt;
+		// False until the attributes are read, or once the file is written by the server
+		final boolean valid;
+
+		Snapshot(BasicFileAttributes attributes, long readAt) {
+			this.attributes = attributes;
+			this.readAt = readAt;
+			this.valid = true;
+		}
+
+		/**
+		 * Constructor of a snapshot to be replaced, each one distinct so that a snapshot read
+		 * before the file was written does not replace it
+		 */
+		Snapshot() {
+			this.attributes = null;
+			this.readAt = 0;
+			this.valid = false;
+		}
+	}
+}
@@ -0,0 +1,542 @@
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.channels.SelectionKey.OP_WRITE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import exception.BadRequestException;
+import exception.PayloadTooLargeException;
+import exception.ServiceUnavailableException;
+
+/**
+ * Event loop running on its own thread with its own Selector. The acceptor of
+ * the HTTPServer hands it the accepted clients, and the reactor then reads their
+ * requests and writes their responses until the connection is closed, either
+ * by the client, after a response that does not keep it alive, or after it
+ * stayed idle for longer than the keep-alive timeout.
+ */
+public class Reactor implements Runnable {
+
+	// Precision of the idle timeouts
+	private static final long IDLE_TIMEOUT_TICK = 1000;
+
+	private final int id;
+	private final HTTPServer server;
+	private final Selector selector;
+
+	// Clients handed over by the acceptor, registered by the reactor thread on its next loop
+	private final ConcurrentLinkedQueue<SocketChannel> pendingClients;
+	// Responses produced by the workers, written by the reactor thread on its next loop
+	private final ConcurrentLinkedQueue<CompletedResponse> completedResponses;
+	// Clients for which more of a streamed body was written, served by the reactor thread on its next loop
+	private final ConcurrentLinkedQueue<SelectionKey> resumedClients;
+	// Clients whose received upload bytes were written by a worker, and the error that kept it from running if any
+	private final ConcurrentLinkedQueue<WrittenBody> writtenBodies;
+	// Pool running the file accesses of the requests
+	private final WorkerPool workerPool;
+	// Number of clients currently served by this reactor
+	private final AtomicInteger connectionCount;
+
+	// Pool of the buffers the connections read their requests into
+	private final BufferPool bufferPool = BufferPool.getInstance();
+
+	// Closes the connections that stay idle for longer than the keep-alive timeout
+	private final IdleTimeoutWheel idleTimeoutWheel;
+
+	/**
+	 * Constructor
+	 * @param id number of the reactor, used to name its thread
+	 * @param server server whose settings are used to handle the requests
+	 * @param workerPool pool running the file accesses of the requests
+	 * @throws IOException if the selector cannot be opened
+	 */
+	public Reactor(int id, HTTPServer server, WorkerPool workerPool) throws IOException {
+		this.id = id;
+		this.server = server;
+		this.workerPool = workerPool;
+		this.selector = Selector.open();
+		this.pendingClients = new ConcurrentLinkedQueue<SocketChannel>();
+		this.completedResponses = new ConcurrentLinkedQueue<CompletedResponse>();
+		this.resumedClients = new ConcurrentLinkedQueue<SelectionKey>();
+		this.writtenBodies = new ConcurrentLinkedQueue<WrittenBody>();
+		this.connectionCount = new AtomicInteger();
+		this.idleTimeoutWheel = new IdleTimeoutWheel(server.keepAliveTimeout,
+				Math.min(IDLE_TIMEOUT_TICK, Math.max(1, server.keepAliveTimeout)), System.currentTimeMillis());
+	}
+
+	/**
+	 * Starts the reactor on a new thread
+	 */
+	public void start() {
+		new Thread(this, "reactor-" + id).start();
+	}
+
+	/**
+	 * Number of clients currently served by this reactor
+	 * @return number of open connections
+	 */
+	public int getConnectionCount() {
+		return connectionCount.get();
+	}
+
+	/**
+	 * Hands a newly accepted client over to this reactor. Safe to call from any thread.
+	 * @param client non-blocking socket of the client
+	 */
+	public void register(SocketChannel client) {
+		connectionCount.incrementAndGet();
+		Metrics.getInstance().connectionOpened();
+		pendingClients.offer(client);
+		// Wake up the reactor thread so that it registers the client right away
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		try {
+			for (; ; ) {
+				runLoop();
+			}
+		} catch (IOException e) {
+			System.out.println("Reactor " + id + " stopped: " + e.getMessage());
+		}
+	}
+
+	private void runLoop() throws IOException {
+		// Check if there is any event (eg. new data) happened, waking up at least once per tick of the timeout wheel
+		selector.select(idleTimeoutWheel.getTickMillis());
+		long start = System.nanoTime();
+
+		registerPendingClients();
+		writeCompletedResponses();
+		serviceResumedClients();
+		serviceWrittenBodies();
+
+		for (SelectionKey s : selector.selectedKeys()) {
+			// Writable means the socket can take more of the responses being written
+			if (s.isValid() && s.isWritable()) {
+				serviceConnection(s);
+
+				// Readable means this client has sent data or closed
+			} else if (s.isValid() && s.isReadable()) {
+				readAndGetRequest(s);
+			}
+		}
+		// We must clear this set, otherwise the select will return the same value again
+		selector.selectedKeys().clear();
+
+		closeIdleConnections();
+		Metrics.getInstance().record(Metrics.SELECTOR_LOOP, System.nanoTime() - start);
+	}
+
+	private void registerPendingClients() {
+		SocketChannel client;
+		while ((client = pendingClients.poll()) != null) {
+			try {
+				HTTPConnection connection = new HTTPConnection(client, bufferPool, server.maxHeaderCount, server.maxHeaderSize, server.maxUploadSize);
+				connection.setKey(client.register(selector, OP_READ, connection));
+				connection.setIdleDeadline(System.currentTimeMillis() + server.keepAliveTimeout);
+				idleTimeoutWheel.schedule(connection);
+			} catch (ClosedChannelException e) {
+				connectionCount.decrementAndGet();
+				Metrics.getInstance().connectionClosed();
+			}
+		}
+	}
+
+	/**
+	 * Closes the connections on which nothing happened for longer than the keep-alive timeout
+	 */
+	private void closeIdleConnections() {
+		for (HTTPConnection connection : idleTimeoutWheel.expire(System.currentTimeMillis())) {
+			if (server.verbose) {
+				AccessLog.getInstance().debug("[DEBUG: Closing idle connection]");
+			}
+			unregisterClient(connection.getKey());
+		}
+	}
+
+	/**
+	 * Method to read the bytes sent by a client and handle its requests once they are complete
+	 * @param s
+	 */
+	private void readAndGetRequest(SelectionKey s) {
+		HTTPConnection connection = (HTTPConnection) s.attachment();
+		try {
+			// If the number of bytes read is -1, the peer is closed
+			if (connection.read() == -1) {
+				unregisterClient(s);
+				return;
+			}
+		} catch (BadRequestException | PayloadTooLargeException e) {
+			// The request could not be framed, answer with the error once the previous responses are written
+			rejectRequest(connection, e);
+		} catch (IOException e) {
+			unregisterClient(s);
+			return;
+		}
+		serviceConnection(s);
+	}
+
+	/**
+	 * Moves a connection forward: handles the complete requests it received, writes
+	 * the responses that are ready in the order of the requests, and decides what
+	 * the connection waits for next.
+	 * @param s
+	 */
+	private void serviceConnection(SelectionKey s) {
+		HTTPConnection connection = (HTTPConnection) s.attachment();
+		try {
+			for (; ; ) {
+				handleRequests(s);
+				boolean queued = connection.queueReadyResponses();
+				if (!connection.flush()) {
+					break;
+				}
+				if (connection.isCloseAfterWrite()) {
+					unregisterClient(s);
+					return;
+				}
+				// Writing responses may have made room for more pipelined requests
+				if (!queued) {
+					break;
+				}
+			}
+		} catch (IOException e) {
+			// The client is gone, nothing else to do than closing the connection
+			unregisterClient(s);
+			return;
+		}
+
+		// The received bytes of an upload are written to its file by a worker
+		if (connection.hasBodyToWrite()) {
+			writeBody(s);
+		}
+
+		// Read more requests while there is room for them, write once the socket accepts more
+		// The body of an upload is always read, its request cannot be processed without it,
+		// but not while a worker writes the bytes already received
+		// While the producer of a streamed body writes more of it, the client is not polled at all
+		int interestOps = 0;
+		if (connection.hasPendingWrites()) {
+			if (!connection.isWaitingForBody()) {
+				interestOps |= OP_WRITE;
+			}
+		} else if (connection.isReceivingBody() ? !connection.isWritingBody()
+				: !connection.isClosing() && connection.getPendingResponseCount() < server.maxPipelinedRequests) {
+			interestOps |= OP_READ;
+		}
+		s.interestOps(interestOps);
+
+		// Do not time out while requests are being processed, but do while waiting for the body of an upload
+		boolean waitingForClient = connection.isReceivingBody() && !connection.isWritingBody();
+		connection.setIdleDeadline(connection.getPendingResponseCount() > 0 && !waitingForClient ? Long.MAX_VALUE
+				: System.currentTimeMillis() + server.keepAliveTimeout);
+	}
+
+	/**
+	 * Submits the write of the received bytes of an upload to the worker pool, the reactor
+	 * reading the socket again once it is done
+	 * @param s
+	 */
+	private void writeBody(final SelectionKey s) {
+		final HTTPConnection connection = (HTTPConnection) s.attachment();
+		connection.startBodyWrite();
+		try {
+			workerPool.submit(new Runnable() {
+				@Override
+				public void run() {
+					connection.writeBody();
+					bodyWritten(s, null);
+				}
+			});
+		} catch (ServiceUnavailableException e) {
+			// The upload is answered with the error once its request can be processed
+			bodyWritten(s, e);
+		}
+	}
+
+	/**
+	 * Hands the buffer of a connection back to this reactor once a worker wrote the received
+	 * bytes of an upload. Safe to call from any thread.
+	 * @param s key of the client the upload is from
+	 * @param error error that kept the worker from writing, null if it ran
+	 */
+	private void bodyWritten(SelectionKey s, Exception error) {
+		writtenBodies.offer(new WrittenBody(s, error));
+		selector.wakeup();
+	}
+
+	/**
+	 * Handles the complete requests received on a connection, up to the maximum number of
+	 * requests in flight. The request line and headers are read on the reactor thread,
+	 * while the file accesses are done on the worker pool, possibly for several requests
+	 * of the connection at the same time. A request modifying a file is processed alone,
+	 * after the requests before it and before the requests after it.
+	 * @param s
+	 */
+	private void handleRequests(final SelectionKey s) {
+		HTTPConnection connection = (HTTPConnection) s.attachment();
+		// Do not take more requests while responses are waiting for the socket, to bound the memory used
+		while (!connection.hasPendingWrites()) {
+			HTTPConnection.PendingResponse pendingResponse = connection.getHeldResponse();
+			if (pendingResponse == null) {
+				if (connection.isClosing() || connection.getPendingResponseCount() >= server.maxPipelinedRequests) {
+					return;
+				}
+				HTTPRequestParser request;
+				try {
+					request = connection.nextRequest();
+				} catch (BadRequestException | PayloadTooLargeException e) {
+					rejectRequest(connection, e);
+					return;
+				}
+				if (request == null) {
+					return;
+				}
+				HTTPRequestHandler requestHandler = newRequestHandler(connection);
+				pendingResponse = connection.addPendingResponse(requestHandler);
+				if(server.verbose) {
+					AccessLog.getInstance().debug("\n[DEBUG: Request received]\n" + request);
+				}
+
+				// The request is read out of the buffer of the connection before it is reused
+				boolean valid = requestHandler.readRequest(request);
+				Upload upload = null;
+				if (valid && connection.isBodyStreamed()) {
+					upload = requestHandler.openUpload(request, server.maxUploadSize);
+					// A client waiting for the go-ahead gets it right away, unless the responses
+					// of the previous requests must be written first
+					if (!upload.isComplete() && request.isVersion("HTTP/1.1") && request.headerEquals("Expect", "100-continue")
+							&& connection.getPendingResponseCount() == 1) {
+						connection.enqueue(ByteBuffer.wrap(HTTPResponseWriter.CONTINUE));
+					}
+				}
+				connection.consumeRequest();
+				if (!valid) {
+					// Invalid request, no file to access
+					pendingResponse.setResponse(requestHandler.createHTTPResponse());
+					connection.setClosing(true);
+					return;
+				}
+				// No request is taken after one whose response closes the connection
+				if (!requestHandler.isKeepAlive()) {
+					connection.setClosing(true);
+				}
+				if (upload != null) {
+					connection.receiveBody(upload);
+				}
+			}
+
+			boolean exclusive = !pendingResponse.getRequestHandler().isReadOnly();
+			if (connection.isReceivingBody() || !connection.canRun(exclusive)) {
+				// Wait for the body of the request, or for the running requests to finish
+				connection.setHeldResponse(pendingResponse);
+				return;
+			}
+			connection.setHeldResponse(null);
+			dispatch(s, pendingResponse, exclusive);
+		}
+	}
+
+	/**
+	 * Submits the processing of a request to the worker pool
+	 * @param s
+	 * @param pendingResponse place of the response of the request
+	 * @param exclusive true if the request modifies a file
+	 */
+	private void dispatch(final SelectionKey s, final HTTPConnection.PendingResponse pendingResponse, boolean exclusive) {
+		HTTPConnection connection = (HTTPConnection) s.attachment();
+		final HTTPRequestHandler requestHandler = pendingResponse.getRequestHandler();
+		connection.requestStarted(exclusive);
+		final long submitted = System.nanoTime();
+		try {
+			workerPool.submit(new Runnable() {
+				@Override
+				public void run() {
+					long start = System.nanoTime();
+					Metrics.getInstance().record(Metrics.QUEUE, start - submitted);
+					requestHandler.parseRequest();
+					WriteCommitter.Commit commit = requestHandler.getCommit();
+					HTTPResponse response = commit == null ? requestHandler.createHTTPResponse() : null;
+					Metrics.getInstance().record(Metrics.PROCESS, System.nanoTime() - start);
+					if (commit != null) {
+						// The upload is answered once committed, without holding the worker meanwhile
+						commit.setListener(new Runnable() {
+							@Override
+							public void run() {
+								requestHandler.commitEnded();
+								complete(s, pendingResponse, requestHandler.createHTTPResponse());
+							}
+						});
+						return;
+					}
+					StreamedBody streamedBody = response.getStreamedBody();
+					if (streamedBody == null) {
+						complete(s, pendingResponse, response);
+						return;
+					}
+					streamedBody.setListener(new Runnable() {
+						@Override
+						public void run() {
+							resume(s);
+						}
+					}, workerPool);
+					complete(s, pendingResponse, response);
+					// The body is written on this worker while the reactor sends the head and the first chunks,
+					// then on any worker each time the client made room for more
+					streamedBody.produce();
+				}
+			});
+		} catch (ServiceUnavailableException e) {
+			// The server is too busy, answer with the error and drop the connection
+			connection.requestFinished();
+			pendingResponse.setResponse(requestHandler.handleError(e));
+			connection.setClosing(true);
+		}
+	}
+
+	/**
+	 * Answers a request that could not be framed with an error and stops taking requests,
+	 * since the following ones cannot be found anymore
+	 * @param connection
+	 * @param e Exception raised while framing the request
+	 */
+	private void rejectRequest(HTTPConnection connection, Exception e) {
+		if (connection.isClosing()) {
+			return;
+		}
+		HTTPRequestHandler requestHandler = newRequestHandler(connection);
+		connection.addPendingResponse(requestHandler).setResponse(requestHandler.handleError(e));
+		connection.setClosing(true);
+	}
+
+	/**
+	 * Creates the handler of the next request of a connection, allowing it to keep the
+	 * connection open unless the connection already served its maximum number of requests
+	 * @param connection
+	 * @return the request handler
+	 */
+	private HTTPRequestHandler newRequestHandler(HTTPConnection connection) {
+		HTTPRequestHandler requestHandler = new HTTPRequestHandler(server.verbose, server.port);
+		requestHandler.setKeepAliveAllowed(connection.getRequestCount() < server.maxRequestsPerConnection);
+		return requestHandler;
+	}
+
+	/**
+	 * Hands a response produced by a worker back to this reactor. Safe to call from any thread.
+	 * @param s key of the client the response is for
+	 * @param pendingResponse place of the response among the responses of the client
+	 * @param response the response to write
+	 */
+	private void complete(SelectionKey s, HTTPConnection.PendingResponse pendingResponse, HTTPResponse response) {
+		completedResponses.offer(new CompletedResponse(s, pendingResponse, response));
+		// Wake up the reactor thread so that it writes the response right away
+		selector.wakeup();
+	}
+
+	/**
+	 * Wakes up this reactor to send more of a streamed body. Safe to call from any thread.
+	 * @param s key of the client the body is for
+	 */
+	private void resume(SelectionKey s) {
+		resumedClients.offer(s);
+		selector.wakeup();
+	}
+
+	private void serviceResumedClients() {
+		SelectionKey s;
+		while ((s = resumedClients.poll()) != null) {
+			HTTPConnection connection = (HTTPConnection) s.attachment();
+			if (s.isValid() && !connection.isClosed()) {
+				serviceConnection(s);
+			}
+		}
+	}
+
+	private void serviceWrittenBodies() {
+		WrittenBody written;
+		while ((written = writtenBodies.poll()) != null) {
+			HTTPConnection connection = (HTTPConnection) written.key.attachment();
+			try {
+				connection.bodyWritten(written.error);
+			} catch (BadRequestException | PayloadTooLargeException e) {
+				// The request following the body cannot be framed
+				rejectRequest(connection, e);
+			}
+			if (written.key.isValid() && !connection.isClosed()) {
+				serviceConnection(written.key);
+			}
+		}
+	}
+
+	private void writeCompletedResponses() {
+		CompletedResponse completed;
+		while ((completed = completedResponses.poll()) != null) {
+			HTTPConnection connection = (HTTPConnection) completed.key.attachment();
+			if (completed.key.isValid() && !connection.isClosed()) {
+				if(server.verbose) {
+					AccessLog.getInstance().debug("[DEBUG: Response sent to client]\n" + StandardCharsets.UTF_8.decode(completed.response.getHead().duplicate()));
+				}
+				connection.requestFinished();
+				completed.pendingResponse.setResponse(completed.response);
+				serviceConnection(completed.key);
+			} else {
+				// The client is gone, release what the response holds
+				completed.response.release();
+			}
+		}
+	}
+
+	private void unregisterClient(SelectionKey s) {
+		HTTPConnection connection = (HTTPConnection) s.attachment();
+		if (connection.isClosed()) {
+			return;
+		}
+		try {
+			connection.close();
+			s.cancel();
+			s.channel().close();
+		} catch (IOException e) {
+			System.out.println("Failed to clean up");
+		} finally {
+			connectionCount.decrementAndGet();
+			Metrics.getInstance().connectionClosed();
+		}
+	}
+
+	/**
+	 * Received bytes of an upload written by a worker for one of the clients of this reactor
+	 */
+	private static class WrittenBody {
+		final SelectionKey key;
+		final Exception error;
+
+		WrittenBody(SelectionKey key, Exception error) {
+			this.key = key;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * Response produced by a worker for one of the clients of this reactor
+	 */
+	private static class CompletedResponse {
+		final SelectionKey key;
+		final HTTPConnection.PendingResponse pendingResponse;
+		final HTTPResponse response;
+
+		CompletedResponse(SelectionKey key, HTTPConnection.PendingResponse pendingResponse, HTTPResponse response) {
+			this.key = key;
+			this.pendingResponse = pendingResponse;
+			this.response = response;
+		}
+	}
+}
@@ -0,0 +1,407 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+import exception.ServiceUnavailableException;
+
+/**
+ * Body of a response whose length is not known when its head is sent, for
+ * example a directory listing. A producer writes the body on a worker thread
+ * while the reactor sends what is already written, so that the first bytes go
+ * out early. The body is cut into chunks of pooled buffers, framed with
+ * Transfer-Encoding: chunked, or sent as is for HTTP/1.0 clients, the end of
+ * the body then being the end of the connection. The producer writes the body
+ * one part at a time, and stops once too many chunks are written and not sent
+ * yet, so that the memory used stays bounded whatever the size of the body.
+ * It does not wait for the client meanwhile: the worker is given back to the
+ * pool, and the producer is submitted again once the reactor sent a chunk.
+ */
+public class StreamedBody extends OutputStream {
+
+	// Size of the buffers holding the chunks
+	public static final int CHUNK_BUFFER_SIZE = 16384;
+	// Number of chunks written and not sent yet past which the producer stops until one is sent
+	public static final int MAX_QUEUED_CHUNKS = 4;
+
+	// Room left before the data of a chunk for its size line, and after it for its CRLF
+	private static final int CHUNK_HEADER_SIZE = 8;
+	private static final int CHUNK_TRAILER_SIZE = 2;
+	private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Writes the content of a body
+	 */
+	public interface Producer {
+		/**
+		 * Writes the next part of the body, from a worker thread, about a chunk at most
+		 * @param out stream to write the body to
+		 * @return true once the whole body is written
+		 * @throws Exception if the body cannot be produced, the response is then cut short
+		 */
+		boolean writeNext(OutputStream out) throws Exception;
+
+		/**
+		 * Releases what the producer holds, once the body is written or dropped
+		 */
+		void close();
+	}
+
+	private final BufferPool bufferPool;
+	private final Producer producer;
+	private final boolean chunked;
+
+	// Buffer being filled by the producer, only used by the producer
+	private ByteBuffer current;
+
+	// Chunks written and not sent yet, ready to be read, guarded by this
+	private final ArrayDeque<ByteBuffer> chunks;
+	private int queuedChunks;
+	// Whether the producer wrote the whole body
+	private boolean finished;
+	// Why the body could not be produced, null if it could
+	private Exception failure;
+	// Whether the response was dropped, the producer stopping at its next write
+	private boolean aborted;
+	// Whether the reactor waits for more chunks, and must be woken up when there are
+	private boolean waiting;
+	// Wakes up the reactor sending the body
+	private Runnable listener;
+	// Pool the producer is submitted to again once it can write more
+	private WorkerPool workerPool;
+	// Whether the producer stopped until a chunk is sent
+	private boolean suspended;
+	// Bytes sent so far, only used by the reactor
+	private long bytesSent;
+
+	/**
+	 * Constructor
+	 * @param chunked true to frame the body with Transfer-Encoding: chunked, false to send it as is
+	 * @param producer writes the content of the body
+	 */
+	public StreamedBody(boolean chunked, Producer producer) {
+		this.bufferPool = BufferPool.getInstance();
+		this.chunked = chunked;
+		this.producer = producer;
+		this.chunks = new ArrayDeque<ByteBuffer>();
+	}
+
+	/**
+	 * Sets what to run when chunks are written while the reactor waits for them
+	 * @param listener run on the producer thread, to wake up the reactor
+	 * @param workerPool pool the producer is submitted to again once a chunk is sent
+	 */
+	public synchronized void setListener(Runnable listener, WorkerPool workerPool) {
+		this.listener = listener;
+		this.workerPool = workerPool;
+	}
+
+	/**
+	 * Runs the producer on a worker, once the head of the response is handed to the reactor,
+	 * until the body is written or too many chunks are waiting to be sent
+	 */
+	public void produce() {
+		boolean done = true;
+		try {
+			done = produceChunks();
+		} catch (Exception e) {
+			fail(e);
+		} finally {
+			if (done) {
+				producer.close();
+			}
+		}
+	}
+
+	/**
+	 * Runs the producer while there is room for more chunks
+	 * @return true once the producer is done, false if it stopped until a chunk is sent
+	 */
+	private boolean produceChunks() throws Exception {
+		for (; ; ) {
+			synchronized (this) {
+				if (aborted) {
+					releaseCurrent();
+					return true;
+				}
+				if (queuedChunks >= MAX_QUEUED_CHUNKS) {
+					suspended = true;
+					return false;
+				}
+			}
+			if (producer.writeNext(this)) {
+				close();
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Submits the stopped producer to the worker pool again, once a chunk was sent
+	 */
+	private void resume() {
+		try {
+			workerPool.submit(new Runnable() {
+				@Override
+				public void run() {
+					produce();
+				}
+			});
+		} catch (ServiceUnavailableException e) {
+			// The response is cut short
+			fail(e);
+			producer.close();
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureRoom();
+		current.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		while (length > 0) {
+			ensureRoom();
+			int count = Math.min(length, current.remaining() - reservedTrailer());
+			current.put(bytes, offset, count);
+			offset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Writes a String encoded in UTF-8
+	 * @param text text to write
+	 * @throws IOException if the response was dropped
+	 */
+	public void write(String text) throws IOException {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		write(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Sends the bytes written so far without waiting for the chunk to be full
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (current != null && current.position() > dataStart()) {
+			ByteBuffer chunk = frame(current);
+			current = null;
+			publish(chunk);
+		}
+	}
+
+	/**
+	 * Ends the body once the producer wrote all of it
+	 */
+	@Override
+	public void close() throws IOException {
+		flush();
+		ByteBuffer last = chunked ? ByteBuffer.wrap(LAST_CHUNK) : null;
+		Runnable wakeUp;
+		synchronized (this) {
+			if (finished || aborted) {
+				return;
+			}
+			if (last != null) {
+				chunks.add(last);
+				queuedChunks++;
+			}
+			finished = true;
+			wakeUp = takeWakeUp();
+		}
+		if (wakeUp != null) {
+			wakeUp.run();
+		}
+	}
+
+	/**
+	 * Sends as many written bytes as the target accepts without blocking
+	 * @param target channel to write to
+	 * @return true once the whole body is sent, false if the target is full or the
+	 * next chunk is not written yet, isWaiting telling which
+	 * @throws IOException if the target cannot be written or the body could not be produced
+	 */
+	public boolean transferTo(WritableByteChannel target) throws IOException {
+		for (; ; ) {
+			ByteBuffer chunk;
+			synchronized (this) {
+				chunk = chunks.peek();
+				if (chunk == null) {
+					if (failure != null) {
+						throw new IOException("The response could not be produced", failure);
+					}
+					if (finished) {
+						return true;
+					}
+					waiting = true;
+					return false;
+				}
+			}
+			bytesSent += target.write(chunk);
+			if (chunk.hasRemaining()) {
+				return false;
+			}
+			boolean resume = false;
+			synchronized (this) {
+				chunks.poll();
+				queuedChunks--;
+				// Let the producer write more
+				if (suspended) {
+					suspended = false;
+					resume = true;
+				}
+			}
+			release(chunk);
+			if (resume) {
+				resume();
+			}
+		}
+	}
+
+	/**
+	 * Number of bytes sent so far, chunk framing included
+	 * @return number of bytes, to be read by the reactor sending the body
+	 */
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	/**
+	 * Indicates if the reactor waits for the producer to write more of the body
+	 * @return true until more chunks are written
+	 */
+	public synchronized boolean isWaiting() {
+		return waiting;
+	}
+
+	/**
+	 * Drops the body when the response is released, stopping the producer at its next write
+	 */
+	public void abort() {
+		boolean stopped;
+		synchronized (this) {
+			if (aborted) {
+				return;
+			}
+			aborted = true;
+			for (ByteBuffer chunk : chunks) {
+				release(chunk);
+			}
+			chunks.clear();
+			queuedChunks = 0;
+			// A running producer stops by itself, a stopped one is closed here
+			stopped = suspended;
+			suspended = false;
+		}
+		if (stopped) {
+			releaseCurrent();
+			producer.close();
+		}
+	}
+
+	private void fail(Exception e) {
+		releaseCurrent();
+		Runnable wakeUp;
+		synchronized (this) {
+			if (aborted) {
+				return;
+			}
+			failure = e;
+			wakeUp = takeWakeUp();
+		}
+		if (wakeUp != null) {
+			wakeUp.run();
+		}
+	}
+
+	/**
+	 * Makes sure the current buffer has room for at least one more byte of data
+	 */
+	private void ensureRoom() throws IOException {
+		if (current != null && current.remaining() > reservedTrailer()) {
+			return;
+		}
+		flush();
+		current = bufferPool.acquire(CHUNK_BUFFER_SIZE);
+		current.position(dataStart());
+	}
+
+	/**
+	 * Adds the size line and CRLF of a chunk around its data
+	 * @return the chunk, ready to be read
+	 */
+	private ByteBuffer frame(ByteBuffer buffer) {
+		int dataEnd = buffer.position();
+		if (!chunked) {
+			buffer.flip();
+			return buffer;
+		}
+		byte[] sizeLine = (Integer.toHexString(dataEnd - CHUNK_HEADER_SIZE) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+		buffer.put((byte) '\r').put((byte) '\n');
+		buffer.limit(buffer.position());
+		buffer.position(CHUNK_HEADER_SIZE - sizeLine.length);
+		buffer.duplicate().put(sizeLine);
+		return buffer;
+	}
+
+	/**
+	 * Queues a chunk to be sent, the producer stopping after its current part once too many are queued
+	 */
+	private void publish(ByteBuffer chunk) throws IOException {
+		Runnable wakeUp;
+		synchronized (this) {
+			if (aborted) {
+				bufferPool.release(chunk);
+				throw new IOException("The response was dropped");
+			}
+			chunks.add(chunk);
+			queuedChunks++;
+			wakeUp = takeWakeUp();
+		}
+		if (wakeUp != null) {
+			wakeUp.run();
+		}
+	}
+
+	/**
+	 * Stops waiting, called with the lock held
+	 * @return the listener to run once the lock is released, null if the reactor does not wait
+	 */
+	private Runnable takeWakeUp() {
+		if (!waiting) {
+			return null;
+		}
+		waiting = false;
+		return listener;
+	}
+
+	/**
+	 * Releases the buffer being filled, only while the producer is not running
+	 */
+	private void releaseCurrent() {
+		if (current != null) {
+			bufferPool.release(current);
+			current = null;
+		}
+	}
+
+	private void release(ByteBuffer chunk) {
+		// The last chunk is not a pooled buffer
+		if (chunk.capacity() >= CHUNK_BUFFER_SIZE) {
+			bufferPool.release(chunk);
+		}
+	}
+
+	private int dataStart() {
+		return chunked ? CHUNK_HEADER_SIZE : 0;
+	}
+
+	private int reservedTrailer() {
+		return chunked ? CHUNK_TRAILER_SIZE : 0;
+	}
+}
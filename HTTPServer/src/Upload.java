@@ -0,0 +1,377 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import exception.BadRequestException;
+import exception.PayloadTooLargeException;
+
+/**
+ * Body of a request uploading a file, written to a temporary file as it is
+ * received so that it is never held in memory. A body sent with
+ * Transfer-Encoding: chunked is decoded on the way, resuming at any byte when
+ * more bytes arrive. Once the request is processed, the temporary file either
+ * replaces the uploaded file or is deleted.
+ */
+public class Upload {
+
+	public static final long DEFAULT_MAX_SIZE = 100L * 1024 * 1024;
+	// End of the names of the temporary files, which start with a dot and the name of the uploaded file
+	public static final String TEMP_FILE_SUFFIX = ".upload";
+
+	// Maximum size of the chunk extensions and trailers of a body, which are skipped
+	private static final int MAX_FRAMING_SIZE = 8192;
+	// Maximum number of hexadecimal digits of a chunk size
+	private static final int MAX_CHUNK_SIZE_DIGITS = 15;
+
+	// States of the decoder
+	private static final int DATA = 0;
+	private static final int CHUNK_SIZE = 1;
+	private static final int CHUNK_EXTENSION = 2;
+	private static final int CHUNK_SIZE_LF = 3;
+	private static final int DATA_CR = 4;
+	private static final int DATA_LF = 5;
+	private static final int TRAILER_START = 6;
+	private static final int TRAILER = 7;
+	private static final int END_LF = 8;
+	private static final int DONE = 9;
+
+	private static final byte CR = '\r';
+	private static final byte LF = '\n';
+
+	// Creates the temporary file on the first write, null once it is created or if the body is discarded
+	private Opener opener;
+	// File replaced by the upload, null if the body is discarded
+	private File file;
+	private Path tempFile;
+	private FileChannel channel;
+	private final boolean chunked;
+	private final long maxSize;
+	private int state;
+	// Bytes left in the body, or in the current chunk of a chunked body
+	private long remaining;
+	// Bytes of the body received so far
+	private long size;
+	private int chunkSizeDigits;
+	private int framingSize;
+	// Reason why the body cannot be saved, null if it can
+	private Exception error;
+
+	/**
+	 * Creates the temporary file receiving the body of an upload
+	 */
+	public interface Opener {
+		/**
+		 * Creates the temporary file, and hands it to the upload with setTempFile
+		 * @param upload the upload
+		 * @throws Exception if the file cannot be created, answered once the body is received
+		 */
+		void open(Upload upload) throws Exception;
+	}
+
+	/**
+	 * Constructor. The temporary file is only created by open, on the thread writing the
+	 * body, so that the thread framing the requests never waits for the disk.
+	 * @param opener creates the temporary file receiving the body
+	 * @param chunked true if the body is sent with Transfer-Encoding: chunked
+	 * @param contentLength length of the body announced by Content-Length, if it is not chunked
+	 * @param maxSize maximum size of the body
+	 */
+	public Upload(Opener opener, boolean chunked, long contentLength, long maxSize) {
+		this.opener = opener;
+		this.chunked = chunked;
+		this.maxSize = maxSize;
+		if (chunked) {
+			state = CHUNK_SIZE;
+		} else {
+			remaining = contentLength;
+			size = contentLength;
+			state = contentLength == 0 ? DONE : DATA;
+		}
+	}
+
+	/**
+	 * Constructor for a body that is received and dropped, because it cannot be saved
+	 * @param chunked true if the body is sent with Transfer-Encoding: chunked
+	 * @param contentLength length of the body announced by Content-Length, if it is not chunked
+	 * @param maxSize maximum size of the body
+	 * @param error reason why the body cannot be saved, answered once it is received, or null
+	 */
+	public Upload(boolean chunked, long contentLength, long maxSize, Exception error) {
+		this(null, chunked, contentLength, maxSize);
+		this.error = error;
+	}
+
+	/**
+	 * Creates the temporary file, unless it is already created or the body cannot be
+	 * saved. Done by the first write, and before processing the request for an empty body.
+	 * If the file cannot be created, the body is dropped and the error is answered.
+	 */
+	public void open() {
+		Opener opener = this.opener;
+		this.opener = null;
+		if (opener == null || error != null) {
+			return;
+		}
+		try {
+			opener.open(this);
+		} catch (Exception e) {
+			fail(e);
+			return;
+		}
+		if (state == DONE) {
+			closeChannel();
+		}
+	}
+
+	/**
+	 * Hands the created temporary file to the upload
+	 * @param file file replaced by the upload once it is processed
+	 * @param tempFile temporary file receiving the body, in the directory of the file
+	 * @param channel open channel of the temporary file, closed once the body is received
+	 */
+	public void setTempFile(File file, Path tempFile, FileChannel channel) {
+		this.file = file;
+		this.tempFile = tempFile;
+		this.channel = channel;
+	}
+
+	/**
+	 * Writes the bytes of the body available in a buffer, and stops after the last one.
+	 * Writes to the disk, so it is called by a worker rather than by the reactor.
+	 * @param source bytes received, from its position to its limit; the position is
+	 * moved after the bytes of the body
+	 * @return true once the whole body is received
+	 * @throws BadRequestException if the chunks of the body are malformed
+	 * @throws PayloadTooLargeException if the body is bigger than the maximum size
+	 */
+	public boolean write(ByteBuffer source) throws BadRequestException, PayloadTooLargeException {
+		open();
+		while (state != DONE && source.hasRemaining()) {
+			if (state == DATA) {
+				writeData(source);
+				continue;
+			}
+			byte b = source.get();
+			switch (state) {
+			case CHUNK_SIZE:
+				int digit = Character.digit(b, 16);
+				if (digit >= 0) {
+					if (++chunkSizeDigits > MAX_CHUNK_SIZE_DIGITS) {
+						throw new PayloadTooLargeException("The request body is larger than " + maxSize + " bytes");
+					}
+					remaining = remaining * 16 + digit;
+				} else if (chunkSizeDigits == 0) {
+					throw new BadRequestException("Missing chunk size");
+				} else if (b == ';' || b == ' ' || b == '\t') {
+					state = CHUNK_EXTENSION;
+				} else if (b == CR) {
+					state = CHUNK_SIZE_LF;
+				} else if (b == LF) {
+					startChunk();
+				} else {
+					throw new BadRequestException("Invalid chunk size");
+				}
+				break;
+			case CHUNK_EXTENSION:
+				// Extensions are not used by the server
+				countFraming();
+				if (b == CR) {
+					state = CHUNK_SIZE_LF;
+				} else if (b == LF) {
+					startChunk();
+				}
+				break;
+			case CHUNK_SIZE_LF:
+				if (b != LF) {
+					throw new BadRequestException("Expected LF after CR");
+				}
+				startChunk();
+				break;
+			case DATA_CR:
+				if (b == CR) {
+					state = DATA_LF;
+				} else if (b == LF) {
+					nextChunk();
+				} else {
+					throw new BadRequestException("Missing line break after a chunk");
+				}
+				break;
+			case DATA_LF:
+				if (b != LF) {
+					throw new BadRequestException("Expected LF after CR");
+				}
+				nextChunk();
+				break;
+			case TRAILER_START:
+				if (b == CR) {
+					state = END_LF;
+				} else if (b == LF) {
+					state = DONE;
+				} else {
+					// Trailers are not used by the server
+					countFraming();
+					state = TRAILER;
+				}
+				break;
+			case TRAILER:
+				countFraming();
+				if (b == LF) {
+					state = TRAILER_START;
+				}
+				break;
+			case END_LF:
+				if (b != LF) {
+					throw new BadRequestException("Expected LF after CR");
+				}
+				state = DONE;
+				break;
+			default:
+				break;
+			}
+		}
+		if (state == DONE) {
+			closeChannel();
+		}
+		return state == DONE;
+	}
+
+	/**
+	 * Indicates if the whole body is received
+	 * @return true once the last byte of the body is received
+	 */
+	public boolean isComplete() {
+		return state == DONE;
+	}
+
+	/**
+	 * Number of bytes of the body received so far, not counting the chunk framing
+	 * @return number of bytes
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * File replaced by the upload
+	 * @return the file, or null if the body is discarded
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Temporary file holding the body
+	 * @return the path of the temporary file, or null if the body is discarded
+	 */
+	public Path getTempFile() {
+		return tempFile;
+	}
+
+	/**
+	 * Indicates if a file is the temporary file of an upload, hidden from the listings
+	 * @param name name of the file
+	 * @return true for a temporary file
+	 */
+	public static boolean isTempFile(String name) {
+		return name.startsWith(".") && name.endsWith(TEMP_FILE_SUFFIX);
+	}
+
+	/**
+	 * Reason why the body cannot be saved
+	 * @return the exception to answer the request with, or null if the body can be saved
+	 */
+	public Exception getError() {
+		return error;
+	}
+
+	/**
+	 * Gives up on saving the body, for example when the connection cannot be read anymore
+	 * @param e reason to answer the request with
+	 */
+	public void fail(Exception e) {
+		if (error == null) {
+			error = e;
+		}
+		discard();
+	}
+
+	/**
+	 * Closes and deletes the temporary file, if it was not moved in place of the file
+	 */
+	public void discard() {
+		opener = null;
+		closeChannel();
+		if (tempFile != null) {
+			try {
+				Files.deleteIfExists(tempFile);
+			} catch (IOException e) {
+				// The temporary file is left behind, nothing else to do
+			}
+		}
+	}
+
+	private void writeData(ByteBuffer source) {
+		int length = (int) Math.min(remaining, source.remaining());
+		if (channel != null) {
+			ByteBuffer data = source.duplicate();
+			data.limit(data.position() + length);
+			try {
+				while (data.hasRemaining()) {
+					channel.write(data);
+				}
+			} catch (IOException e) {
+				// Keep reading the body to find the end of the request, but do not save it
+				fail(e);
+			}
+		}
+		source.position(source.position() + length);
+		remaining -= length;
+		if (remaining == 0) {
+			state = chunked ? DATA_CR : DONE;
+		}
+	}
+
+	/**
+	 * Starts reading the data of a chunk once its size is read, the last chunk being empty
+	 */
+	private void startChunk() throws PayloadTooLargeException {
+		if (remaining == 0) {
+			state = TRAILER_START;
+			return;
+		}
+		size += remaining;
+		if (size > maxSize) {
+			throw new PayloadTooLargeException("The request body is larger than " + maxSize + " bytes");
+		}
+		state = DATA;
+	}
+
+	private void nextChunk() {
+		remaining = 0;
+		chunkSizeDigits = 0;
+		state = CHUNK_SIZE;
+	}
+
+	private void countFraming() throws BadRequestException {
+		if (++framingSize > MAX_FRAMING_SIZE) {
+			throw new BadRequestException("The chunk extensions or trailers are too large");
+		}
+	}
+
+	private void closeChannel() {
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			if (error == null) {
+				error = e;
+			}
+		}
+		channel = null;
+	}
+}
@@ -0,0 +1,82 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Last-Modified and ETag of a version of a file, with the headers they are sent
+ * in encoded once, so that a response for a file already requested copies them
+ * instead of formatting the date and building the tag again.
+ */
+public class Validators {
+
+	private final long length;
+	private final long tagTime;
+	private final long lastModifiedTime;
+	private final String encoding;
+	private final String lastModified;
+	private final String etag;
+	// Last-Modified, ETag and Accept-Ranges headers, each ending with CRLF
+	private final byte[] headers;
+
+	/**
+	 * Constructor
+	 * @param length size of the file
+	 * @param lastModifiedTime modification time of the file in milliseconds
+	 * @param encoding content coding of the response, or null if the file is sent as is
+	 */
+	public Validators(long length, long lastModifiedTime, String encoding) {
+		this(length, lastModifiedTime, lastModifiedTime, encoding);
+	}
+
+	/**
+	 * Constructor for a copy of a file kept next to it, tagged after the copy but dated as the file
+	 * @param length size of the copy
+	 * @param tagTime modification time of the copy in milliseconds
+	 * @param lastModifiedTime modification time of the file in milliseconds
+	 * @param encoding content coding of the copy
+	 */
+	public Validators(long length, long tagTime, long lastModifiedTime, String encoding) {
+		this.length = length;
+		this.tagTime = tagTime;
+		this.lastModifiedTime = lastModifiedTime;
+		this.encoding = encoding;
+		this.lastModified = HTTPDate.format(lastModifiedTime);
+		this.etag = FileManager.getETag(length, tagTime, encoding);
+		this.headers = ("Last-Modified: " + lastModified + "\r\n"
+				+ "ETag: " + etag + "\r\n"
+				+ "Accept-Ranges: bytes\r\n").getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Indicates if these are the validators of the given version of a file
+	 * @param length size of the file, or of its copy
+	 * @param tagTime modification time the tag is made of, in milliseconds
+	 * @param lastModifiedTime modification time of the file in milliseconds
+	 * @param encoding content coding of the response, or null if the file is sent as is
+	 * @return true if they can be used for this version
+	 */
+	public boolean matches(long length, long tagTime, long lastModifiedTime, String encoding) {
+		return this.length == length && this.tagTime == tagTime && this.lastModifiedTime == lastModifiedTime
+				&& (this.encoding == null ? encoding == null : this.encoding.equals(encoding));
+	}
+
+	/**
+	 * @return the modification date formatted for the Last-Modified header
+	 */
+	public String getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @return the quoted entity tag
+	 */
+	public String getETag() {
+		return etag;
+	}
+
+	/**
+	 * Encoded Last-Modified, ETag and Accept-Ranges headers, shared by all the responses
+	 * @return the bytes of the headers, not to be modified
+	 */
+	public byte[] getHeaders() {
+		return headers;
+	}
+}
@@ -0,0 +1,103 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import exception.ServiceUnavailableException;
+
+/**
+ * Bounded pool of threads running the blocking part of the requests (file reads,
+ * directory listings and writes), so that a slow disk never stalls a reactor.
+ * At most threads + queueSize tasks can be waiting or running at once; past that
+ * new tasks are refused instead of piling up.
+ */
+public class WorkerPool {
+
+	public static final int DEFAULT_THREADS = 16;
+	public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+	private final ExecutorService executor;
+	// One permit per task allowed to be waiting or running
+	private final Semaphore permits;
+
+	/**
+	 * Constructor
+	 * @param threads number of platform threads running the tasks (ignored with virtual threads)
+	 * @param queueSize number of tasks allowed to wait for a thread
+	 * @param virtualThreads true to run each task on its own virtual thread, when the JVM supports it
+	 */
+	public WorkerPool(int threads, int queueSize, boolean virtualThreads) {
+		threads = Math.max(1, threads);
+		queueSize = Math.max(0, queueSize);
+		ExecutorService virtualExecutor = virtualThreads ? newVirtualThreadExecutor() : null;
+		if (virtualExecutor != null) {
+			// Virtual threads are cheap, only the number of tasks in flight is bounded
+			this.executor = virtualExecutor;
+			this.permits = new Semaphore(Math.max(1, queueSize));
+		} else {
+			if (virtualThreads) {
+				System.out.println("Virtual threads are not supported by this JVM, using " + threads + " worker threads.");
+			}
+			this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory());
+			this.permits = new Semaphore(threads + queueSize);
+		}
+	}
+
+	/**
+	 * Submits a task to the pool
+	 * @param task task to run on a worker thread
+	 * @throws ServiceUnavailableException if the pool is already full
+	 */
+	public void submit(final Runnable task) throws ServiceUnavailableException {
+		if (!permits.tryAcquire()) {
+			throw new ServiceUnavailableException("Too many requests are waiting to be processed");
+		}
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						task.run();
+					} finally {
+						permits.release();
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			permits.release();
+			throw new ServiceUnavailableException("The worker pool refused the request");
+		}
+	}
+
+	/**
+	 * Creates an executor starting a virtual thread per task. Looked up by reflection
+	 * so that the server still runs on JVMs without virtual threads.
+	 * @return the executor, or null if virtual threads are not available
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) java.util.concurrent.Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Names the worker threads and makes them daemon threads
+	 */
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "worker-" + count.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
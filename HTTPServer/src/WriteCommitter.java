@@ -0,0 +1,258 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves the received uploads in place of their files, one group at a time, on
+ * a single thread. Uploads of the same file are applied in the order they were
+ * submitted instead of being refused while another one is in progress, and
+ * when several of them are in the same group only the last one is moved in
+ * place: the others are deleted, as if they had been overwritten right away.
+ *
+ * In durable mode, the uploads submitted during an interval are gathered in
+ * one group, and the group is forced to the disk in one round: the data of
+ * the uploads, then the renames, then the directories of the files once each.
+ * A commit ends only once its group is durable, so that a client told its
+ * upload was saved does not lose it to a crash, while the cost of forcing the
+ * disk is shared by all the uploads of the interval. Otherwise the uploads are
+ * moved in place as soon as the thread is free, without forcing anything.
+ */
+public class WriteCommitter {
+
+	public static final long DEFAULT_INTERVAL_MILLIS = 2;
+
+	private final Mover mover;
+	private final LinkedBlockingQueue<Commit> submitted;
+
+	// How uploads are committed, changed before the server starts
+	private volatile boolean durable;
+	private volatile long intervalNanos;
+
+	/**
+	 * Moves an upload in place of its file, once its content is on the disk if durable
+	 */
+	public interface Mover {
+		/**
+		 * @param upload the received upload
+		 * @throws IOException if the upload cannot replace its file
+		 */
+		void move(Upload upload) throws IOException;
+	}
+
+	/**
+	 * Constructor, starting the thread committing the uploads
+	 * @param mover what replaces the files with their uploads
+	 */
+	public WriteCommitter(Mover mover) {
+		this.mover = mover;
+		this.submitted = new LinkedBlockingQueue<Commit>();
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_INTERVAL_MILLIS);
+		Thread committer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				commit();
+			}
+		}, "write-committer");
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	/**
+	 * Sets whether the uploads are forced to the disk before their commit ends
+	 * @param durable true to force the uploads to the disk
+	 * @param intervalMillis time in milliseconds the uploads are gathered in a group when durable,
+	 * 0 to gather only the uploads submitted while the previous group is forced
+	 */
+	public void setDurable(boolean durable, long intervalMillis) {
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, intervalMillis));
+		this.durable = durable;
+	}
+
+	/**
+	 * Submits a received upload, its temporary file now belonging to the commit
+	 * @param upload the received upload, without error
+	 * @return the commit, ending once the upload replaced its file, or was overwritten by a later one
+	 */
+	public Commit submit(Upload upload) {
+		Commit commit = new Commit(upload);
+		submitted.add(commit);
+		return commit;
+	}
+
+	private void commit() {
+		List<Commit> group = new ArrayList<Commit>();
+		for (; ; ) {
+			Commit first;
+			try {
+				first = submitted.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (durable) {
+				// Gather the uploads submitted during the interval in the same group
+				long wait = first.submittedNanos + intervalNanos - System.nanoTime();
+				while (wait > 0) {
+					LockSupport.parkNanos(wait);
+					wait = first.submittedNanos + intervalNanos - System.nanoTime();
+				}
+			}
+			group.add(first);
+			submitted.drainTo(group);
+			try {
+				commit(group, durable);
+			} catch (RuntimeException e) {
+				// Answer the requests anyway, and keep committing the next groups
+				for (Commit commit : group) {
+					commit.end(new IOException(e));
+				}
+			}
+			group.clear();
+		}
+	}
+
+	/**
+	 * Commits a group of uploads, and ends their commits
+	 * @param group the uploads in the order they were submitted
+	 * @param durable true to force the group to the disk
+	 */
+	private void commit(List<Commit> group, boolean durable) {
+		// Last writer wins: only the last upload of each file is moved in place
+		Map<File, Commit> last = new LinkedHashMap<File, Commit>();
+		Map<Commit, Commit> overwritten = new LinkedHashMap<Commit, Commit>();
+		for (Commit commit : group) {
+			Commit previous = last.put(commit.upload.getFile().getAbsoluteFile(), commit);
+			if (previous != null) {
+				overwritten.put(previous, commit);
+			}
+		}
+		if (durable) {
+			for (Commit commit : last.values()) {
+				try {
+					force(commit.upload.getTempFile(), StandardOpenOption.WRITE);
+				} catch (IOException e) {
+					commit.error = e;
+				}
+			}
+		}
+		Set<Path> directories = new LinkedHashSet<Path>();
+		int moved = 0;
+		for (Commit commit : last.values()) {
+			if (commit.error == null) {
+				try {
+					mover.move(commit.upload);
+					moved++;
+					directories.add(commit.upload.getFile().getAbsoluteFile().toPath().getParent());
+				} catch (IOException e) {
+					commit.error = e;
+				}
+			}
+			if (commit.error != null) {
+				commit.upload.discard();
+			}
+		}
+		if (durable) {
+			for (Path directory : directories) {
+				try {
+					force(directory, StandardOpenOption.READ);
+				} catch (IOException e) {
+					// Directories cannot be opened on some systems, Windows for example, where the rename
+					// is made durable by the file system itself
+				}
+			}
+		}
+		Metrics.getInstance().groupCommitted(moved, overwritten.size());
+		for (Commit commit : last.values()) {
+			commit.end(commit.error);
+		}
+		// An overwritten upload shares the outcome of the upload that overwrote it
+		for (Map.Entry<Commit, Commit> entry : overwritten.entrySet()) {
+			entry.getKey().upload.discard();
+			Commit winner = entry.getValue();
+			while (overwritten.containsKey(winner)) {
+				winner = overwritten.get(winner);
+			}
+			entry.getKey().end(winner.error);
+		}
+	}
+
+	private static void force(Path path, StandardOpenOption option) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, option)) {
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * Commit of an upload, ended by the committing thread
+	 */
+	public static class Commit {
+		private final Upload upload;
+		private final long submittedNanos;
+		// Set by the committing thread, read once the commit ended
+		private Exception error;
+		// Guarded by this
+		private Runnable listener;
+		private boolean done;
+
+		Commit(Upload upload) {
+			this.upload = upload;
+			this.submittedNanos = System.nanoTime();
+		}
+
+		/**
+		 * Sets what to do once the commit ended, done right away if it already ended
+		 * @param listener run on the committing thread, or on the calling thread if the commit already ended
+		 */
+		public void setListener(Runnable listener) {
+			synchronized (this) {
+				if (!done) {
+					this.listener = listener;
+					return;
+				}
+			}
+			listener.run();
+		}
+
+		/**
+		 * @return the reason why the upload was not saved, or null if it was, once the commit ended
+		 */
+		public synchronized Exception getError() {
+			return error;
+		}
+
+		public Upload getUpload() {
+			return upload;
+		}
+
+		private void end(Exception error) {
+			Runnable listener;
+			synchronized (this) {
+				if (done) {
+					return;
+				}
+				this.error = error;
+				this.done = true;
+				listener = this.listener;
+			}
+			Metrics.getInstance().record(Metrics.COMMIT, System.nanoTime() - submittedNanos);
+			if (listener != null) {
+				try {
+					listener.run();
+				} catch (RuntimeException e) {
+					// The request is lost, not the commits of the other requests
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
@@ -1,6 +1,6 @@
 package exception;
 
-public class FileAccessDeniedException extends Exception {
+public class PayloadTooLargeException extends Exception {
 	/**
 	 * Default serial version ID
 	 */
@@ -9,7 +9,7 @@ public class FileAccessDeniedException extends Exception {
 	/**
 	 * Default constructor
 	 */
-	public FileAccessDeniedException() {
+	public PayloadTooLargeException() {
 		super();
 	}
 	
@@ -17,7 +17,7 @@ public class FileAccessDeniedException extends Exception {
 	 * Constructor with the error message
 	 * @param message
 	 */
-	public FileAccessDeniedException(String message) {
+	public PayloadTooLargeException(String message) {
 		super(message);
 	}
 }
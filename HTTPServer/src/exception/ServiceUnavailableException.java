@@ -0,0 +1,23 @@
+package exception;
+
+public class ServiceUnavailableException extends Exception {
+	/**
+	 * Default serial version ID
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Default constructor
+	 */
+	public ServiceUnavailableException() {
+		super();
+	}
+	
+	/**
+	 * Constructor with the error message
+	 * @param message
+	 */
+	public ServiceUnavailableException(String message) {
+		super(message);
+	}
+}
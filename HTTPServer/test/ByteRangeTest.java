@@ -0,0 +1,82 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class ByteRangeTest {
+
+	private static void assertRanges(List<ByteRange> ranges, long... bounds) {
+		assertEquals(bounds.length / 2, ranges.size());
+		for (int i = 0; i < ranges.size(); i++) {
+			assertEquals("start of range " + i, bounds[2 * i], ranges.get(i).getStart());
+			assertEquals("end of range " + i, bounds[2 * i + 1], ranges.get(i).getEnd());
+		}
+	}
+
+	@Test
+	public void parsesClosedRange() {
+		assertRanges(ByteRange.parse("bytes=0-99", 1000), 0, 99);
+	}
+
+	@Test
+	public void parsesSuffixRange() {
+		assertRanges(ByteRange.parse("bytes=-100", 1000), 900, 999);
+	}
+
+	@Test
+	public void cutsSuffixRangeLongerThanFile() {
+		assertRanges(ByteRange.parse("bytes=-5000", 1000), 0, 999);
+	}
+
+	@Test
+	public void parsesOpenEndedRange() {
+		assertRanges(ByteRange.parse("bytes=500-", 1000), 500, 999);
+	}
+
+	@Test
+	public void cutsRangeGoingPastEnd() {
+		assertRanges(ByteRange.parse("bytes=900-2000", 1000), 900, 999);
+	}
+
+	@Test
+	public void keepsRangesInHeaderOrder() {
+		// Overlapping ranges are sent as asked, not merged
+		assertRanges(ByteRange.parse("bytes=500-599, 0-99,50-149", 1000), 500, 599, 0, 99, 50, 149);
+	}
+
+	@Test
+	public void leavesOutRangesPastEnd() {
+		assertRanges(ByteRange.parse("bytes=0-9,5000-6000,-10", 1000), 0, 9, 990, 999);
+	}
+
+	@Test
+	public void unsatisfiableRangesGiveNoRange() {
+		// Answered with 416
+		assertTrue(ByteRange.parse("bytes=1000-1100,2000-", 1000).isEmpty());
+		assertTrue(ByteRange.parse("bytes=-0", 1000).isEmpty());
+		assertTrue(ByteRange.parse("bytes=-10", 0).isEmpty());
+		assertTrue(ByteRange.parse("bytes=0-", 0).isEmpty());
+	}
+
+	@Test
+	public void ignoresInvalidHeaders() {
+		assertNull(ByteRange.parse("items=0-9", 1000));
+		assertNull(ByteRange.parse("bytes=9-0", 1000));
+		assertNull(ByteRange.parse("bytes=5", 1000));
+		assertNull(ByteRange.parse("bytes=a-9", 1000));
+		assertNull(ByteRange.parse("bytes=0-9,x", 1000));
+		assertNull(ByteRange.parse("bytes=-", 1000));
+	}
+
+	@Test
+	public void ignoresTooManyRanges() {
+		StringBuilder header = new StringBuilder("bytes=0-0");
+		for (int i = 1; i <= ByteRange.MAX_RANGES; i++) {
+			header.append(',').append(i).append('-').append(i);
+		}
+		assertNull(ByteRange.parse(header.toString(), 1000));
+	}
+}
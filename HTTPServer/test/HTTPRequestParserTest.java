@@ -0,0 +1,64 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import exception.BadRequestException;
+
+public class HTTPRequestParserTest {
+
+	private static boolean parse(HTTPRequestParser parser, String request) throws BadRequestException {
+		ByteBuffer buffer = ByteBuffer.allocate(request.length());
+		buffer.put(request.getBytes(StandardCharsets.US_ASCII));
+		return parser.parse(buffer);
+	}
+
+	private static void assertRejected(String request) {
+		HTTPRequestParser parser = new HTTPRequestParser(HTTPRequestParser.DEFAULT_MAX_HEADER_COUNT, HTTPRequestParser.DEFAULT_MAX_HEADER_SIZE);
+		try {
+			parse(parser, request);
+			fail("Request accepted: " + request);
+		} catch (BadRequestException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void parsesContentLength() throws BadRequestException {
+		HTTPRequestParser parser = new HTTPRequestParser(HTTPRequestParser.DEFAULT_MAX_HEADER_COUNT, HTTPRequestParser.DEFAULT_MAX_HEADER_SIZE);
+		assertTrue(parse(parser, "POST /a.txt HTTP/1.1\r\nHost: x\r\nContent-Length: 5\r\n\r\n"));
+		assertEquals(5, parser.getContentLength());
+	}
+
+	@Test
+	public void acceptsRepeatedEqualContentLengths() throws BadRequestException {
+		HTTPRequestParser parser = new HTTPRequestParser(HTTPRequestParser.DEFAULT_MAX_HEADER_COUNT, HTTPRequestParser.DEFAULT_MAX_HEADER_SIZE);
+		assertTrue(parse(parser, "POST /a.txt HTTP/1.1\r\nContent-Length: 0\r\nContent-Length: 0\r\n\r\n"));
+		assertEquals(0, parser.getContentLength());
+	}
+
+	@Test
+	public void rejectsConflictingContentLengths() {
+		assertRejected("POST /a.txt HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 6\r\n\r\n");
+	}
+
+	@Test
+	public void rejectsZeroThenOtherContentLength() {
+		// A proxy honouring the first header would take the body for the next request
+		assertRejected("POST /a.txt HTTP/1.1\r\nContent-Length: 0\r\nContent-Length: 5\r\n\r\nhello");
+	}
+
+	@Test
+	public void rejectsOtherThenZeroContentLength() {
+		assertRejected("POST /a.txt HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 0\r\n\r\n");
+	}
+
+	@Test
+	public void rejectsContentLengthWithChunked() {
+		assertRejected("POST /a.txt HTTP/1.1\r\nContent-Length: 0\r\nTransfer-Encoding: chunked\r\n\r\n");
+	}
+}
@@ -0,0 +1,133 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import exception.BadRequestException;
+import exception.PayloadTooLargeException;
+
+public class UploadTest {
+
+	private static final long MAX_SIZE = 1024;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Upload chunked(long maxSize) {
+		return new Upload(new Upload.Opener() {
+			@Override
+			public void open(Upload upload) throws Exception {
+				Path tempFile = folder.newFile().toPath();
+				upload.setTempFile(new File(folder.getRoot(), "file.txt"), tempFile, FileChannel.open(tempFile, StandardOpenOption.WRITE));
+			}
+		}, true, -1, maxSize);
+	}
+
+	private static ByteBuffer bytes(String data) {
+		return ByteBuffer.wrap(data.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	private static String content(Upload upload) throws Exception {
+		return new String(Files.readAllBytes(upload.getTempFile()), StandardCharsets.US_ASCII);
+	}
+
+	private static void assertRejected(Upload upload, String body, Class<? extends Exception> expected) {
+		try {
+			upload.write(bytes(body));
+			fail("Body accepted: " + body);
+		} catch (BadRequestException | PayloadTooLargeException e) {
+			assertEquals(expected, e.getClass());
+		}
+	}
+
+	@Test
+	public void decodesChunks() throws Exception {
+		Upload upload = chunked(MAX_SIZE);
+		assertTrue(upload.write(bytes("5\r\nhello\r\n6\r\n world\r\n0\r\n\r\n")));
+		assertEquals("hello world", content(upload));
+		assertEquals(11, upload.getSize());
+	}
+
+	@Test
+	public void skipsChunkExtensionsAndTrailers() throws Exception {
+		Upload upload = chunked(MAX_SIZE);
+		assertTrue(upload.write(bytes("5;name=value\r\nhello\r\n6 ; ext\r\n world\r\n0;last\r\nX-Checksum: 1\r\nX-Other: 2\r\n\r\n")));
+		assertEquals("hello world", content(upload));
+	}
+
+	@Test
+	public void resumesAtAnyByte() throws Exception {
+		// Every split of the size lines, the data and the trailers across reads
+		String body = "a;x=1\r\n0123456789\r\n10\r\nabcdefghijklmnop\r\n0\r\nX-T: 1\r\n\r\n";
+		Upload upload = chunked(MAX_SIZE);
+		for (int i = 0; i < body.length(); i++) {
+			assertEquals(i == body.length() - 1, upload.write(bytes(body.substring(i, i + 1))));
+		}
+		assertEquals("0123456789abcdefghijklmnop", content(upload));
+	}
+
+	@Test
+	public void stopsAfterLastChunk() throws Exception {
+		Upload upload = chunked(MAX_SIZE);
+		ByteBuffer source = bytes("2\r\nhi\r\n0\r\n\r\nGET / HTTP/1.1\r\n");
+		assertTrue(upload.write(source));
+		// The next request is left in the buffer
+		assertEquals("GET / HTTP/1.1\r\n", StandardCharsets.US_ASCII.decode(source).toString());
+	}
+
+	@Test
+	public void waitsForRestOfBody() throws Exception {
+		Upload upload = chunked(MAX_SIZE);
+		assertFalse(upload.write(bytes("5\r\nhel")));
+		assertFalse(upload.isComplete());
+		assertTrue(upload.write(bytes("lo\r\n0\r\n\r\n")));
+	}
+
+	@Test
+	public void rejectsBadChunkSize() {
+		assertRejected(chunked(MAX_SIZE), "zz\r\nhello\r\n0\r\n\r\n", BadRequestException.class);
+		assertRejected(chunked(MAX_SIZE), "5x\r\nhello\r\n0\r\n\r\n", BadRequestException.class);
+		assertRejected(chunked(MAX_SIZE), ";ext\r\nhello\r\n0\r\n\r\n", BadRequestException.class);
+	}
+
+	@Test
+	public void rejectsMissingLineBreakAfterChunk() {
+		assertRejected(chunked(MAX_SIZE), "5\r\nhelloX\r\n0\r\n\r\n", BadRequestException.class);
+	}
+
+	@Test
+	public void rejectsChunkLargerThanMaxSize() {
+		assertRejected(chunked(10), "b\r\nhello world\r\n0\r\n\r\n", PayloadTooLargeException.class);
+	}
+
+	@Test
+	public void rejectsChunksAddingUpPastMaxSize() {
+		assertRejected(chunked(10), "6\r\nhello \r\n6\r\nworld!\r\n0\r\n\r\n", PayloadTooLargeException.class);
+	}
+
+	@Test
+	public void rejectsChunkSizeWithTooManyDigits() {
+		assertRejected(chunked(Long.MAX_VALUE), "1000000000000000\r\n", PayloadTooLargeException.class);
+	}
+
+	@Test
+	public void rejectsOversizedTrailers() {
+		StringBuilder body = new StringBuilder("0\r\nX-Big: ");
+		for (int i = 0; i < 9000; i++) {
+			body.append('a');
+		}
+		assertRejected(chunked(MAX_SIZE), body.append("\r\n\r\n").toString(), BadRequestException.class);
+	}
+}
@@ -0,0 +1,310 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Callable;
+
+/**
+ * Operations of the server measured by the benchmarks. The classes of the
+ * server are in the default package, which cannot be imported by the
+ * benchmarks since JMH wants them in a named package; the benchmarks get the
+ * operations from here through benchmark.Targets, each one as a Callable
+ * prepared once per trial, so that nothing but the operation is measured.
+ */
+public class BenchmarkTargets {
+
+	private static final int PORT = 8080;
+
+	/**
+	 * Serves the files of a directory, as the -d option of the server does
+	 * @param directory absolute path of the directory
+	 * @throws FileNotFoundException if the directory does not exist
+	 */
+	public static void setRootDirectory(String directory) throws FileNotFoundException {
+		FileManager.getInstance().setRootDirectory(directory);
+	}
+
+	/**
+	 * Caches the small files in memory, as the --cache-size option of the server does
+	 * @param maxBytes total size of the cached files
+	 * @param maxEntryBytes size of the largest file cached
+	 */
+	public static void useFileCache(long maxBytes, int maxEntryBytes) {
+		FileManager.getInstance().setFileCache(new FileCache(maxBytes, maxEntryBytes));
+	}
+
+	/**
+	 * Maps the larger files in memory, as the --mmap-size option of the server does
+	 * @param maxMappedBytes total size of the mapped files
+	 * @param minFileSize size of the smallest file mapped
+	 */
+	public static void useMappedFileCache(long maxMappedBytes, long minFileSize) {
+		FileManager.getInstance().setMappedFileCache(new MappedFileCache(maxMappedBytes, minFileSize));
+	}
+
+	/**
+	 * Serves the listings from the index, as the --listing-cache-entries option of the server does
+	 * @param maxEntries total number of entries of the indexed directories
+	 * @throws IOException if the directories cannot be watched
+	 */
+	public static void useDirectoryIndex(long maxEntries) throws IOException {
+		FileManager.getInstance().setDirectoryIndex(new DirectoryIndex(maxEntries));
+	}
+
+	/**
+	 * Parsing of the request line and headers of a request received in one read
+	 * @param request bytes of the request
+	 * @return the operation, returning true once the request is parsed
+	 */
+	public static Callable<Object> parseRequest(byte[] request) {
+		final ByteBuffer buffer = received(request);
+		final HTTPRequestParser parser = new HTTPRequestParser(HTTPRequestParser.DEFAULT_MAX_HEADER_COUNT, HTTPRequestParser.DEFAULT_MAX_HEADER_SIZE);
+		return new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				parser.reset();
+				return parser.parse(buffer);
+			}
+		};
+	}
+
+	/**
+	 * Parsing of a request, then reading of the parts used by the server, as a worker does
+	 * before accessing any file
+	 * @param request bytes of the request
+	 * @return the operation, returning the handler of the request
+	 */
+	public static Callable<Object> readRequest(byte[] request) {
+		final ByteBuffer buffer = received(request);
+		final HTTPRequestParser parser = new HTTPRequestParser(HTTPRequestParser.DEFAULT_MAX_HEADER_COUNT, HTTPRequestParser.DEFAULT_MAX_HEADER_SIZE);
+		return new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				parser.reset();
+				parser.parse(buffer);
+				HTTPRequestHandler handler = new HTTPRequestHandler(false, PORT);
+				handler.setKeepAliveAllowed(true);
+				handler.readRequest(parser);
+				return handler;
+			}
+		};
+	}
+
+	/**
+	 * Whole handling of a GET request once it is parsed, as the reactor reads it and a worker
+	 * processes it, the response being released as once written
+	 * @param request bytes of the request
+	 * @return the operation, returning the number of bytes of the response
+	 */
+	public static Callable<Object> serveRequest(byte[] request) {
+		final ByteBuffer buffer = received(request);
+		final HTTPRequestParser parser = new HTTPRequestParser(HTTPRequestParser.DEFAULT_MAX_HEADER_COUNT, HTTPRequestParser.DEFAULT_MAX_HEADER_SIZE);
+		return new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				parser.reset();
+				parser.parse(buffer);
+				HTTPRequestHandler handler = new HTTPRequestHandler(false, PORT);
+				handler.setKeepAliveAllowed(true);
+				handler.readRequest(parser);
+				handler.parseRequest();
+				HTTPResponse response = handler.createHTTPResponse();
+				long length = response.getBytesSent();
+				response.release();
+				return length;
+			}
+		};
+	}
+
+	/**
+	 * Writing of the status line and headers of a typical response into a pooled buffer
+	 * @return the operation, returning the number of bytes of the head
+	 */
+	public static Callable<Object> writeResponseHead() {
+		final Validators validators = new Validators(1024, System.currentTimeMillis(), null);
+		return new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				ByteBuffer head = new HTTPResponseWriter(BufferPool.getInstance())
+				.statusLine(true, 200)
+				.header(HTTPResponseWriter.SERVER, HTTPResponseWriter.SERVER_NAME)
+				.header(HTTPResponseWriter.DATE, HTTPDate.getInstance().getNow())
+				.header(HTTPResponseWriter.CONTENT_TYPE, HTTPResponseWriter.TEXT_HTML)
+				.header(HTTPResponseWriter.CONTENT_LENGTH, 1024)
+				.headers(validators.getHeaders())
+				.header(HTTPResponseWriter.CONNECTION, HTTPResponseWriter.KEEP_ALIVE)
+				.finish();
+				int length = head.remaining();
+				BufferPool.getInstance().release(head);
+				return length;
+			}
+		};
+	}
+
+	/**
+	 * Creation of the response to a request that failed, with its body built in memory
+	 * @return the operation, returning the number of bytes of the response
+	 */
+	public static Callable<Object> createErrorResponse() {
+		return new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				HTTPRequestHandler handler = new HTTPRequestHandler(false, PORT);
+				HTTPResponse response = handler.handleError(new FileNotFoundException("The file does not exist."));
+				long length = response.getBytesSent();
+				response.release();
+				return length;
+			}
+		};
+	}
+
+	/**
+	 * Getting of a file from the in-memory cache, which holds it after the first call
+	 * @param uri path of the file in the data directory
+	 * @return the operation, returning the cached content
+	 */
+	public static Callable<Object> getCachedFile(final String uri) {
+		final FileManager fileManager = FileManager.getInstance();
+		return new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				return fileManager.getCachedFile(fileManager.constructFile(uri)).getBody();
+			}
+		};
+	}
+
+	/**
+	 * Getting of a lease on the memory mapping of a file, mapped by the first call
+	 * @param uri path of the file in the data directory
+	 * @return the operation, returning the number of bytes mapped
+	 */
+	public static Callable<Object> getMappedFile(final String uri) {
+		final FileManager fileManager = FileManager.getInstance();
+		return new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				MappedFileCache.Lease lease = fileManager.getMappedFile(fileManager.constructFile(uri));
+				int length = lease.getBody().remaining();
+				lease.run();
+				return length;
+			}
+		};
+	}
+
+	/**
+	 * Opening of a file and transfer of its content to a channel dropping it, as for a file
+	 * streamed to a client
+	 * @param uri path of the file in the data directory
+	 * @return the operation, returning the number of bytes transferred
+	 */
+	public static Callable<Object> openFile(final String uri) {
+		final FileManager fileManager = FileManager.getInstance();
+		final DiscardingChannel target = new DiscardingChannel();
+		return new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				FileRegion region = fileManager.openFile(fileManager.constructFile(uri));
+				try {
+					long length = region.getRemaining();
+					while (!region.transferTo(target)) {
+						// The target accepts everything, the file was truncated
+					}
+					return length;
+				} finally {
+					region.close();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Listing of a directory written one entry at a time to a stream, as when it is sent
+	 * without the index
+	 * @param uri path of the directory in the data directory, ending with /
+	 * @return the operation, returning the number of bytes of the listing
+	 */
+	public static Callable<Object> listCurrentFiles(final String uri) {
+		final FileManager fileManager = FileManager.getInstance();
+		final DiscardingStream out = new DiscardingStream();
+		return new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				out.count = 0;
+				StreamedBody.Producer producer = fileManager.listCurrentFiles(uri);
+				try {
+					while (!producer.writeNext(out)) {
+						// Written a part at a time, as by the workers
+					}
+				} finally {
+					producer.close();
+				}
+				return out.count;
+			}
+		};
+	}
+
+	/**
+	 * Getting of a page of a listing from the index, which reads the directory on the first call
+	 * @param uri path of the directory in the data directory, ending with /
+	 * @param limit maximum number of entries of the page
+	 * @return the operation, returning the body of the page
+	 */
+	public static Callable<Object> getCurrentFilesPage(final String uri, final int limit) {
+		final FileManager fileManager = FileManager.getInstance();
+		return new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				return fileManager.getCurrentFilesPage(uri, 0, limit).getBody();
+			}
+		};
+	}
+
+	/**
+	 * Copies a request in a direct buffer, as the connections receive it
+	 */
+	private static ByteBuffer received(byte[] request) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(request.length);
+		buffer.put(request);
+		return buffer;
+	}
+
+	/**
+	 * Channel accepting and dropping all the bytes written to it
+	 */
+	private static class DiscardingChannel implements WritableByteChannel {
+		@Override
+		public int write(ByteBuffer source) {
+			int length = source.remaining();
+			source.position(source.limit());
+			return length;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * Stream counting and dropping all the bytes written to it
+	 */
+	private static class DiscardingStream extends OutputStream {
+		private long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int offset, int length) {
+			count += length;
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package benchmark;
+
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading of a small and of a large file by the FileManager, each way the
+ * server can serve it: from the cache, from a memory mapping, or streamed
+ * from the open file. The cache and the mapping are filled by the first call,
+ * the file system cache by the setup.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Benchmark)
+public class FileReadBenchmark {
+
+	@Param({ "1024", "1048576" })
+	public int size;
+
+	private Path root;
+	private Callable<Object> getCachedFile;
+	private Callable<Object> getMappedFile;
+	private Callable<Object> openFile;
+
+	@Setup
+	public void setUp() throws Exception {
+		root = Fixtures.createRoot();
+		Fixtures.createFile(root.resolve("file.txt"), size);
+		Targets.call("setRootDirectory", root.toString());
+		// Both sizes fit in the cache and are mapped, so that each way is measured for each size
+		Targets.call("useFileCache", 64L * 1024 * 1024, 2 * 1024 * 1024);
+		Targets.call("useMappedFileCache", 64L * 1024 * 1024, 0L);
+		getCachedFile = Targets.get("getCachedFile", "/file.txt");
+		getMappedFile = Targets.get("getMappedFile", "/file.txt");
+		openFile = Targets.get("openFile", "/file.txt");
+		openFile.call();
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		Fixtures.delete(root);
+	}
+
+	@Benchmark
+	public Object cached() throws Exception {
+		return getCachedFile.call();
+	}
+
+	@Benchmark
+	public Object mapped() throws Exception {
+		return getMappedFile.call();
+	}
+
+	@Benchmark
+	public Object streamed() throws Exception {
+		return openFile.call();
+	}
+}
@@ -0,0 +1,81 @@
+package benchmark;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Data directories of the benchmarks and of the load test, created in the
+ * temporary directory for a run and deleted after it.
+ */
+public final class Fixtures {
+
+	private Fixtures() {
+	}
+
+	/**
+	 * Creates an empty data directory
+	 * @return absolute path of the directory
+	 * @throws IOException if the directory cannot be created
+	 */
+	public static Path createRoot() throws IOException {
+		return Files.createTempDirectory("httpserver-benchmark").toAbsolutePath();
+	}
+
+	/**
+	 * Creates a text file
+	 * @param file path of the file
+	 * @param size size of the file in bytes
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void createFile(Path file, int size) throws IOException {
+		byte[] line = "The quick brown fox jumps over the lazy dog 0123456789\n".getBytes(StandardCharsets.US_ASCII);
+		byte[] content = new byte[size];
+		for (int i = 0; i < size; i++) {
+			content[i] = line[i % line.length];
+		}
+		Files.createDirectories(file.getParent());
+		Files.write(file, content);
+	}
+
+	/**
+	 * Creates a directory holding empty files
+	 * @param directory path of the directory
+	 * @param count number of files
+	 * @throws IOException if the files cannot be created
+	 */
+	public static void createDirectory(Path directory, int count) throws IOException {
+		Files.createDirectories(directory);
+		for (int i = 0; i < count; i++) {
+			Files.createFile(directory.resolve(String.format("file-%06d.txt", i)));
+		}
+	}
+
+	/**
+	 * Deletes a data directory and all its content
+	 * @param root path of the directory, null if it was not created
+	 * @throws IOException if a file cannot be deleted
+	 */
+	public static void delete(Path root) throws IOException {
+		if (root == null) {
+			return;
+		}
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
+				Files.delete(directory);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
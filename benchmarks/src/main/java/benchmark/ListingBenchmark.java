@@ -0,0 +1,73 @@
+package benchmark;
+
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Listing of a directory by the FileManager: streamed from the directory, and
+ * from the index, whole or one page of the default size.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Benchmark)
+public class ListingBenchmark {
+
+	// Default page size of the server
+	private static final int PAGE_SIZE = 1000;
+
+	@Param({ "10", "1000", "100000" })
+	public int entries;
+
+	private Path root;
+	private Callable<Object> listCurrentFiles;
+	private Callable<Object> indexedListing;
+	private Callable<Object> indexedPage;
+
+	@Setup
+	public void setUp() throws Exception {
+		root = Fixtures.createRoot();
+		Fixtures.createDirectory(root.resolve("dir"), entries);
+		Targets.call("setRootDirectory", root.toString());
+		Targets.call("useDirectoryIndex", 1000000L);
+		listCurrentFiles = Targets.get("listCurrentFiles", "/dir/");
+		indexedListing = Targets.get("getCurrentFilesPage", "/dir/", Integer.MAX_VALUE);
+		indexedPage = Targets.get("getCurrentFilesPage", "/dir/", PAGE_SIZE);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		Fixtures.delete(root);
+	}
+
+	@Benchmark
+	public Object streamed() throws Exception {
+		return listCurrentFiles.call();
+	}
+
+	@Benchmark
+	public Object indexed() throws Exception {
+		return indexedListing.call();
+	}
+
+	@Benchmark
+	public Object indexedPage() throws Exception {
+		return indexedPage.call();
+	}
+}
@@ -0,0 +1,36 @@
+package benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the benchmarks with the options of the JMH command line, the GC
+ * profiler being added so that the allocation rate of each operation is
+ * reported along with its throughput.
+ */
+public class Main {
+
+	/**
+	 * Main method
+	 * @param args options of org.openjdk.jmh.Main, -h to list them
+	 * @throws Exception if the benchmarks cannot be run
+	 */
+	public static void main(String[] args) throws Exception {
+		List<String> options = new ArrayList<String>(Arrays.asList(args));
+		if (!isGCProfiled(options)) {
+			options.add("-prof");
+			options.add("gc");
+		}
+		org.openjdk.jmh.Main.main(options.toArray(new String[options.size()]));
+	}
+
+	private static boolean isGCProfiled(List<String> options) {
+		for (int i = 0; i + 1 < options.size(); i++) {
+			if (options.get(i).equals("-prof") && options.get(i + 1).startsWith("gc")) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,52 @@
+package benchmark;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of the request line and headers of a GET request, by the parser
+ * alone, and followed by the reading of the parts the server uses.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Thread)
+public class RequestParsingBenchmark {
+
+	@Param({ "1", "8", "32" })
+	public int headerCount;
+
+	private Callable<Object> parseRequest;
+	private Callable<Object> readRequest;
+
+	@Setup
+	public void setUp() throws Exception {
+		byte[] request = Requests.get("/dir/index.html", headerCount);
+		parseRequest = Targets.get("parseRequest", request);
+		readRequest = Targets.get("readRequest", request);
+	}
+
+	@Benchmark
+	public Object parse() throws Exception {
+		return parseRequest.call();
+	}
+
+	@Benchmark
+	public Object parseAndRead() throws Exception {
+		return readRequest.call();
+	}
+}
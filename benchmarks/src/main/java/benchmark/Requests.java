@@ -0,0 +1,45 @@
+package benchmark;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Requests sent to the server by the benchmarks, with the headers a browser
+ * usually sends first, then made-up ones.
+ */
+final class Requests {
+
+	private static final String[] COMMON_HEADERS = {
+		"Host: localhost:8080",
+		"User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0",
+		"Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8",
+		"Accept-Language: en-CA,en;q=0.5",
+		"Accept-Encoding: identity",
+		"Connection: keep-alive",
+		"Cache-Control: no-cache",
+		"Referer: http://localhost:8080/",
+	};
+
+	private Requests() {
+	}
+
+	/**
+	 * Builds a GET request
+	 * @param uri URI of the request
+	 * @param headerCount number of headers, at least 1 for the Host header
+	 * @return bytes of the request line and headers
+	 */
+	static byte[] get(String uri, int headerCount) {
+		StringBuilder request = new StringBuilder(1024);
+		request.append("GET ").append(uri).append(" HTTP/1.1\r\n");
+		for (int i = 0; i < headerCount; i++) {
+			if (i < COMMON_HEADERS.length) {
+				request.append(COMMON_HEADERS[i]);
+			} else {
+				request.append("X-Header-").append(i).append(": value-").append(i);
+			}
+			request.append("\r\n");
+		}
+		request.append("\r\n");
+		return request.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+}
@@ -0,0 +1,68 @@
+package benchmark;
+
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building of the responses: the head of a response alone, the response to a
+ * request that failed, and the whole handling of a GET request for a small
+ * file served from the cache, through the steps the reactor and the workers
+ * take.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Benchmark)
+public class ResponseBenchmark {
+
+	private Path root;
+	private Callable<Object> writeResponseHead;
+	private Callable<Object> createErrorResponse;
+	private Callable<Object> serveRequest;
+
+	@Setup
+	public void setUp() throws Exception {
+		root = Fixtures.createRoot();
+		Fixtures.createFile(root.resolve("index.html"), 1024);
+		Targets.call("setRootDirectory", root.toString());
+		Targets.call("useFileCache", 64L * 1024 * 1024, 1024 * 1024);
+		writeResponseHead = Targets.get("writeResponseHead");
+		createErrorResponse = Targets.get("createErrorResponse");
+		serveRequest = Targets.get("serveRequest", Requests.get("/index.html", 8));
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		Fixtures.delete(root);
+	}
+
+	@Benchmark
+	public Object head() throws Exception {
+		return writeResponseHead.call();
+	}
+
+	@Benchmark
+	public Object error() throws Exception {
+		return createErrorResponse.call();
+	}
+
+	@Benchmark
+	public Object cachedFile() throws Exception {
+		return serveRequest.call();
+	}
+}
@@ -0,0 +1,54 @@
+package benchmark;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+
+/**
+ * Access to the operations of BenchmarkTargets, which is in the default package
+ * along with the classes of the server and can only be reached by reflection.
+ * Reflection is only used while the benchmarks are set up, the operations are
+ * then called directly.
+ */
+final class Targets {
+
+	private static final String TARGETS_CLASS = "BenchmarkTargets";
+
+	private Targets() {
+	}
+
+	/**
+	 * Calls a static method of BenchmarkTargets
+	 * @param name name of the method
+	 * @param args arguments of the method
+	 * @return what the method returns, null for a void method
+	 * @throws Exception if the method fails
+	 */
+	static Object call(String name, Object... args) throws Exception {
+		for (Method method : Class.forName(TARGETS_CLASS).getMethods()) {
+			if (method.getName().equals(name) && method.getParameterCount() == args.length) {
+				try {
+					return method.invoke(null, args);
+				} catch (InvocationTargetException e) {
+					if (e.getCause() instanceof Exception) {
+						throw (Exception) e.getCause();
+					}
+					throw e;
+				}
+			}
+		}
+		throw new NoSuchMethodException(TARGETS_CLASS + "." + name);
+	}
+
+	/**
+	 * Gets an operation prepared by BenchmarkTargets
+	 * @param name name of the method preparing the operation
+	 * @param args arguments of the method
+	 * @return the operation
+	 * @throws Exception if the operation cannot be prepared
+	 */
+	@SuppressWarnings("unchecked")
+	static Callable<Object> get(String name, Object... args) throws Exception {
+		return (Callable<Object>) call(name, args);
+	}
+}
@@ -0,0 +1,115 @@
+package loadtest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import benchmark.Fixtures;
+
+/**
+ * Data directory of a load test, laid out like COMP445: an index.html and a
+ * text file at the root, folders of small files, a TestPost folder the files
+ * are uploaded to, and a few large files to be served from the mappings.
+ */
+final class Fixture {
+
+	// Sizes of the files of the folders, in turn, from the sizes of the files of COMP445
+	private static final int[] FILE_SIZES = { 22, 34, 512, 4096, 21329 };
+	private static final int INDEX_SIZE = 21329;
+	private static final int LARGE_FILE_SIZE = 1024 * 1024;
+	private static final String POST_FOLDER = "TestPost";
+
+	private final Path root;
+	private final List<String> files;
+	private final List<String> folders;
+	private final List<String> postFiles;
+
+	private Fixture(Path root) {
+		this.root = root;
+		this.files = new ArrayList<String>();
+		this.folders = new ArrayList<String>();
+		this.postFiles = new ArrayList<String>();
+	}
+
+	/**
+	 * Creates the data directory in the temporary directory
+	 * @param folderCount number of folders of small files
+	 * @param filesPerFolder number of files of each folder
+	 * @param largeFileCount number of large files, at the root
+	 * @param postFileCount number of files the uploads are spread over
+	 * @return the data directory
+	 * @throws IOException if the files cannot be written
+	 */
+	static Fixture create(int folderCount, int filesPerFolder, int largeFileCount, int postFileCount) throws IOException {
+		Fixture fixture = new Fixture(Fixtures.createRoot());
+		try {
+			fixture.addFile("index.html", INDEX_SIZE);
+			fixture.addFile("mockFileRoot.txt", FILE_SIZES[1]);
+			fixture.folders.add("/");
+			for (int i = 1; i <= folderCount; i++) {
+				String folder = "mockFolder" + i;
+				Files.createDirectories(fixture.root.resolve(folder));
+				fixture.folders.add("/" + folder + "/");
+				for (int j = 1; j <= filesPerFolder; j++) {
+					fixture.addFile(folder + "/mockFile" + j + ".txt", FILE_SIZES[(j - 1) % FILE_SIZES.length]);
+				}
+			}
+			for (int i = 1; i <= largeFileCount; i++) {
+				fixture.addFile("large" + i + ".bin", LARGE_FILE_SIZE);
+			}
+			Files.createDirectories(fixture.root.resolve(POST_FOLDER));
+			fixture.folders.add("/" + POST_FOLDER + "/");
+			for (int i = 1; i <= postFileCount; i++) {
+				fixture.postFiles.add("/" + POST_FOLDER + "/postFile" + i + ".txt");
+			}
+		} catch (IOException e) {
+			fixture.delete();
+			throw e;
+		}
+		return fixture;
+	}
+
+	Path getRoot() {
+		return root;
+	}
+
+	/**
+	 * URIs of the files, GET requests being spread over them
+	 * @return the URIs
+	 */
+	List<String> getFiles() {
+		return Collections.unmodifiableList(files);
+	}
+
+	/**
+	 * URIs of the folders, listed by the GET requests for directories
+	 * @return the URIs, ending with /
+	 */
+	List<String> getFolders() {
+		return Collections.unmodifiableList(folders);
+	}
+
+	/**
+	 * URIs of the files written by the POST requests
+	 * @return the URIs
+	 */
+	List<String> getPostFiles() {
+		return Collections.unmodifiableList(postFiles);
+	}
+
+	/**
+	 * Deletes the data directory
+	 * @throws IOException if a file cannot be deleted
+	 */
+	void delete() throws IOException {
+		Fixtures.delete(root);
+	}
+
+	private void addFile(String path, int size) throws IOException {
+		Fixtures.createFile(root.resolve(path), size);
+		files.add("/" + path);
+	}
+}
@@ -0,0 +1,397 @@
+package loadtest;
+
+import static java.nio.channels.SelectionKey.OP_CONNECT;
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.channels.SelectionKey.OP_WRITE;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load generator. Requests are scheduled at a fixed rate, whether or
+ * not the server keeps up, and sent on the first free connection; a request
+ * due while all the connections are busy waits for one. Its latency is counted
+ * from the time it was due, not from the time it could be sent, so that a
+ * server falling behind shows in the latencies instead of slowing the
+ * generator down (the coordinated omission of closed-loop generators).
+ *
+ * Each thread has its own selector, connections and share of the rate. The
+ * selector waits in milliseconds, so when the next request is due sooner a
+ * thread polls it between short sleeps instead: requests are sent within
+ * about a tenth of a millisecond of their time, without taking a processor
+ * away from the server.
+ */
+final class LoadGenerator {
+
+	// Shortest wait done in the selector, shorter ones being done in short sleeps
+	private static final long MIN_SELECT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final long POLL_SLEEP_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+	// Delay before the first request, for the threads to start
+	private static final long START_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final int READ_BUFFER_SIZE = 65536;
+
+	private final InetSocketAddress address;
+	private final RequestMix mix;
+	private final int connections;
+	private final int threads;
+	private final double rate;
+	private final boolean keepAlive;
+	private final long warmupNanos;
+	private final long durationNanos;
+	private final long drainNanos;
+
+	/**
+	 * Constructor
+	 * @param address address of the server
+	 * @param mix requests to send
+	 * @param connections number of connections open at the same time
+	 * @param threads number of threads sending the requests
+	 * @param rate number of requests per second
+	 * @param keepAlive true to send the requests one after the other on the connections,
+	 * false to open a connection for each request
+	 * @param warmupSeconds time during which the requests are sent but not measured
+	 * @param durationSeconds time during which the requests are measured, after the warm-up
+	 * @param drainSeconds time the responses are waited for once the last request is due
+	 */
+	LoadGenerator(InetSocketAddress address, RequestMix mix, int connections, int threads, double rate, boolean keepAlive,
+			int warmupSeconds, int durationSeconds, int drainSeconds) {
+		this.address = address;
+		this.mix = mix;
+		this.connections = Math.max(1, connections);
+		this.threads = Math.max(1, Math.min(threads, this.connections));
+		this.rate = rate;
+		this.keepAlive = keepAlive;
+		this.warmupNanos = TimeUnit.SECONDS.toNanos(warmupSeconds);
+		this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+		this.drainNanos = TimeUnit.SECONDS.toNanos(drainSeconds);
+	}
+
+	/**
+	 * Sends the requests until the end of the run, and waits for their responses
+	 * @return what was measured after the warm-up
+	 * @throws IOException if a thread could not run
+	 * @throws InterruptedException if interrupted while waiting for the threads
+	 */
+	Results run() throws IOException, InterruptedException {
+		long start = System.nanoTime() + START_DELAY_NANOS;
+		Worker[] workers = new Worker[threads];
+		Thread[] running = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			// Connections and rate are shared evenly, the first threads taking the remainder
+			int workerConnections = connections / threads + (i < connections % threads ? 1 : 0);
+			double workerRate = rate * workerConnections / connections;
+			long offset = (long) (i * 1e9 / rate);
+			workers[i] = new Worker(i, workerConnections, workerRate, start + offset, start + warmupNanos, start + warmupNanos + durationNanos);
+			running[i] = new Thread(workers[i], "load-generator-" + i);
+			running[i].start();
+		}
+		Results results = new Results();
+		IOException failure = null;
+		for (int i = 0; i < threads; i++) {
+			running[i].join();
+			if (workers[i].failure != null) {
+				failure = workers[i].failure;
+			}
+			results.add(workers[i].results);
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		return results;
+	}
+
+	/**
+	 * Thread sending its share of the requests on its own connections
+	 */
+	private final class Worker implements Runnable {
+		private final Connection[] connections;
+		private final ArrayDeque<Connection> idle;
+		// Times the requests waiting for a connection were due
+		private final LongQueue backlog;
+		private final double intervalNanos;
+		private final long firstNanos;
+		private final long measureNanos;
+		private final long endNanos;
+		private final SplittableRandom random;
+		private final ByteBuffer readBuffer;
+		private final Results results;
+		private Selector selector;
+		private IOException failure;
+
+		Worker(int index, int connectionCount, double rate, long firstNanos, long measureNanos, long endNanos) {
+			this.connections = new Connection[connectionCount];
+			this.idle = new ArrayDeque<Connection>(connectionCount);
+			for (int i = 0; i < connectionCount; i++) {
+				connections[i] = new Connection();
+				idle.add(connections[i]);
+			}
+			this.backlog = new LongQueue();
+			this.intervalNanos = 1e9 / rate;
+			this.firstNanos = firstNanos;
+			this.measureNanos = measureNanos;
+			this.endNanos = endNanos;
+			this.random = new SplittableRandom(index);
+			this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+			this.results = new Results();
+		}
+
+		@Override
+		public void run() {
+			try {
+				selector = Selector.open();
+				long sequence = 0;
+				long next = firstNanos;
+				for (; ; ) {
+					long now = System.nanoTime();
+					while (next <= now && next < endNanos) {
+						backlog.add(next);
+						sequence++;
+						// Computed from the start rather than added up, so that rounding does not drift
+						next = firstNanos + (long) (sequence * intervalNanos);
+					}
+					while (!backlog.isEmpty() && !idle.isEmpty()) {
+						idle.poll().start(backlog.poll());
+					}
+					long wakeUp = next;
+					if (next >= endNanos) {
+						if (idle.size() == connections.length && backlog.isEmpty()) {
+							break;
+						}
+						wakeUp = endNanos + drainNanos;
+						if (now >= wakeUp) {
+							break;
+						}
+					}
+					long wait = wakeUp - now;
+					if (wait >= MIN_SELECT_NANOS) {
+						selector.select(TimeUnit.NANOSECONDS.toMillis(wait));
+					} else if (selector.selectNow() == 0 && wait > 0) {
+						LockSupport.parkNanos(Math.min(wait, POLL_SLEEP_NANOS));
+					}
+					for (SelectionKey key : selector.selectedKeys()) {
+						((Connection) key.attachment()).ready(key);
+					}
+					selector.selectedKeys().clear();
+				}
+				// Whatever is left did not get its response in time
+				while (!backlog.isEmpty()) {
+					if (backlog.poll() >= measureNanos) {
+						results.unfinished++;
+					}
+				}
+				for (Connection connection : connections) {
+					if (connection.busy && connection.scheduledNanos >= measureNanos) {
+						results.unfinished++;
+					}
+				}
+			} catch (IOException e) {
+				failure = e;
+			} finally {
+				for (Connection connection : connections) {
+					connection.close();
+				}
+				if (selector != null) {
+					try {
+						selector.close();
+					} catch (IOException e) {
+						// Nothing left to do with it
+					}
+				}
+			}
+		}
+
+		/**
+		 * Connection sending one request at a time, opened again when closed
+		 */
+		private final class Connection {
+			private final ResponseParser parser;
+			private SocketChannel channel;
+			private SelectionKey key;
+			private ByteBuffer request;
+			private int type;
+			private long scheduledNanos;
+			private long sentNanos;
+			private boolean busy;
+			// Whether the request is sent on a connection that already served one
+			private boolean reused;
+			private boolean retried;
+
+			Connection() {
+				this.parser = new ResponseParser();
+			}
+
+			/**
+			 * Sends a request
+			 * @param scheduledNanos System.nanoTime at which the request was due
+			 */
+			void start(long scheduledNanos) {
+				this.scheduledNanos = scheduledNanos;
+				this.sentNanos = System.nanoTime();
+				this.type = mix.pickType(random);
+				this.request = mix.pick(type, random);
+				this.busy = true;
+				this.retried = false;
+				send();
+			}
+
+			/**
+			 * Writes the request, connecting first if needed
+			 */
+			private void send() {
+				parser.reset();
+				request.rewind();
+				try {
+					if (channel != null) {
+						reused = true;
+						write();
+						return;
+					}
+					reused = false;
+					channel = SocketChannel.open();
+					channel.configureBlocking(false);
+					channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+					boolean connected = channel.connect(address);
+					key = channel.register(selector, connected ? 0 : OP_CONNECT, this);
+					if (connected) {
+						write();
+					}
+				} catch (IOException e) {
+					failed();
+				}
+			}
+
+			void ready(SelectionKey key) {
+				try {
+					if (key.isValid() && key.isConnectable()) {
+						channel.finishConnect();
+						write();
+						return;
+					}
+					if (key.isValid() && key.isWritable()) {
+						write();
+					}
+					if (key.isValid() && key.isReadable()) {
+						read();
+					}
+				} catch (IOException e) {
+					failed();
+				}
+			}
+
+			private void write() throws IOException {
+				channel.write(request);
+				key.interestOps(request.hasRemaining() ? OP_WRITE : OP_READ);
+			}
+
+			private void read() throws IOException {
+				for (; ; ) {
+					readBuffer.clear();
+					int n = channel.read(readBuffer);
+					if (n < 0) {
+						if (parser.closed()) {
+							complete();
+						} else if (reused && !retried && !parser.isStarted()) {
+							// The server closed the idle connection as the request was sent, as it may
+							retried = true;
+							close();
+							send();
+						} else {
+							throw new EOFException("The server closed the connection before the end of the response");
+						}
+						return;
+					}
+					if (n == 0) {
+						return;
+					}
+					readBuffer.flip();
+					if (parser.parse(readBuffer)) {
+						complete();
+						return;
+					}
+				}
+			}
+
+			private void complete() {
+				long now = System.nanoTime();
+				if (scheduledNanos >= measureNanos) {
+					results.completed(type, parser.getStatus(), scheduledNanos, sentNanos, now, parser.getReceived());
+				}
+				if (!keepAlive || parser.isClose()) {
+					close();
+				} else {
+					key.interestOps(0);
+				}
+				busy = false;
+				idle.add(this);
+			}
+
+			private void failed() {
+				if (scheduledNanos >= measureNanos) {
+					results.errors++;
+				}
+				close();
+				busy = false;
+				idle.add(this);
+			}
+
+			void close() {
+				if (channel == null) {
+					return;
+				}
+				if (key != null) {
+					key.cancel();
+				}
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// Opened again for the next request
+				}
+				channel = null;
+				key = null;
+			}
+		}
+	}
+
+	/**
+	 * Queue of longs, growing as needed, so that the times are not boxed
+	 */
+	private static final class LongQueue {
+		private long[] values = new long[1024];
+		private int head;
+		private int size;
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		void add(long value) {
+			if (size == values.length) {
+				long[] grown = new long[values.length * 2];
+				for (int i = 0; i < size; i++) {
+					grown[i] = values[(head + i) % values.length];
+				}
+				values = grown;
+				head = 0;
+			}
+			values[(head + size) % values.length] = value;
+			size++;
+		}
+
+		long poll() {
+			long value = values[head];
+			head = (head + 1) % values.length;
+			size--;
+			return value;
+		}
+	}
+}
@@ -0,0 +1,256 @@
+package loadtest;
+
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+
+/**
+ * End-to-end load test of the server. Generates a data directory laid out like
+ * COMP445, starts the server on it on a free port, sends it requests at a fixed
+ * rate from an open-loop generator, and reports the throughput and the
+ * latency percentiles, corrected for coordinated omission. The options after
+ * -- are given to the server, so that its modes can be compared on one machine:
+ *
+ * java -cp benchmarks/target/benchmarks.jar loadtest.LoadTest --rate 20000 -- -t 4 --cache-size 0
+ */
+public class LoadTest {
+
+	public static final int DEFAULT_CONNECTIONS = 64;
+	public static final int DEFAULT_THREADS = 2;
+	public static final int DEFAULT_RATE = 5000;
+	public static final int DEFAULT_DURATION = 30;
+	public static final int DEFAULT_WARMUP = 10;
+	public static final int DEFAULT_DRAIN = 10;
+	public static final String DEFAULT_MIX = "file=80,dir=15,post=5";
+	public static final int DEFAULT_FOLDERS = 10;
+	public static final int DEFAULT_FILES_PER_FOLDER = 100;
+	public static final int DEFAULT_LARGE_FILES = 4;
+	public static final int DEFAULT_POST_FILES = 100;
+	public static final int DEFAULT_POST_SIZE = 1024;
+
+	// Percentiles reported
+	private static final double[] PERCENTILES = { 0.5, 0.9, 0.99, 0.999 };
+	private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p99.9" };
+
+	// Various arguments accepted by the parser
+	public static final String ARG_HELP = "h";
+	public static final String ARG_CONNECTIONS = "connections";
+	public static final String ARG_THREADS = "threads";
+	public static final String ARG_RATE = "rate";
+	public static final String ARG_DURATION = "duration";
+	public static final String ARG_WARMUP = "warmup";
+	public static final String ARG_DRAIN = "drain";
+	public static final String ARG_MIX = "mix";
+	public static final String ARG_NO_KEEP_ALIVE = "no-keep-alive";
+	public static final String ARG_FOLDERS = "folders";
+	public static final String ARG_FILES_PER_FOLDER = "files-per-folder";
+	public static final String ARG_LARGE_FILES = "large-files";
+	public static final String ARG_POST_FILES = "post-files";
+	public static final String ARG_POST_SIZE = "post-size";
+	public static final String ARG_SERVER_JVM = "server-jvm";
+
+	/**
+	 * Runs the load test
+	 * @param args options of the load test, then -- and the options of the server
+	 */
+	public static void main(String[] args) throws Exception {
+
+		// Define the options that the parser can take
+		OptionParser parser = new OptionParser();
+
+		parser.accepts(ARG_HELP, "Prints the options.").forHelp();
+
+		parser.accepts(ARG_CONNECTIONS, "Number of connections open at the same time.")
+		.withRequiredArg()
+		.ofType(Integer.class)
+		.defaultsTo(DEFAULT_CONNECTIONS);
+
+		parser.accepts(ARG_THREADS, "Number of threads sending the requests.")
+		.withRequiredArg()
+		.ofType(Integer.class)
+		.defaultsTo(DEFAULT_THREADS);
+
+		parser.accepts(ARG_RATE, "Number of requests sent per second, whether the server keeps up or not.")
+		.withRequiredArg()
+		.ofType(Integer.class)
+		.defaultsTo(DEFAULT_RATE);
+
+		parser.accepts(ARG_DURATION, "Seconds during which the requests are measured.")
+		.withRequiredArg()
+		.ofType(Integer.class)
+		.defaultsTo(DEFAULT_DURATION);
+
+		parser.accepts(ARG_WARMUP, "Seconds during which the requests are sent but not measured, before the measure.")
+		.withRequiredArg()
+		.ofType(Integer.class)
+		.defaultsTo(DEFAULT_WARMUP);
+
+		parser.accepts(ARG_DRAIN, "Seconds the last responses are waited for.")
+		.withRequiredArg()
+		.ofType(Integer.class)
+		.defaultsTo(DEFAULT_DRAIN);
+
+		parser.accepts(ARG_MIX, "Weights of the GET requests for files, of the GET requests for directories and of the POST requests.")
+		.withRequiredArg()
+		.defaultsTo(DEFAULT_MIX);
+
+		parser.accepts(ARG_NO_KEEP_ALIVE, "Opens a connection for each request instead of keeping the connections open.");
+
+		parser.accepts(ARG_FOLDERS, "Number of folders of small files of the data directory.")
+		.withRequiredArg()
+		.ofType(Integer.class)
+		.defaultsTo(DEFAULT_FOLDERS);
+
+		parser.accepts(ARG_FILES_PER_FOLDER, "Number of files of each folder.")
+		.withRequiredArg()
+		.ofType(Integer.class)
+		.defaultsTo(DEFAULT_FILES_PER_FOLDER);
+
+		parser.accepts(ARG_LARGE_FILES, "Number of files of 1 MB of the data directory.")
+		.withRequiredArg()
+		.ofType(Integer.class)
+		.defaultsTo(DEFAULT_LARGE_FILES);
+
+		parser.accepts(ARG_POST_FILES, "Number of files the POST requests are spread over.")
+		.withRequiredArg()
+		.ofType(Integer.class)
+		.defaultsTo(DEFAULT_POST_FILES);
+
+		parser.accepts(ARG_POST_SIZE, "Size in bytes of the body of the POST requests.")
+		.withRequiredArg()
+		.ofType(Integer.class)
+		.defaultsTo(DEFAULT_POST_SIZE);
+
+		parser.accepts(ARG_SERVER_JVM, "Options of the JVM of the server, separated by spaces, for example \"-Xmx1g -XX:+UseZGC\".")
+		.withRequiredArg()
+		.defaultsTo("");
+
+		// Parse the given arguments
+		OptionSet opts;
+		int[] weights;
+		try {
+			opts = parser.parse(args);
+			weights = parseMix((String) opts.valueOf(ARG_MIX));
+		} catch (OptionException | IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			parser.printHelpOn(System.out);
+			System.exit(1);
+			return;
+		}
+		if (opts.has(ARG_HELP)) {
+			System.out.println("Usage: LoadTest [options] [-- server options]");
+			parser.printHelpOn(System.out);
+			return;
+		}
+		int connections = (int) opts.valueOf(ARG_CONNECTIONS);
+		int threads = (int) opts.valueOf(ARG_THREADS);
+		int rate = (int) opts.valueOf(ARG_RATE);
+		int duration = (int) opts.valueOf(ARG_DURATION);
+		int warmup = (int) opts.valueOf(ARG_WARMUP);
+		int drain = (int) opts.valueOf(ARG_DRAIN);
+		boolean keepAlive = !opts.has(ARG_NO_KEEP_ALIVE);
+		int folders = (int) opts.valueOf(ARG_FOLDERS);
+		int filesPerFolder = (int) opts.valueOf(ARG_FILES_PER_FOLDER);
+		int largeFiles = (int) opts.valueOf(ARG_LARGE_FILES);
+		int postFiles = (int) opts.valueOf(ARG_POST_FILES);
+		int postSize = (int) opts.valueOf(ARG_POST_SIZE);
+		String serverJvm = ((String) opts.valueOf(ARG_SERVER_JVM)).trim();
+		List<String> jvmOptions = serverJvm.isEmpty() ? new ArrayList<String>() : Arrays.asList(serverJvm.split("\\s+"));
+		List<String> serverOptions = new ArrayList<String>();
+		for (Object option : opts.nonOptionArguments()) {
+			serverOptions.add(option.toString());
+		}
+		if (rate <= 0 || duration <= 0) {
+			System.out.println("The rate and the duration must be positive.");
+			System.exit(1);
+		}
+
+		System.out.println("Creating the data directory...");
+		Fixture fixture = Fixture.create(folders, filesPerFolder, largeFiles, postFiles);
+		Path accessLog = Files.createTempFile("httpserver-loadtest", ".log");
+		try {
+			RequestMix mix = new RequestMix(fixture, weights, keepAlive, postSize);
+			try (ServerProcess server = ServerProcess.start(fixture.getRoot(), accessLog, jvmOptions, serverOptions)) {
+				System.out.println("Server listening on port " + server.getPort() + " with options " + serverOptions);
+				System.out.printf(Locale.ROOT, "Sending %d requests/s on %d connections (keep-alive %s) for %d s after %d s of warm-up...%n",
+						rate, connections, keepAlive ? "on" : "off", duration, warmup);
+				LoadGenerator generator = new LoadGenerator(new InetSocketAddress("127.0.0.1", server.getPort()), mix,
+						connections, threads, rate, keepAlive, warmup, duration, drain);
+				Results results = generator.run();
+				report(System.out, results, duration);
+			}
+		} finally {
+			fixture.delete();
+			Files.deleteIfExists(accessLog);
+		}
+	}
+
+	/**
+	 * Reads the weights of the types of requests
+	 * @param mix for example file=80,dir=15,post=5, the types not given having no weight
+	 * @return the weights, by type of request
+	 */
+	private static int[] parseMix(String mix) {
+		String[] keys = { "file", "dir", "post" };
+		int[] weights = new int[keys.length];
+		for (String part : mix.split(",")) {
+			String[] keyValue = part.trim().split("=");
+			int type = keyValue.length == 2 ? Arrays.asList(keys).indexOf(keyValue[0].trim()) : -1;
+			if (type < 0) {
+				throw new IllegalArgumentException("Invalid request mix " + mix + ", expected for example " + DEFAULT_MIX);
+			}
+			try {
+				weights[type] = Integer.parseInt(keyValue[1].trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid request mix " + mix + ", expected for example " + DEFAULT_MIX);
+			}
+		}
+		return weights;
+	}
+
+	private static void report(PrintStream out, Results results, int duration) {
+		out.println();
+		out.printf(Locale.ROOT, "Requests     %d completed, %d errors, %d unfinished%n", results.completed, results.errors, results.unfinished);
+		out.printf(Locale.ROOT, "Throughput   %.1f requests/s, %.2f MB/s received%n",
+				(double) results.completed / duration, results.bytesReceived / 1e6 / duration);
+		StringBuilder byType = new StringBuilder();
+		for (int type = 0; type < RequestMix.TYPE_NAMES.length; type++) {
+			byType.append(RequestMix.TYPE_NAMES[type]).append(": ").append(results.requestsByType[type]).append("  ");
+		}
+		out.println("Requests     " + byType.toString().trim());
+		StringBuilder byStatus = new StringBuilder();
+		for (int status = 0; status < results.responsesByStatus.length; status++) {
+			if (results.responsesByStatus[status] > 0) {
+				byStatus.append(status).append(": ").append(results.responsesByStatus[status]).append("  ");
+			}
+		}
+		out.println("Responses    " + byStatus.toString().trim());
+		out.println();
+		out.printf(Locale.ROOT, "Latency (ms) %10s", "mean");
+		for (String percentile : PERCENTILE_NAMES) {
+			out.printf(Locale.ROOT, "%10s", percentile);
+		}
+		out.printf(Locale.ROOT, "%10s%n", "max");
+		printLatencies(out, "corrected", results.corrected);
+		printLatencies(out, "uncorrected", results.uncorrected);
+		out.println();
+		out.println("Corrected latencies are counted from the time each request was due, uncorrected ones from the time it was sent.");
+	}
+
+	private static void printLatencies(PrintStream out, String name, LatencyHistogram histogram) {
+		out.printf(Locale.ROOT, "  %-10s %10.3f", name, histogram.getMean() / 1e6);
+		for (double percentile : PERCENTILES) {
+			out.printf(Locale.ROOT, "%10.3f", histogram.getPercentile(percentile) / 1e6);
+		}
+		out.printf(Locale.ROOT, "%10.3f%n", histogram.getMax() / 1e6);
+	}
+}
@@ -0,0 +1,109 @@
+package loadtest;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Requests sent by the load generator, in proportions given by a weight per
+ * type. All the requests are encoded once, before the run, so that sending
+ * one costs the generator nothing but the write.
+ */
+final class RequestMix {
+
+	// Types of requests
+	static final int GET_FILE = 0;
+	static final int GET_FOLDER = 1;
+	static final int POST = 2;
+	static final String[] TYPE_NAMES = { "GET file", "GET dir", "POST" };
+
+	private final int[] weights;
+	private final int totalWeight;
+	private final List<List<byte[]>> requests;
+
+	/**
+	 * Constructor
+	 * @param fixture data directory the requests are sent to
+	 * @param weights weight of each type of request, GET_FILE, GET_FOLDER and POST
+	 * @param keepAlive true to keep the connections open, false to close them after each response
+	 * @param postSize size in bytes of the body of the POST requests
+	 */
+	RequestMix(Fixture fixture, int[] weights, boolean keepAlive, int postSize) {
+		this.weights = Arrays.copyOf(weights, TYPE_NAMES.length);
+		int total = 0;
+		for (int weight : this.weights) {
+			if (weight < 0) {
+				throw new IllegalArgumentException("The weights of the requests cannot be negative");
+			}
+			total += weight;
+		}
+		if (total == 0) {
+			throw new IllegalArgumentException("At least one type of request must have a weight");
+		}
+		this.totalWeight = total;
+		String connection = keepAlive ? "keep-alive" : "close";
+		this.requests = new ArrayList<List<byte[]>>();
+		requests.add(encode(fixture.getFiles(), "GET", connection, null));
+		requests.add(encode(fixture.getFolders(), "GET", connection, null));
+		byte[] body = new byte[postSize];
+		Arrays.fill(body, (byte) 'x');
+		requests.add(encode(fixture.getPostFiles(), "POST", connection, body));
+		for (int type = 0; type < TYPE_NAMES.length; type++) {
+			if (this.weights[type] > 0 && requests.get(type).isEmpty()) {
+				throw new IllegalArgumentException("No target for the " + TYPE_NAMES[type] + " requests");
+			}
+		}
+	}
+
+	/**
+	 * Picks the type of the next request
+	 * @param random generator of the calling thread
+	 * @return GET_FILE, GET_FOLDER or POST
+	 */
+	int pickType(SplittableRandom random) {
+		int draw = random.nextInt(totalWeight);
+		int type = 0;
+		while (draw >= weights[type]) {
+			draw -= weights[type];
+			type++;
+		}
+		return type;
+	}
+
+	/**
+	 * Picks a request of a type, its target being drawn uniformly
+	 * @param type GET_FILE, GET_FOLDER or POST
+	 * @param random generator of the calling thread
+	 * @return bytes of the request, ready to be written
+	 */
+	ByteBuffer pick(int type, SplittableRandom random) {
+		List<byte[]> candidates = requests.get(type);
+		return ByteBuffer.wrap(candidates.get(random.nextInt(candidates.size())));
+	}
+
+	private static List<byte[]> encode(List<String> uris, String method, String connection, byte[] body) {
+		List<byte[]> encoded = new ArrayList<byte[]>(uris.size());
+		for (String uri : uris) {
+			StringBuilder head = new StringBuilder(256);
+			head.append(method).append(' ').append(uri).append(" HTTP/1.1\r\n")
+			.append("Host: localhost\r\n")
+			.append("User-Agent: COMP445-LoadTest\r\n")
+			.append("Connection: ").append(connection).append("\r\n");
+			if (body != null) {
+				head.append("Content-Type: text/plain\r\n")
+				.append("Content-Length: ").append(body.length).append("\r\n");
+			}
+			head.append("\r\n");
+			byte[] headBytes = head.toString().getBytes(StandardCharsets.US_ASCII);
+			byte[] request = Arrays.copyOf(headBytes, headBytes.length + (body == null ? 0 : body.length));
+			if (body != null) {
+				System.arraycopy(body, 0, request, headBytes.length, body.length);
+			}
+			encoded.add(request);
+		}
+		return encoded;
+	}
+}
@@ -0,0 +1,219 @@
+package loadtest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parser of the responses received by the load generator. Only the status
+ * code and the framing of the body are read, the body itself is counted and
+ * dropped. Parsing can stop at any byte and resume when more bytes arrive.
+ */
+final class ResponseParser {
+
+	// States of the parser
+	private static final int HEAD = 0;
+	private static final int BODY = 1;
+	private static final int CHUNK_SIZE = 2;
+	private static final int CHUNK_EXTENSION = 3;
+	private static final int CHUNK_DATA = 4;
+	private static final int CHUNK_DATA_END = 5;
+	private static final int TRAILER = 6;
+	private static final int UNTIL_CLOSE = 7;
+	private static final int DONE = 8;
+
+	private static final int MAX_HEAD_SIZE = 16384;
+
+	private final byte[] head;
+	private int headLength;
+	private int state;
+	private int status;
+	// Whether the server closes the connection after this response
+	private boolean close;
+	// Bytes left in the body, or in the current chunk
+	private long remaining;
+	private int chunkSizeDigits;
+	// Bytes of the current trailer line
+	private int lineLength;
+	// Bytes of the response received so far, head included
+	private long received;
+
+	ResponseParser() {
+		this.head = new byte[MAX_HEAD_SIZE];
+	}
+
+	/**
+	 * Forgets the response parsed, to parse the next one
+	 */
+	void reset() {
+		headLength = 0;
+		state = HEAD;
+		status = 0;
+		close = false;
+		remaining = 0;
+		chunkSizeDigits = 0;
+		lineLength = 0;
+		received = 0;
+	}
+
+	/**
+	 * Parses the bytes received
+	 * @param buffer bytes received, from its position to its limit; the position is moved
+	 * after the bytes of the response
+	 * @return true once the whole response is received
+	 * @throws IOException if the response is malformed
+	 */
+	boolean parse(ByteBuffer buffer) throws IOException {
+		int start = buffer.position();
+		while (state != DONE && buffer.hasRemaining()) {
+			if (state == BODY || state == CHUNK_DATA || state == UNTIL_CLOSE) {
+				int length = state == UNTIL_CLOSE ? buffer.remaining() : (int) Math.min(remaining, buffer.remaining());
+				buffer.position(buffer.position() + length);
+				remaining -= length;
+				if (remaining == 0 && state != UNTIL_CLOSE) {
+					state = state == BODY ? DONE : CHUNK_DATA_END;
+				}
+				continue;
+			}
+			byte b = buffer.get();
+			switch (state) {
+			case HEAD:
+				if (headLength == head.length) {
+					throw new IOException("The response headers are too large");
+				}
+				head[headLength++] = b;
+				if (b == '\n' && headLength >= 4 && head[headLength - 2] == '\r' && head[headLength - 3] == '\n') {
+					readHead();
+				}
+				break;
+			case CHUNK_SIZE:
+				int digit = Character.digit(b, 16);
+				if (digit >= 0 && chunkSizeDigits < 15) {
+					remaining = remaining * 16 + digit;
+					chunkSizeDigits++;
+				} else if (chunkSizeDigits == 0) {
+					throw new IOException("Invalid chunk size");
+				} else if (b == '\n') {
+					startChunk();
+				} else {
+					state = CHUNK_EXTENSION;
+				}
+				break;
+			case CHUNK_EXTENSION:
+				if (b == '\n') {
+					startChunk();
+				}
+				break;
+			case CHUNK_DATA_END:
+				if (b == '\n') {
+					remaining = 0;
+					chunkSizeDigits = 0;
+					state = CHUNK_SIZE;
+				}
+				break;
+			case TRAILER:
+				if (b == '\n') {
+					if (lineLength == 0) {
+						state = DONE;
+					}
+					lineLength = 0;
+				} else if (b != '\r') {
+					lineLength++;
+				}
+				break;
+			default:
+				break;
+			}
+		}
+		received += buffer.position() - start;
+		return state == DONE;
+	}
+
+	/**
+	 * Ends a response whose body ends when the connection is closed
+	 * @return true if the response is complete
+	 */
+	boolean closed() {
+		if (state == UNTIL_CLOSE) {
+			state = DONE;
+		}
+		return state == DONE;
+	}
+
+	/**
+	 * Indicates if any byte of the response was received
+	 * @return true once the response started
+	 */
+	boolean isStarted() {
+		return received > 0;
+	}
+
+	int getStatus() {
+		return status;
+	}
+
+	boolean isClose() {
+		return close;
+	}
+
+	long getReceived() {
+		return received;
+	}
+
+	/**
+	 * Reads the status code and the framing of the body from the head of the response
+	 */
+	private void readHead() throws IOException {
+		String text = new String(head, 0, headLength, StandardCharsets.ISO_8859_1);
+		String[] lines = text.split("\r\n");
+		String[] statusLine = lines[0].split(" ", 3);
+		if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/")) {
+			throw new IOException("Invalid status line: " + lines[0]);
+		}
+		try {
+			status = Integer.parseInt(statusLine[1]);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid status line: " + lines[0]);
+		}
+		long contentLength = -1;
+		boolean chunked = false;
+		close = statusLine[0].equals("HTTP/1.0");
+		for (int i = 1; i < lines.length; i++) {
+			int colon = lines[i].indexOf(':');
+			if (colon < 0) {
+				continue;
+			}
+			String name = lines[i].substring(0, colon).trim();
+			String value = lines[i].substring(colon + 1).trim();
+			if (name.equalsIgnoreCase("Content-Length")) {
+				try {
+					contentLength = Long.parseLong(value);
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid Content-Length: " + value);
+				}
+			} else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+				chunked = value.toLowerCase().contains("chunked");
+			} else if (name.equalsIgnoreCase("Connection")) {
+				close = value.equalsIgnoreCase("close");
+			}
+		}
+		if (status == 204 || status == 304 || status / 100 == 1) {
+			state = DONE;
+		} else if (chunked) {
+			state = CHUNK_SIZE;
+		} else if (contentLength >= 0) {
+			remaining = contentLength;
+			state = contentLength == 0 ? DONE : BODY;
+		} else {
+			state = UNTIL_CLOSE;
+			close = true;
+		}
+	}
+
+	/**
+	 * Starts the data of a chunk once its size is read, the last chunk being empty
+	 */
+	private void startChunk() {
+		state = remaining == 0 ? TRAILER : CHUNK_DATA;
+	}
+}
@@ -0,0 +1,71 @@
+package loadtest;
+
+/**
+ * What a thread of the load generator measured, merged with the other threads
+ * once the run is over. Only the requests scheduled after the warm-up are
+ * counted.
+ */
+final class Results {
+
+	private static final int MAX_STATUS_CODE = 600;
+
+	// Latencies from the time each request was scheduled, which count the time it waited
+	// for a connection when the server is behind: the latencies the clients would see
+	final LatencyHistogram corrected;
+	// Latencies from the time each request was sent, which leave out that wait
+	final LatencyHistogram uncorrected;
+	final long[] responsesByStatus;
+	final long[] requestsByType;
+	long completed;
+	// Requests that failed on a connection or response error
+	long errors;
+	// Requests still waiting for their response when the run ended
+	long unfinished;
+	long bytesReceived;
+
+	Results() {
+		this.corrected = new LatencyHistogram();
+		this.uncorrected = new LatencyHistogram();
+		this.responsesByStatus = new long[MAX_STATUS_CODE];
+		this.requestsByType = new long[RequestMix.TYPE_NAMES.length];
+	}
+
+	/**
+	 * Records a response
+	 * @param type type of the request, as given by RequestMix
+	 * @param status status code of the response
+	 * @param scheduledNanos System.nanoTime at which the request was due
+	 * @param sentNanos System.nanoTime at which the request was sent
+	 * @param receivedNanos System.nanoTime at which the whole response was received
+	 * @param bytes number of bytes of the response
+	 */
+	void completed(int type, int status, long scheduledNanos, long sentNanos, long receivedNanos, long bytes) {
+		corrected.record(receivedNanos - scheduledNanos);
+		uncorrected.record(receivedNanos - sentNanos);
+		if (status >= 0 && status < MAX_STATUS_CODE) {
+			responsesByStatus[status]++;
+		}
+		requestsByType[type]++;
+		completed++;
+		bytesReceived += bytes;
+	}
+
+	/**
+	 * Adds what another thread measured
+	 * @param other results of the thread, once it stopped
+	 */
+	void add(Results other) {
+		corrected.add(other.corrected);
+		uncorrected.add(other.uncorrected);
+		for (int i = 0; i < MAX_STATUS_CODE; i++) {
+			responsesByStatus[i] += other.responsesByStatus[i];
+		}
+		for (int i = 0; i < requestsByType.length; i++) {
+			requestsByType[i] += other.requestsByType[i];
+		}
+		completed += other.completed;
+		errors += other.errors;
+		unfinished += other.unfinished;
+		bytesReceived += other.bytesReceived;
+	}
+}
@@ -0,0 +1,115 @@
+package loadtest;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The server under test, run in its own JVM from the classpath of the load
+ * test so that its threads, caches and garbage collection do not mix with the
+ * ones of the load generator. It listens on a port picked by the system.
+ */
+final class ServerProcess implements Closeable {
+
+	// Line printed by the server once it listens
+	private static final Pattern LISTENING = Pattern.compile("Listening on port (\\d+)");
+	private static final String ACCESS_LOG_OPTION = "--access-log";
+
+	private final Process process;
+	private final int port;
+
+	private ServerProcess(Process process, int port) {
+		this.process = process;
+		this.port = port;
+	}
+
+	/**
+	 * Starts the server and waits for it to listen
+	 * @param directory data directory of the server
+	 * @param accessLog file the requests are logged to, unless the server options give one
+	 * @param jvmOptions options of the JVM of the server, for example -Xmx1g
+	 * @param serverOptions options of the server, for example -t 4 --cache-size 0
+	 * @return the running server
+	 * @throws IOException if the server cannot be started or stops before listening
+	 */
+	static ServerProcess start(Path directory, Path accessLog, List<String> jvmOptions, List<String> serverOptions) throws IOException {
+		List<String> command = new ArrayList<String>();
+		command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+		command.addAll(jvmOptions);
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("HTTPServer");
+		command.add("-p");
+		command.add("0");
+		command.add("-d");
+		command.add(directory.toString());
+		if (!serverOptions.contains(ACCESS_LOG_OPTION)) {
+			// Logged to the standard output otherwise, which the server would wait on
+			command.add(ACCESS_LOG_OPTION);
+			command.add(accessLog.toString());
+		}
+		command.addAll(serverOptions);
+		final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		final BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+		StringBuilder printed = new StringBuilder();
+		String line;
+		while ((line = output.readLine()) != null) {
+			Matcher matcher = LISTENING.matcher(line);
+			if (matcher.find()) {
+				// Whatever the server prints next is passed on
+				Thread forwarder = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						forward(output);
+					}
+				}, "server-output");
+				forwarder.setDaemon(true);
+				forwarder.start();
+				return new ServerProcess(process, Integer.parseInt(matcher.group(1)));
+			}
+			printed.append(line).append('\n');
+		}
+		process.destroy();
+		throw new IOException("The server stopped before listening:\n" + printed);
+	}
+
+	int getPort() {
+		return port;
+	}
+
+	/**
+	 * Stops the server
+	 */
+	@Override
+	public void close() {
+		process.destroy();
+		try {
+			if (!process.waitFor(5, TimeUnit.SECONDS)) {
+				process.destroyForcibly();
+			}
+		} catch (InterruptedException e) {
+			process.destroyForcibly();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void forward(BufferedReader output) {
+		try {
+			String line;
+			while ((line = output.readLine()) != null) {
+				System.err.println("[server] " + line);
+			}
+		} catch (IOException e) {
+			// The server stopped
+		}
+	}
+}